@@ -12,25 +12,35 @@ import java.util.Map;
  * <li> {@code maxSizeBytes} - if size in bytes (as counted by Loki) reaches this limit,
  * applies only when {@code checkSizeBeforeAdd()} is called
  *
- * <li> {@code maxTimeoutMs} - if this timeout is passed since the last batch was sended,
- * applies only when {@code drain()} is called
+ * <li> {@code maxTimeoutMs} - if this timeout is passed since the oldest record was added to the batch,
+ * applies only when {@code drainExpired()} is called. The time the batch expires at is
+ * available via {@code deadlineMs()}, so the caller can wake up exactly when it's due.
+ * The effective timeout (linger) can be lowered in runtime via {@code setLingerMs()}
  * </ul>
  * This class is not thread-safe.
  */
 public final class Batcher {
 
+    /**
+     * Adaptive linger is not lowered below {@code targetLatencyMs / MIN_LINGER_DIVISOR}
+     */
+    private static final int MIN_LINGER_DIVISOR = 4;
+
     private final int maxSizeBytes;
     private final long maxTimeoutMs;
     private final LogRecord[] items;
 
     private int index = 0;
     private int sizeBytes = 0;
+    private long oldestRecordMs = 0;
+    private long lingerMs;
     private HashSet<Map<String, String>> streams = new HashSet<>();
 
 
     public Batcher(int maxItems, int maxSizeBytes, long maxTimeoutMs) {
         this.maxSizeBytes = maxSizeBytes;
         this.maxTimeoutMs = maxTimeoutMs;
+        this.lingerMs = maxTimeoutMs;
         this.items = new LogRecord[maxItems];
     }
 
@@ -98,6 +108,8 @@ public final class Batcher {
      * @param destination Resulting batch (if ready)
      */
     public void add(LogRecord input, LogRecordBatch destination) {
+        if (index == 0)
+            oldestRecordMs = System.currentTimeMillis();
         items[index] = input;
         sizeBytes += estimateSizeBytes(input, false);
         if (++index == items.length)
@@ -115,6 +127,46 @@ public final class Batcher {
             cutBatchAndReset(destination, BatchCondition.DRAIN);
     }
 
+    /**
+     * Returns a batch if max timeout since the oldest record in the batch was added is expired
+     * @param nowMs Current timestamp
+     * @param destination Resulting batch (if ready)
+     */
+    public void drainExpired(long nowMs, LogRecordBatch destination) {
+        if (index > 0 && nowMs >= deadlineMs())
+            cutBatchAndReset(destination, BatchCondition.DRAIN);
+    }
+
+    /**
+     * Returns the timestamp the current batch expires at,
+     * or {@code Long.MAX_VALUE} if the batch is empty
+     */
+    public long deadlineMs() {
+        return index > 0 ? oldestRecordMs + lingerMs : Long.MAX_VALUE;
+    }
+
+    /**
+     * Sets the time to wait for more records before the batch expires.
+     * The value is bound by {@code [0, maxTimeoutMs]}.
+     * It applies to the current batch as well
+     */
+    public void setLingerMs(long lingerMs) {
+        this.lingerMs = Math.min(Math.max(0, lingerMs), maxTimeoutMs);
+    }
+
+    /**
+     * Sets linger to the part of the target latency that is left after sending.
+     * Linger never drops below a quarter of the target: if sends are slow, smaller batches
+     * only mean more requests, so sends get even slower and linger would collapse to zero
+     */
+    public void adaptLingerMs(long targetLatencyMs, long sendLatencyMs) {
+        setLingerMs(Math.max(targetLatencyMs - sendLatencyMs, targetLatencyMs / MIN_LINGER_DIVISOR));
+    }
+
+    public long getLingerMs() {
+        return lingerMs;
+    }
+
     public int getCapacity() {
         return items.length;
     }
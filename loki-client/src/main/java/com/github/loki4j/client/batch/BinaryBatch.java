@@ -12,6 +12,32 @@ public class BinaryBatch {
 
     public ByteBuffer data;
 
+    /**
+     * Hashes of streams contained in this batch, used for ordering concurrent sends.
+     * Empty if ordering is not required
+     */
+    public int[] streamKeys = NO_STREAM_KEYS;
+
+    public static final int[] NO_STREAM_KEYS = new int[0];
+
+    /**
+     * Positions of the records of this batch in the write-ahead log, acknowledged once the batch is sent.
+     * Empty if the write-ahead log is disabled
+     */
+    public long[] walPositions = NO_WAL_POSITIONS;
+
+    public static final long[] NO_WAL_POSITIONS = new long[0];
+
+    /**
+     * If true, the batch contains prioritized records, so it's never evicted from the send queue
+     */
+    boolean priority = false;
+
+    /**
+     * Position of this batch in the disk spill of the send queue, or -1 if it was never spilled
+     */
+    long spillPosition = -1;
+
     BinaryBatch() { }
 
     @Override
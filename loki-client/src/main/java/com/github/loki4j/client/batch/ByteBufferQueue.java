@@ -1,21 +1,39 @@
 package com.github.loki4j.client.batch;
 
 import java.nio.ByteBuffer;
+import java.util.HashSet;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 import com.github.loki4j.client.util.ByteBufferFactory;
+import com.github.loki4j.client.util.ByteBufferPool;
+import com.github.loki4j.client.util.MappedSegmentLog;
 
 /**
  * A thread-safe queue operating with reusable ByteBuffers.
+ * <p>
+ * If batches are offered with stream keys, the queue guarantees that batches sharing
+ * a stream are borrowed one at a time and in the order they were offered, even if
+ * there are several concurrent consumers.
+ * <p>
+ * Optionally, the queue can spill batches to disk once its in-memory part is full.
+ * Spilled batches are moved back to memory in the order they were offered as soon as
+ * there is room for them. Batches offered to memory are written to disk as well,
+ * so all the batches are kept on disk in the order they were offered until they are returned,
+ * and they are recovered in this order after a restart.
+ * <p>
+ * A part of the queue capacity could be reserved for priority batches, so they are accepted
+ * even if the queue is too full for regular ones.
  */
 public class ByteBufferQueue {
 
     /**
-     * Pool of batches returned to the queue and ready to be re-used.
+     * Pool of buffers returned to the queue and ready to be re-used.
+     * It can keep as many bytes as the queue itself, so the memory of a full queue
+     * is reused once it's sent.
      */
-    private final ConcurrentLinkedQueue<BinaryBatch> pool = new ConcurrentLinkedQueue<>();
+    private final ByteBufferPool pool;
 
     private final AtomicLong sizeBytes = new AtomicLong(0L);
 
@@ -24,53 +42,342 @@ public class ByteBufferQueue {
      */
     private final ConcurrentLinkedQueue<BinaryBatch> items = new ConcurrentLinkedQueue<>();
 
+    /**
+     * Keys of streams contained in the batches that are currently borrowed.
+     * Guarded by itself
+     */
+    private final HashSet<Integer> borrowedStreams = new HashSet<>();
+
     private final long maxSizeBytes;
-    private final ByteBufferFactory bufferFactory;
+
+    /**
+     * Max size of regular batches, the rest of the capacity is available for priority batches only
+     */
+    private final long maxRegularSizeBytes;
+
+    /**
+     * On-disk continuation of this queue, or null if spilling is disabled.
+     * Once it's not empty, all new batches go there to keep the order
+     */
+    private final MappedSegmentLog spill;
+
+    /**
+     * If false, spilled batches are not moved back to memory and stay on disk
+     */
+    private volatile boolean replaySpilled = true;
 
     public ByteBufferQueue(long maxSizeBytes, ByteBufferFactory bufferFactory) {
+        this(maxSizeBytes, bufferFactory, null);
+    }
+
+    public ByteBufferQueue(long maxSizeBytes, ByteBufferFactory bufferFactory, MappedSegmentLog spill) {
+        this(maxSizeBytes, 0L, bufferFactory, spill);
+    }
+
+    /**
+     * @param priorityReservedBytes Part of the capacity reserved for priority batches,
+     * no more than a half of the capacity
+     */
+    public ByteBufferQueue(long maxSizeBytes, long priorityReservedBytes, ByteBufferFactory bufferFactory, MappedSegmentLog spill) {
         this.maxSizeBytes = maxSizeBytes;
-        this.bufferFactory = bufferFactory;
+        this.maxRegularSizeBytes = maxSizeBytes - Math.max(0L, Math.min(priorityReservedBytes, maxSizeBytes / 2));
+        this.pool = new ByteBufferPool(maxSizeBytes, bufferFactory);
+        this.spill = spill;
     }
 
     public boolean offer(long batchId, int itemsCount, int claimBytes, Consumer<ByteBuffer> write) {
-        if (sizeBytes.get() + claimBytes > maxSizeBytes)
+        return offer(batchId, itemsCount, claimBytes, BinaryBatch.NO_STREAM_KEYS, write);
+    }
+
+    public boolean offer(long batchId, int itemsCount, int claimBytes, int[] streamKeys, Consumer<ByteBuffer> write) {
+        if (spill != null) {
+            var batch = claimBuffer(claimBytes);
+            write.accept(batch.data);
+            if (offer(batch, batchId, itemsCount, streamKeys))
+                return true;
+            returnBuffer(batch);
+            return false;
+        }
+        if (!reserve(claimBytes, maxRegularSizeBytes))
             return false;
-        sizeBytes.addAndGet(claimBytes);
 
-        var batch = pool.poll();
-        if (batch == null)
-            batch = new BinaryBatch();
-        if (batch.data == null || batch.data.capacity() <= claimBytes)
-            batch.data = bufferFactory.allocate(claimBytes + claimBytes / 2);
+        var batch = claimBuffer(claimBytes);
         batch.batchId = batchId;
         batch.sizeItems = itemsCount;
         batch.sizeBytes = claimBytes;
-        batch.data.clear();
+        batch.streamKeys = streamKeys;
         write.accept(batch.data);
         items.offer(batch);
 
         return true;
     }
 
+    /**
+     * Takes a batch with an empty buffer to be filled in before it's offered via
+     * {@link #offer(BinaryBatch, long, int, int[])}. This way, the data can be written
+     * directly into the buffer it will be sent from.
+     * If the batch is not offered, it must be returned via {@link #returnBuffer(BinaryBatch)}.
+     * @param expectedBytes Expected size of the data, the buffer could be replaced later if it's not enough
+     */
+    public BinaryBatch claimBuffer(int expectedBytes) {
+        var batch = new BinaryBatch();
+        batch.data = pool.acquire(expectedBytes);
+        return batch;
+    }
+
+    /**
+     * Offers a batch taken via {@link #claimBuffer(int)}. Its buffer must be ready to be read.
+     * If there is no room for the batch in memory, it's spilled to disk (if enabled)
+     * @return false if there is no room for the batch in the queue, so it should be offered later
+     */
+    public boolean offer(BinaryBatch batch, long batchId, int itemsCount, int[] streamKeys) {
+        return offer(batch, batchId, itemsCount, streamKeys, false);
+    }
+
+    /**
+     * Offers a batch taken via {@link #claimBuffer(int)}. Its buffer must be ready to be read.
+     * If there is no room for the batch in memory, it's spilled to disk (if enabled)
+     * @param priority If true, the batch can take the capacity reserved for priority batches
+     * @return false if there is no room for the batch in the queue, so it should be offered later
+     */
+    public boolean offer(BinaryBatch batch, long batchId, int itemsCount, int[] streamKeys, boolean priority) {
+        if (spill == null)
+            return offerToMemory(batch, batchId, itemsCount, streamKeys, priority);
+        // spilled batches are moved back to memory under the same lock,
+        // so a new batch can't get ahead of the last one polled from disk
+        synchronized (spill) {
+            if (spill.isEmpty() && offerToMemory(batch, batchId, itemsCount, streamKeys, priority))
+                return true;
+            if (!spill(batch.data, batchId, itemsCount, streamKeys))
+                return false;
+        }
+        pool.release(batch.data);
+        batch.data = null;
+        return true;
+    }
+
+    private boolean offerToMemory(BinaryBatch batch, long batchId, int itemsCount, int[] streamKeys, boolean priority) {
+        var claimBytes = batch.data.remaining();
+        if (!reserve(claimBytes, priority ? maxSizeBytes : maxRegularSizeBytes))
+            return false;
+        // the batch is written to disk without being read from there, so it keeps its place
+        // among spilled batches in case of a restart. If it doesn't fit, it's kept in memory only
+        if (spill != null)
+            batch.spillPosition = spill.appendPending(header(batchId, itemsCount, streamKeys), batch.data);
+        batch.priority = priority;
+        batch.batchId = batchId;
+        batch.sizeItems = itemsCount;
+        batch.sizeBytes = claimBytes;
+        batch.streamKeys = streamKeys;
+        items.offer(batch);
+        return true;
+    }
+
+    /**
+     * Writes a batch to disk, so it's moved back to memory once there is room for it
+     */
+    private boolean spill(ByteBuffer data, long batchId, int itemsCount, int[] streamKeys) {
+        return spill.append(header(batchId, itemsCount, streamKeys), data) >= 0;
+    }
+
+    /**
+     * Header of a batch on disk: id, items count, and stream keys
+     */
+    private static ByteBuffer header(long batchId, int itemsCount, int[] streamKeys) {
+        var header = ByteBuffer.allocate(16 + streamKeys.length * 4)
+            .putLong(batchId)
+            .putInt(itemsCount)
+            .putInt(streamKeys.length);
+        for (var key : streamKeys)
+            header.putInt(key);
+        return header.flip();
+    }
+
+    /**
+     * Moves spilled batches back to memory while there is room for them
+     */
+    private void unspill() {
+        if (spill == null || !replaySpilled || spill.isEmpty())
+            return;
+        // peek, poll and offer to memory must be atomic for concurrent consumers and producers
+        synchronized (spill) {
+            int recordBytes;
+            while ((recordBytes = spill.peekLength()) > 0 && reserve(recordBytes, maxRegularSizeBytes)) {
+                var batch = new BinaryBatch();
+                batch.data = pool.acquire(recordBytes);
+                batch.spillPosition = spill.poll(record -> {
+                    batch.batchId = record.getLong();
+                    batch.sizeItems = record.getInt();
+                    var streamKeys = new int[record.getInt()];
+                    for (int i = 0; i < streamKeys.length; i++)
+                        streamKeys[i] = record.getInt();
+                    batch.streamKeys = streamKeys.length > 0 ? streamKeys : BinaryBatch.NO_STREAM_KEYS;
+                    batch.data.put(record).flip();
+                });
+                batch.sizeBytes = batch.data.remaining();
+                // the header is not a part of the data
+                sizeBytes.addAndGet(batch.sizeBytes - recordBytes);
+                items.offer(batch);
+            }
+        }
+    }
+
+    private boolean reserve(int claimBytes, long limitBytes) {
+        // several encoders can offer batches concurrently, so the limit check must be atomic
+        long currentSize;
+        do {
+            currentSize = sizeBytes.get();
+            if (currentSize + claimBytes > limitBytes)
+                return false;
+        } while (!sizeBytes.compareAndSet(currentSize, currentSize + claimBytes));
+        return true;
+    }
+
     public BinaryBatch borrowBuffer() {
+        unspill();
         var batch = items.poll();
         if (batch != null)
             sizeBytes.addAndGet(-batch.sizeBytes);
         return batch;
     }
 
+    /**
+     * Borrows the first batch that has no streams in common with currently borrowed batches
+     * and with batches that are ahead of it in the queue.
+     * This way, batches of the same stream are never borrowed concurrently or out of order.
+     * The batch must be returned via {@link #returnBuffer(BinaryBatch)} once it is processed.
+     * @return A batch or null if no batch can be borrowed at the moment
+     */
+    public BinaryBatch borrowBufferOrdered() {
+        unspill();
+        synchronized (borrowedStreams) {
+            HashSet<Integer> skippedStreams = null;
+            var it = items.iterator();
+            while (it.hasNext()) {
+                var batch = it.next();
+                if (!containsAny(borrowedStreams, batch.streamKeys)
+                        && (skippedStreams == null || !containsAny(skippedStreams, batch.streamKeys))) {
+                    it.remove();
+                    for (var key : batch.streamKeys)
+                        borrowedStreams.add(key);
+                    sizeBytes.addAndGet(-batch.sizeBytes);
+                    return batch;
+                }
+                if (skippedStreams == null)
+                    skippedStreams = new HashSet<>();
+                for (var key : batch.streamKeys)
+                    skippedStreams.add(key);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Removes the oldest regular batch waiting in memory, so there is room for newer ones.
+     * Batches on disk and priority batches are never evicted.
+     * The batch must be returned via {@link #returnBuffer(BinaryBatch)}
+     * @return An evicted batch or null if there are no batches to evict
+     */
+    public BinaryBatch evictOldest() {
+        // ordered borrowing iterates over the queue, so it must not see evicted batches
+        synchronized (borrowedStreams) {
+            var it = items.iterator();
+            while (it.hasNext()) {
+                var batch = it.next();
+                if (!batch.priority && items.remove(batch)) {
+                    sizeBytes.addAndGet(-batch.sizeBytes);
+                    // evicted batch was not borrowed, so its streams must not be released on return
+                    batch.streamKeys = BinaryBatch.NO_STREAM_KEYS;
+                    return batch;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static boolean containsAny(HashSet<Integer> set, int[] keys) {
+        for (var key : keys) {
+            if (set.contains(key))
+                return true;
+        }
+        return false;
+    }
+
     public void returnBuffer(BinaryBatch batch) {
-        if (!pool.isEmpty())
-            return;
-        pool.offer(batch);
+        if (batch.streamKeys.length > 0) {
+            synchronized (borrowedStreams) {
+                for (var key : batch.streamKeys)
+                    borrowedStreams.remove(key);
+            }
+            batch.streamKeys = BinaryBatch.NO_STREAM_KEYS;
+        }
+        if (batch.spillPosition >= 0) {
+            spill.ack(batch.spillPosition);
+            batch.spillPosition = -1;
+        }
+        pool.release(batch.data);
+        batch.data = null;
+    }
+
+    /**
+     * Returns a batch that was borrowed but not processed.
+     * If spilling is enabled, the batch is kept on disk at its original place, so it's processed
+     * after a restart in the order it was offered. Otherwise, it's dropped
+     * @return true if the batch is kept on disk
+     */
+    public boolean returnUnprocessed(BinaryBatch batch) {
+        // not acknowledged, so the record stays on disk
+        var kept = batch.spillPosition >= 0;
+        batch.spillPosition = -1;
+        returnBuffer(batch);
+        return kept;
+    }
+
+    /**
+     * Stops moving spilled batches back to memory, so they stay on disk until the next start.
+     * After that, the queue is considered empty once its in-memory part is empty
+     */
+    public void stopReplay() {
+        replaySpilled = false;
+    }
+
+    /**
+     * Flushes spilled batches to disk. Batches that are not returned yet, including the ones
+     * in memory, stay on disk and are recovered after a restart
+     */
+    public void close() {
+        if (spill != null)
+            spill.close();
     }
 
     public long getSizeBytes() {
         return sizeBytes.get();
     }
 
+    /**
+     * Number of bytes kept on disk, i.e. the batches that are not returned yet, including the ones in memory
+     */
+    public long getSpilledBytes() {
+        return spill != null ? spill.sizeBytes() : 0L;
+    }
+
+    /**
+     * Number of items in the batches that are spilled to disk and not moved back to memory yet
+     */
+    public long getSpilledItems() {
+        if (spill == null)
+            return 0L;
+        var count = new long[1];
+        spill.forEachUnread(record -> count[0] += record.getInt(record.position() + 8));
+        return count[0];
+    }
+
     public boolean isEmpty() {
-        return items.isEmpty();
+        return items.isEmpty() && (spill == null || !replaySpilled || spill.isEmpty());
+    }
+
+    public ByteBufferPool bufferPool() {
+        return pool;
     }
 
     int poolSize() {
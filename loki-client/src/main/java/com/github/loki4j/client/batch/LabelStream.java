@@ -0,0 +1,152 @@
+package com.github.loki4j.client.batch;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.loki4j.client.util.StringUtils;
+
+/**
+ * A canonical immutable set of labels identifying a Loki stream.
+ * <p>
+ * Instances are interned via {@link #of(Map)}, so log records with equal labels share
+ * the same instance. Hash code and UTF-8 size are computed once.
+ * <p>
+ * Label stream is a {@link Map}, it's equal to any other map with the same key-value pairs.
+ * Equality check returns early if both streams are the same instance (the common case for
+ * interned streams) or if their cached hash codes differ. Otherwise, e.g. for equal streams
+ * interned before and after the cache was truncated, key-value pairs are compared.
+ */
+public final class LabelStream extends AbstractMap<String, String> {
+
+    /**
+     * Max number of distinct label streams to keep interned.
+     * When the limit is reached, the cache is truncated to zero, see {@link com.github.loki4j.client.util.Cache.BoundAtomicMapCache}
+     */
+    private static final int MAX_INTERNED_STREAMS = 10_000;
+
+    private static final ConcurrentHashMap<Map<String, String>, LabelStream> interned = new ConcurrentHashMap<>();
+
+    private static final AtomicLong idSequence = new AtomicLong(0);
+
+    /**
+     * Unique identifier of this instance.
+     * Note that streams with equal labels could have different ids if the interning cache was truncated in between
+     */
+    public final long id;
+
+    /**
+     * Total size of all label names and values in UTF-8 bytes
+     */
+    public final int utf8SizeBytes;
+
+    private final Entry<String, String>[] entries;
+    private final int hash;
+    private final Set<Entry<String, String>> entrySet = new EntrySet();
+
+    @SuppressWarnings("unchecked")
+    private LabelStream(Map<String, String> labels) {
+        this.id = idSequence.incrementAndGet();
+        this.entries = new Entry[labels.size()];
+        var i = 0;
+        var utf8Size = 0;
+        for (var e : labels.entrySet()) {
+            entries[i++] = new SimpleImmutableEntry<>(e.getKey(), e.getValue());
+            utf8Size += StringUtils.utf8Length(e.getKey());
+            utf8Size += StringUtils.utf8Length(e.getValue());
+        }
+        this.utf8SizeBytes = utf8Size;
+        this.hash = super.hashCode();
+    }
+
+    /**
+     * Returns a canonical label stream for the given labels.
+     * The given map is not retained, so it could be reused afterwards
+     */
+    public static LabelStream of(Map<String, String> labels) {
+        if (labels instanceof LabelStream)
+            return (LabelStream) labels;
+        var stream = interned.get(labels);
+        if (stream != null)
+            return stream;
+        if (interned.size() >= MAX_INTERNED_STREAMS)
+            interned.clear();
+        var created = new LabelStream(labels);
+        stream = interned.putIfAbsent(created, created);
+        return stream != null ? stream : created;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o instanceof LabelStream && ((LabelStream) o).hash != hash)
+            return false;
+        return super.equals(o);
+    }
+
+    @Override
+    public int size() {
+        return entries.length;
+    }
+
+    @Override
+    public String get(Object key) {
+        for (var e : entries) {
+            if (e.getKey().equals(key))
+                return e.getValue();
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        for (var e : entries) {
+            if (e.getKey().equals(key))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return entrySet;
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<String, String>> {
+        @Override
+        public Iterator<Entry<String, String>> iterator() {
+            return new Iterator<Entry<String, String>>() {
+                private int index = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return index < entries.length;
+                }
+
+                @Override
+                public Entry<String, String> next() {
+                    if (index >= entries.length)
+                        throw new NoSuchElementException();
+                    return entries[index++];
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return entries.length;
+        }
+    }
+
+}
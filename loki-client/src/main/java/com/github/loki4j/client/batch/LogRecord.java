@@ -1,16 +1,32 @@
 package com.github.loki4j.client.batch;
 
 import java.util.Map;
+import java.util.function.Supplier;
 
 import com.github.loki4j.client.util.StringUtils;
 
+/**
+ * A log record to be sent to Loki.
+ * <p>
+ * Records created via {@link #create(long, int, Map, String, Map) create()} are never modified.
+ * Records created via {@link #pooled(LogRecordPool.Storage, long, int, Map, String, Map) pooled()}
+ * keep their metadata in a storage borrowed from a {@link LogRecordPool}. The storage is reused
+ * once {@link #release()} is called, so the record must not be accessed afterwards.
+ * <p>
+ * Records created via {@link #deferred(long, int, int, Supplier) deferred()} have only their
+ * timestamp set, the formatted record is created via {@link #format()}, so formatting could be
+ * done on a worker thread.
+ */
 public class LogRecord {
 
     public final long timestampMs;
 
     public final int nanosInMs;
 
-    public final Map<String, String> stream;
+    /**
+     * Canonical (interned) labels of the stream this record belongs to
+     */
+    public final LabelStream stream;
 
     public final int streamUtf8SizeBytes;
 
@@ -22,20 +38,62 @@ public class LogRecord {
 
     public final int metadataUtf8SizeBytes;
 
+    /**
+     * Position of this record in the write-ahead log, or -1 if it's not logged.
+     * Unlike other fields, it's set by the pipeline once the record is accepted
+     */
+    public long walPosition = -1;
+
+    /**
+     * If true, the record is prioritized under backpressure. Set by the pipeline as well
+     */
+    public boolean priority = false;
+
+    /**
+     * Storage of a pooled record that is returned to its pool on {@link #release()},
+     * null for non-pooled records
+     */
+    private final LogRecordPool.Storage storage;
+
+    /**
+     * Creates the formatted version of this record, null if the record is not deferred
+     */
+    private final Supplier<LogRecord> formatter;
+
     private LogRecord(
+            long timestampMs,
+            int nanosInMs,
+            int estimatedSizeBytes,
+            Supplier<LogRecord> formatter) {
+        this.storage = null;
+        this.formatter = formatter;
+        this.timestampMs = timestampMs;
+        this.nanosInMs = nanosInMs;
+        this.stream = null;
+        this.streamUtf8SizeBytes = 0;
+        this.message = null;
+        this.messageUtf8SizeBytes = estimatedSizeBytes;
+        this.metadata = Map.of();
+        this.metadataUtf8SizeBytes = 0;
+    }
+
+    private LogRecord(
+            LogRecordPool.Storage storage,
             long timestampMs,
             int nanosInMs,
             Map<String, String> stream,
             String message,
             Map<String, String> metadata) {
+        this.storage = storage;
+        this.formatter = null;
         this.timestampMs = timestampMs;
         this.nanosInMs = nanosInMs;
 
         this.message = message;
         this.messageUtf8SizeBytes = StringUtils.utf8Length(message);
 
-        this.stream = stream;
-        this.streamUtf8SizeBytes = kvpUtf8SizeBytes(stream);
+        this.stream = LabelStream.of(stream);
+        this.streamUtf8SizeBytes = this.stream.utf8SizeBytes;
 
         this.metadata = metadata;
         this.metadataUtf8SizeBytes = kvpUtf8SizeBytes(metadata);
@@ -47,7 +105,65 @@ public class LogRecord {
             Map<String, String> stream,
             String message,
             Map<String, String> metadata) {
-        return new LogRecord(timestampMs, nanosInMs, stream, message, metadata);
+        return new LogRecord(null, timestampMs, nanosInMs, stream, message, metadata);
+    }
+
+    /**
+     * Creates a record that keeps its key-value pairs in the storage borrowed from a pool.
+     * Stream and metadata can be either the maps of the storage, or any other maps
+     * that are not modified while the record is in use.
+     * The storage is returned to its pool on {@link #release()}
+     */
+    public static LogRecord pooled(
+            LogRecordPool.Storage storage,
+            long timestampMs,
+            int nanosInMs,
+            Map<String, String> stream,
+            String message,
+            Map<String, String> metadata) {
+        return new LogRecord(storage, timestampMs, nanosInMs, stream, message, metadata);
+    }
+
+    /**
+     * Creates a record that is formatted later via {@link #format()}.
+     * Until then, its stream and message are not set
+     * @param estimatedSizeBytes Estimated size of the formatted record, used until the record is formatted
+     * @param formatter Creates the formatted record, it could be called on another thread
+     */
+    public static LogRecord deferred(
+            long timestampMs,
+            int nanosInMs,
+            int estimatedSizeBytes,
+            Supplier<LogRecord> formatter) {
+        return new LogRecord(timestampMs, nanosInMs, estimatedSizeBytes, formatter);
+    }
+
+    public boolean isDeferred() {
+        return formatter != null;
+    }
+
+    /**
+     * Creates the formatted version of a deferred record, the record itself is not changed.
+     * Fields set by the pipeline are carried over
+     */
+    public LogRecord format() {
+        var formatted = formatter.get();
+        formatted.walPosition = walPosition;
+        formatted.priority = priority;
+        return formatted;
+    }
+
+    /**
+     * Returns the storage of a pooled record to its pool, so it can be reused.
+     * Has no effect for non-pooled records
+     */
+    public void release() {
+        if (storage != null)
+            storage.release();
+    }
+
+    public boolean isPooled() {
+        return storage != null;
     }
 
     @Override
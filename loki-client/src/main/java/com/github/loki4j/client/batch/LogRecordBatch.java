@@ -2,6 +2,7 @@ package com.github.loki4j.client.batch;
 
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashSet;
 
 public class LogRecordBatch {
 
@@ -49,6 +50,15 @@ public class LogRecordBatch {
         estimatedSizeBytes = 0;
     }
 
+    /**
+     * Returns pooled records of this batch to their pool.
+     * The batch must be cleared afterwards
+     */
+    public void releaseRecords() {
+        for (int i = 0; i < len; i++)
+            records[i].release();
+    }
+
     public void sort(Comparator<LogRecord> comp) {
         Arrays.sort(records, 0, len, comp);
     }
@@ -87,6 +97,27 @@ public class LogRecordBatch {
         return estimatedSizeBytes;
     }
 
+    /**
+     * Returns distinct hashes of the streams in this batch.
+     * Hash collisions are possible, so the result can be shorter than {@link #streamCount()}
+     */
+    public int[] streamKeys() {
+        var keys = new HashSet<Integer>();
+        for (int i = 0; i < len; i++)
+            keys.add(records[i].stream.hashCode());
+        return keys.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Returns true if at least one record in this batch is prioritized
+     */
+    public boolean hasPriorityRecords() {
+        for (int i = 0; i < len; i++)
+            if (records[i].priority)
+                return true;
+        return false;
+    }
+
     public LogRecord[] toArray() {
         return Arrays.copyOf(records, len);
     }
@@ -0,0 +1,78 @@
+package com.github.loki4j.client.batch;
+
+import java.util.Map;
+
+import com.github.loki4j.client.util.ArrayMap;
+import com.github.loki4j.client.util.MpmcRingBuffer;
+
+/**
+ * A pool of reusable storages for key-value pairs of {@link LogRecord log records}.
+ * <p>
+ * Storages are borrowed by appender threads via {@link #borrow()}, filled in, and passed to
+ * {@link LogRecord#pooled(Storage, long, int, Map, String, Map) LogRecord.pooled()}.
+ * The pipeline returns them via {@link LogRecord#release()} once the records are serialized
+ * or dropped. If the pool is empty, a new storage is created. If the pool is full,
+ * the returned storage is left to GC.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class LogRecordPool {
+
+    /**
+     * Initial number of key-value pairs reserved for stream and metadata of a pooled record
+     */
+    private static final int INITIAL_KVP_CAPACITY = 8;
+
+    private final MpmcRingBuffer<Storage> free;
+
+    /**
+     * @param capacity Max number of storages kept in the pool
+     */
+    public LogRecordPool(int capacity) {
+        this.free = new MpmcRingBuffer<>(capacity);
+    }
+
+    /**
+     * Returns a storage from the pool, or a new one if the pool is empty
+     */
+    public Storage borrow() {
+        var storage = free.poll();
+        return storage != null ? storage : new Storage(this, INITIAL_KVP_CAPACITY);
+    }
+
+    public int size() {
+        return free.size();
+    }
+
+    /**
+     * Reusable maps for stream and metadata key-value pairs of a single record.
+     * They are cleared once the storage is returned to the pool
+     */
+    public static final class Storage {
+
+        private final LogRecordPool pool;
+        private final ArrayMap stream;
+        private final ArrayMap metadata;
+
+        private Storage(LogRecordPool pool, int kvpCapacity) {
+            this.pool = pool;
+            this.stream = new ArrayMap(kvpCapacity);
+            this.metadata = new ArrayMap(kvpCapacity);
+        }
+
+        public Map<String, String> stream() {
+            return stream;
+        }
+
+        public Map<String, String> metadata() {
+            return metadata;
+        }
+
+        void release() {
+            stream.clear();
+            metadata.clear();
+            pool.free.offer(this);
+        }
+    }
+
+}
@@ -0,0 +1,184 @@
+package com.github.loki4j.client.batch;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.github.loki4j.client.util.MappedSegmentLog;
+
+/**
+ * A write-ahead log of accepted log records.
+ * <p>
+ * A record is written to the log once it's accepted, and acknowledged once the batch it belongs to
+ * is sent to Loki. Records that are not acknowledged before a shutdown or a crash are
+ * recovered when the log is opened next time, and could be read via {@link #poll()}.
+ * <p>
+ * Records are serialized as: timestamp, nanos, stream labels, message, metadata.
+ * Strings are stored in UTF-8 prefixed with their length.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class WriteAheadLog implements Closeable {
+
+    private final MappedSegmentLog log;
+
+    /**
+     * Buffer for serializing records. Guarded by this
+     */
+    private ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+    /**
+     * Buffer for deserializing strings. Guarded by this
+     */
+    private byte[] stringBytes = new byte[256];
+
+    public WriteAheadLog(MappedSegmentLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Writes the record to the log and sets its {@link LogRecord#walPosition}.
+     * It's called on the appending thread, so the record is on disk once it's accepted.
+     * Concurrent appends are serialized
+     * @return false if the log is full
+     */
+    public synchronized boolean append(LogRecord record) {
+        buffer.clear();
+        buffer.putLong(record.timestampMs).putInt(record.nanosInMs);
+        putMap(record.stream);
+        putString(record.message);
+        putMap(record.metadata);
+        var position = log.appendPending(buffer.flip());
+        if (position < 0)
+            return false;
+        record.walPosition = position;
+        return true;
+    }
+
+    private void putMap(Map<String, String> map) {
+        ensureCapacity(4);
+        buffer.putInt(map.size());
+        for (var e : map.entrySet()) {
+            putString(e.getKey());
+            putString(e.getValue());
+        }
+    }
+
+    /**
+     * Writes the string in UTF-8 prefixed with its length, unpaired surrogates are replaced with '?'
+     */
+    private void putString(String value) {
+        ensureCapacity(4 + value.length() * 3);
+        var lengthPos = buffer.position();
+        buffer.position(lengthPos + 4);
+        for (int i = 0, len = value.length(); i < len; i++) {
+            char ch = value.charAt(i);
+            if (ch <= 0x7F) {
+                buffer.put((byte) ch);
+            } else if (ch <= 0x7FF) {
+                buffer.put((byte) (0xC0 | (ch >> 6)));
+                buffer.put((byte) (0x80 | (ch & 0x3F)));
+            } else if (Character.isHighSurrogate(ch)
+                    && i + 1 < len
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                var cp = Character.toCodePoint(ch, value.charAt(++i));
+                buffer.put((byte) (0xF0 | (cp >> 18)));
+                buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(ch)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (ch >> 12)));
+                buffer.put((byte) (0x80 | ((ch >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (ch & 0x3F)));
+            }
+        }
+        buffer.putInt(lengthPos, buffer.position() - lengthPos - 4);
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (buffer.remaining() >= bytes)
+            return;
+        var grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+
+    /**
+     * Reads the next record recovered from the log.
+     * It must be acknowledged via {@link #ack(long[])} as any other record
+     * @return A record with its {@link LogRecord#walPosition} set, or null if there are no records to recover
+     */
+    public synchronized LogRecord poll() {
+        var record = new LogRecord[1];
+        var position = log.poll(bb -> {
+            var timestampMs = bb.getLong();
+            var nanosInMs = bb.getInt();
+            var stream = getMap(bb);
+            var message = getString(bb);
+            var metadata = getMap(bb);
+            record[0] = LogRecord.create(timestampMs, nanosInMs, stream, message, metadata);
+        });
+        if (position < 0)
+            return null;
+        record[0].walPosition = position;
+        return record[0];
+    }
+
+    private Map<String, String> getMap(ByteBuffer bb) {
+        var size = bb.getInt();
+        if (size == 0)
+            return Map.of();
+        var map = new LinkedHashMap<String, String>(size * 2);
+        for (int i = 0; i < size; i++)
+            map.put(getString(bb), getString(bb));
+        return map;
+    }
+
+    private String getString(ByteBuffer bb) {
+        var length = bb.getInt();
+        if (stringBytes.length < length)
+            stringBytes = new byte[Math.max(stringBytes.length * 2, length)];
+        bb.get(stringBytes, 0, length);
+        return new String(stringBytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Acknowledges a single record, e.g., if it was dropped
+     */
+    public void ack(long position) {
+        log.ack(position);
+    }
+
+    /**
+     * Acknowledges the records of a batch once it's sent
+     */
+    public void ack(long[] positions) {
+        log.ack(positions);
+    }
+
+    /**
+     * Forces all appended records to be written to the storage device.
+     * Concurrent commits are grouped into one
+     */
+    public void commit() {
+        log.flush();
+    }
+
+    /**
+     * Returns true if there are no records to recover
+     */
+    public boolean isEmpty() {
+        return log.isEmpty();
+    }
+
+    @Override
+    public void close() {
+        log.close();
+    }
+
+}
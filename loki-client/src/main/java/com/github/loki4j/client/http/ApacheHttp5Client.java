@@ -1,20 +1,35 @@
 package com.github.loki4j.client.http;
 
+import java.io.IOException;
+import java.net.URI;
 import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 import org.apache.hc.client5.http.ConnectionKeepAliveStrategy;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleResponseConsumer;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
 import org.apache.hc.client5.http.config.ConnectionConfig;
 import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.HttpClients;
 import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.core5.concurrent.FutureCallback;
 import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.Method;
 import org.apache.hc.core5.http.io.entity.ByteBufferEntity;
 import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.message.BasicHttpRequest;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.nio.DataStreamChannel;
+import org.apache.hc.core5.http.nio.support.BasicRequestProducer;
 import org.apache.hc.core5.http.protocol.HttpContext;
 import org.apache.hc.core5.util.TimeValue;
 
@@ -28,6 +43,12 @@ public final class ApacheHttp5Client implements Loki4jHttpClient {
     private final CloseableHttpClient client;
     private final Supplier<HttpPost> requestBuilder;
 
+    /**
+     * Non-blocking client used by {@link #sendAsync(ByteBuffer)}.
+     * It is created on first use, so the blocking mode does not pay for its I/O reactor
+     */
+    private volatile CloseableHttpAsyncClient asyncClient;
+
     public ApacheHttp5Client(HttpConfig conf) {
         this.conf = conf;
 
@@ -58,15 +79,62 @@ public final class ApacheHttp5Client implements Loki4jHttpClient {
         requestBuilder = () -> {
             var request = new HttpPost(conf.pushUrl);
             request.addHeader(HttpHeader.CONTENT_TYPE, conf.contentType);
+            conf.contentEncoding.ifPresent(encoding -> request.addHeader(HttpHeader.CONTENT_ENCODING, encoding));
             conf.tenantId.ifPresent(tenant -> request.addHeader(HttpHeader.X_SCOPE_ORGID, tenant));
             conf.basicAuthToken().ifPresent(token -> request.setHeader(HttpHeader.AUTHORIZATION, "Basic " + token));
             return request;
         };
     }
 
+    private CloseableHttpAsyncClient getAsyncClient() {
+        var c = asyncClient;
+        if (c == null) {
+            synchronized (this) {
+                c = asyncClient;
+                if (c == null) {
+                    c = createAsyncClient();
+                    c.start();
+                    asyncClient = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    private CloseableHttpAsyncClient createAsyncClient() {
+        var cm = PoolingAsyncClientConnectionManagerBuilder
+                .create()
+                .setMaxConnTotal(conf.apache().maxConnections)
+                .setMaxConnPerRoute(conf.apache().maxConnections)
+                .setDefaultConnectionConfig(ConnectionConfig
+                        .custom()
+                        .setConnectTimeout(conf.connectionTimeoutMs, TimeUnit.MILLISECONDS)
+                        .build())
+                .build();
+
+        return HttpAsyncClients
+                .custom()
+                .setConnectionManager(cm)
+                .setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+                    @Override
+                    public TimeValue getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                        return TimeValue.of(conf.apache().connectionKeepAliveMs, TimeUnit.MILLISECONDS);
+                    }
+                })
+                .setDefaultRequestConfig(RequestConfig
+                        .custom()
+                        .setResponseTimeout(conf.connectionTimeoutMs, TimeUnit.MILLISECONDS)
+                        .setConnectionRequestTimeout(conf.requestTimeoutMs, TimeUnit.MILLISECONDS)
+                        .build())
+                .build();
+    }
+
     @Override
     public void close() throws Exception {
         client.close();
+        var c = asyncClient;
+        if (c != null)
+            c.close();
     }
 
     @Override
@@ -79,8 +147,107 @@ public final class ApacheHttp5Client implements Loki4jHttpClient {
                 response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity())));
     }
 
+    @Override
+    public CompletableFuture<LokiResponse> sendAsync(ByteBuffer batch) {
+        var request = new BasicHttpRequest(Method.POST, URI.create(conf.pushUrl));
+        conf.contentEncoding.ifPresent(encoding -> request.addHeader(HttpHeader.CONTENT_ENCODING, encoding));
+        conf.tenantId.ifPresent(tenant -> request.addHeader(HttpHeader.X_SCOPE_ORGID, tenant));
+        conf.basicAuthToken().ifPresent(token -> request.setHeader(HttpHeader.AUTHORIZATION, "Basic " + token));
+        var requestProducer = new BasicRequestProducer(request, new ByteBufferEntityProducer(batch, conf.contentType));
+
+        var result = new CompletableFuture<LokiResponse>();
+        getAsyncClient().execute(requestProducer, SimpleResponseConsumer.create(), new FutureCallback<SimpleHttpResponse>() {
+            @Override
+            public void completed(SimpleHttpResponse response) {
+                var responseBody = response.getBodyText();
+                result.complete(new LokiResponse(response.getCode(), responseBody == null ? "" : responseBody));
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                result.completeExceptionally(ex);
+            }
+
+            @Override
+            public void cancelled() {
+                result.cancel(false);
+            }
+        });
+        return result;
+    }
+
     @Override
     public HttpConfig getConfig() {
         return conf;
     }
+
+    /**
+     * Streams the batch buffer to the connection without copying it into a byte array.
+     * The buffer is read via a duplicate, so its position is not changed
+     */
+    private static final class ByteBufferEntityProducer implements AsyncEntityProducer {
+
+        private final ByteBuffer content;
+        private final int start;
+        private final String contentType;
+
+        ByteBufferEntityProducer(ByteBuffer batch, String contentType) {
+            this.content = batch.duplicate();
+            this.start = content.position();
+            this.contentType = contentType;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public int available() {
+            return content.remaining();
+        }
+
+        @Override
+        public void produce(DataStreamChannel channel) throws IOException {
+            if (content.hasRemaining())
+                channel.write(content);
+            if (!content.hasRemaining())
+                channel.endStream();
+        }
+
+        @Override
+        public void failed(Exception cause) { }
+
+        @Override
+        public void releaseResources() {
+            // rewind, so the content could be produced again if the request is repeated
+            content.position(start);
+        }
+
+        @Override
+        public long getContentLength() {
+            return content.limit() - start;
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public String getContentEncoding() {
+            // encoding header is set on the request
+            return null;
+        }
+
+        @Override
+        public boolean isChunked() {
+            return false;
+        }
+
+        @Override
+        public Set<String> getTrailerNames() {
+            return null;
+        }
+    }
 }
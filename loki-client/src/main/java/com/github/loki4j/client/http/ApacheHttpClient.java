@@ -56,6 +56,7 @@ public final class ApacheHttpClient implements Loki4jHttpClient {
         requestBuilder = () -> {
             var request = new HttpPost(conf.pushUrl);
             request.addHeader(HttpHeader.CONTENT_TYPE, conf.contentType);
+            conf.contentEncoding.ifPresent(encoding -> request.addHeader(HttpHeader.CONTENT_ENCODING, encoding));
             conf.tenantId.ifPresent(tenant -> request.addHeader(HttpHeader.X_SCOPE_ORGID, tenant));
             conf.basicAuthToken().ifPresent(token -> request.setHeader(HttpHeader.AUTHORIZATION, "Basic " + token));
             return request;
@@ -38,6 +38,11 @@ public class HttpConfig {
      */
     public final String contentType;
 
+    /**
+     * Content-encoding header to send to Loki, if batches are compressed
+     */
+    public final Optional<String> contentEncoding;
+
     /**
      * Username to use for basic auth
      */
@@ -66,6 +71,12 @@ public class HttpConfig {
      */
     public final ClientSpecificConfig clientSpecific;
 
+    /**
+     * If true, HTTP client internals run on virtual threads when supported by the JVM (21+).
+     * Otherwise, platform threads are used
+     */
+    public final boolean useVirtualThreads;
+
     /**
      * A shortcut to preferences specific for {@link ApacheHttpClient ApacheHttpConfig}
      */
@@ -86,17 +97,21 @@ public class HttpConfig {
             long requestTimeoutMs,
             Optional<String> tenantId,
             String contentType,
+            Optional<String> contentEncoding,
             Optional<String> username,
             Optional<String> password,
-            ClientSpecificConfig clientSpecific) {
+            ClientSpecificConfig clientSpecific,
+            boolean useVirtualThreads) {
         this.pushUrl = pushUrl;
         this.connectionTimeoutMs = connectionTimeoutMs;
         this.requestTimeoutMs = requestTimeoutMs;
         this.tenantId = tenantId;
         this.contentType = contentType;
+        this.contentEncoding = contentEncoding;
         this.username = username;
         this.password = password;
         this.clientSpecific = clientSpecific;
+        this.useVirtualThreads = useVirtualThreads;
     }
 
     public static Builder builder() {
@@ -111,9 +126,11 @@ public class HttpConfig {
         private long connectionTimeoutMs = 30_000;
         private long requestTimeoutMs = 5_000;
         private Optional<String> tenantId = Optional.empty();
+        private Optional<String> contentEncoding = Optional.empty();
         private Optional<String> username = Optional.empty();
         private Optional<String> password = Optional.empty();
         private ClientSpecificConfig clientSpecific = java;
+        private boolean useVirtualThreads = false;
 
         public HttpConfig build(String contentType) {
             return new HttpConfig(
@@ -122,9 +139,11 @@ public class HttpConfig {
                 requestTimeoutMs,
                 tenantId,
                 contentType,
+                contentEncoding,
                 username,
                 password,
-                clientSpecific);
+                clientSpecific,
+                useVirtualThreads);
         }
 
         public Builder fill(Consumer<Builder> func) {
@@ -152,6 +171,11 @@ public class HttpConfig {
             return this;
         }
 
+        public Builder setContentEncoding(Optional<String> contentEncoding) {
+            this.contentEncoding = contentEncoding;
+            return this;
+        }
+
         public Builder setUsername(Optional<String> username) {
             this.username = username;
             return this;
@@ -166,6 +190,11 @@ public class HttpConfig {
             this.clientSpecific = clientSpecificConfig;
             return this;
         }
+
+        public Builder setUseVirtualThreads(boolean useVirtualThreads) {
+            this.useVirtualThreads = useVirtualThreads;
+            return this;
+        }
     }
 
     public static interface ClientSpecificConfig { }
@@ -3,6 +3,7 @@ package com.github.loki4j.client.http;
 public class HttpHeader {
     
     public static final String CONTENT_TYPE = "Content-Type";
+    public static final String CONTENT_ENCODING = "Content-Encoding";
     public static final String AUTHORIZATION = "Authorization";
     public static final String X_SCOPE_ORGID = "X-Scope-OrgID";
 
@@ -7,6 +7,7 @@ import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.ByteBuffer;
 import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -35,7 +36,7 @@ public final class JavaHttpClient implements Loki4jHttpClient {
             0, Integer.MAX_VALUE,
             conf.java().innerThreadsExpirationMs, TimeUnit.MILLISECONDS, // expire unused threads after 5 batch intervals
             new SynchronousQueue<Runnable>(),
-            new Loki4jThreadFactory("loki4j-java-http-internal"));
+            new Loki4jThreadFactory("loki4j-java-http-internal", conf.useVirtualThreads));
 
         client = HttpClient
             .newBuilder()
@@ -50,6 +51,7 @@ public final class JavaHttpClient implements Loki4jHttpClient {
             .uri(URI.create(conf.pushUrl))
             .header(HttpHeader.CONTENT_TYPE, conf.contentType);
 
+        conf.contentEncoding.ifPresent(encoding -> requestBuilder.setHeader(HttpHeader.CONTENT_ENCODING, encoding));
         conf.tenantId.ifPresent(tenant -> requestBuilder.setHeader(HttpHeader.X_SCOPE_ORGID, tenant));
         conf.basicAuthToken().ifPresent(token -> requestBuilder.setHeader(HttpHeader.AUTHORIZATION, "Basic " + token));
     }
@@ -61,12 +63,22 @@ public final class JavaHttpClient implements Loki4jHttpClient {
 
     @Override
     public LokiResponse send(ByteBuffer batch) throws Exception {
-        var request = requestBuilder
+        var response = client.send(buildRequest(batch), HttpResponse.BodyHandlers.ofString());
+        return new LokiResponse(response.statusCode(), response.body());
+    }
+
+    @Override
+    public CompletableFuture<LokiResponse> sendAsync(ByteBuffer batch) {
+        return client
+            .sendAsync(buildRequest(batch), HttpResponse.BodyHandlers.ofString())
+            .thenApply(response -> new LokiResponse(response.statusCode(), response.body()));
+    }
+
+    private HttpRequest buildRequest(ByteBuffer batch) {
+        return requestBuilder
             .copy()
             .POST(HttpRequest.BodyPublishers.fromPublisher(new BatchPublisher(batch), batch.remaining()))
             .build();
-        var response = client.send(request, HttpResponse.BodyHandlers.ofString());
-        return new LokiResponse(response.statusCode(), response.body());
     }
 
     @Override
@@ -1,6 +1,7 @@
 package com.github.loki4j.client.http;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Basic interface that all Loki4j HTTP senders must implement.
@@ -20,4 +21,21 @@ public interface Loki4jHttpClient extends AutoCloseable {
      */
     public LokiResponse send(ByteBuffer batch) throws Exception;
 
+    /**
+     * Send a batch to Loki without blocking the calling thread.
+     * The batch buffer must not be modified until the returned future is completed.
+     * <p>
+     * Default implementation falls back to the blocking {@link #send(ByteBuffer)}.
+     *
+     * @return A future that is completed with a response from Loki,
+     * or exceptionally if send was not successful
+     */
+    public default CompletableFuture<LokiResponse> sendAsync(ByteBuffer batch) {
+        try {
+            return CompletableFuture.completedFuture(send(batch));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
 }
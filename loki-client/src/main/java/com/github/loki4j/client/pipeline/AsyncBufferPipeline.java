@@ -2,30 +2,45 @@ package com.github.loki4j.client.pipeline;
 
 import java.net.ConnectException;
 import java.net.http.HttpTimeoutException;
+import java.nio.file.Paths;
 import java.util.Comparator;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.LockSupport;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import com.github.loki4j.client.batch.Batcher;
 import com.github.loki4j.client.batch.BinaryBatch;
 import com.github.loki4j.client.batch.ByteBufferQueue;
 import com.github.loki4j.client.batch.LogRecord;
 import com.github.loki4j.client.batch.LogRecordBatch;
+import com.github.loki4j.client.batch.WriteAheadLog;
 import com.github.loki4j.client.http.HttpStatus;
 import com.github.loki4j.client.http.Loki4jHttpClient;
 import com.github.loki4j.client.http.LokiResponse;
 import com.github.loki4j.client.util.ByteBufferFactory;
+import com.github.loki4j.client.util.ConcurrentBuffer;
 import com.github.loki4j.client.util.Loki4jLogger;
 import com.github.loki4j.client.util.Loki4jThreadFactory;
+import com.github.loki4j.client.util.MappedSegmentLog;
+import com.github.loki4j.client.util.MpscRingBuffer;
+import com.github.loki4j.client.util.StripedRingBuffer;
+import com.github.loki4j.client.util.WaitStrategy;
+import com.github.loki4j.client.writer.GzipWriter;
 import com.github.loki4j.client.writer.Writer;
 
 import static com.github.loki4j.client.util.StringUtils.bytesAsBase64String;
@@ -36,40 +51,115 @@ public final class AsyncBufferPipeline {
     /**
      * Comparator used for sorting the bath, i.e., to group records by stream
      */
-    private static final Comparator<LogRecord> compareByStream = (e1, e2) ->
-        Long.compare(e1.stream.hashCode(), e2.stream.hashCode());
+    private static final Comparator<LogRecord> compareByStream = (e1, e2) -> {
+        var c = Integer.compare(e1.stream.hashCode(), e2.stream.hashCode());
+        return c != 0 ? c : Long.compare(e1.stream.id, e2.stream.id);
+    };
 
     /**
-     * Thread-safe buffer to store incoming log records before they are batched (append -> encode)
+     * Comparator used for merging the stripes of the buffer, i.e., to keep records in time order
      */
-    private final ConcurrentLinkedQueue<LogRecord> buffer = new ConcurrentLinkedQueue<>();
+    private static final Comparator<LogRecord> compareByTimestamp = (e1, e2) -> {
+        var c = Long.compare(e1.timestampMs, e2.timestampMs);
+        return c != 0 ? c : Integer.compare(e1.nanosInMs, e2.nanosInMs);
+    };
+
+    /**
+     * Estimated memory taken by a buffered record besides its message and metadata,
+     * i.e., the record itself, string and map headers. Stream labels are shared between records
+     */
+    private static final int RECORD_OVERHEAD_BYTES = 64;
+
+    /**
+     * Encoders that run the encode step in parallel, each in its own thread.
+     * Log records are distributed across encoders by stream, so all records of a stream
+     * are always batched by the same encoder
+     */
+    private final Encoder[] encoders;
+
+    /**
+     * Senders that run the send step in parallel, each in its own thread.
+     * Batches sharing a stream are never sent concurrently, so the order of records within
+     * a stream is preserved
+     */
+    private final Sender[] senders;
+
+    /**
+     * See {@link PipelineConfig#asyncSends}
+     */
+    private final boolean asyncSends;
+
+    /**
+     * If true, batches sharing a stream should not be sent concurrently
+     */
+    private final boolean orderedSends;
+
+    /**
+     * Limits the number of batches being sent concurrently in async mode.
+     * A permit is acquired before a batch is borrowed for send and released when the send is completed
+     */
+    private final Semaphore asyncSendPermits;
+
+    /**
+     * Number of batches being sent in async mode.
+     * Unlike {@link #asyncSendPermits}, it does not count a permit held by an idle sender
+     */
+    private final AtomicInteger asyncSendsInFlight = new AtomicInteger(0);
+
+    private final int maxConcurrentSends;
+    private final boolean useVirtualThreads;
+    private final long minRetryBackoffMs;
+    private final long maxRetryBackoffMs;
 
     /**
      * Configurable timeout to park a thread for during one iteration of waiting
      */
     private final long parkTimeoutNs;
 
+    /**
+     * Timeout for waiting on idle encoders and senders.
+     * Signalling wait strategies are woken up by producers, so for them it's only a safety net
+     */
+    private final long idleWaitNs;
+
+    /**
+     * Senders wait on this strategy until a new batch could be borrowed from {@link #sendQueue}
+     */
+    private final WaitStrategy senderWait;
+
+    /**
+     * Incremented each time a batch becomes available for borrowing from {@link #sendQueue}.
+     * Senders use it to detect changes, as the queue could be non-empty while all its batches
+     * are blocked by ordered borrowing
+     */
+    private final AtomicLong sendQueueVersion = new AtomicLong(0);
+
+    /**
+     * See {@link PipelineConfig#batchTargetLatencyMs}
+     */
+    private final long batchTargetLatencyMs;
+
+    /**
+     * Exponentially weighted moving average of successful send latency in microseconds.
+     * Used for adaptive batching only
+     */
+    private final AtomicLong sendLatencyAvgUs = new AtomicLong(0);
+
     /**
      * A queue for outgoing encoded batches (encode -> send)
      */
     private final ByteBufferQueue sendQueue;
 
     /**
-     * Batcher is responsible for accumulating log records according to configured batching rules.
-     * It is used on encoding step
+     * Allocates buffers of the send queue, on-heap or off-heap
      */
-    private final Batcher batcher;
+    private final ByteBufferFactory bufferFactory;
 
     /**
      * Used on encode step to order log records in the batch before serializing them
      */
     private final Optional<Comparator<LogRecord>> recordComparator;
 
-    /**
-     * Used on encode step to serialize (encode) log records into binary data
-     */
-    private final Writer writer;
-
     /**
      * HTTP client to use for pushing logs to Loki
      */
@@ -82,8 +172,6 @@ public final class AsyncBufferPipeline {
 
     private final Loki4jLogger log;
 
-    private final ExponentialBackoff backoffMs;
-
     private final Jitter jitterMs;
 
     /**
@@ -95,6 +183,34 @@ public final class AsyncBufferPipeline {
      */
     private final int maxRetries;
 
+    /**
+     * If true, retriable errors don't exhaust {@link #maxRetries} until the pipeline is stopping,
+     * as batches are kept on disk in case of shutdown. See {@link PipelineConfig#spillDir}
+     */
+    private final boolean retryUntilRecovered;
+
+    /**
+     * Write-ahead log of accepted records, or null if it's disabled. See {@link PipelineConfig#walDir}
+     */
+    private final WriteAheadLog wal;
+
+    /**
+     * If true, the write-ahead log is forced to disk before each batch is sent.
+     * See {@link PipelineConfig#walFsync}
+     */
+    private final boolean walCommitEachBatch;
+
+    /**
+     * If greater than 0, the write-ahead log is forced to disk with this interval.
+     * See {@link PipelineConfig#walFsync}
+     */
+    private final long walFsyncIntervalMs;
+
+    /**
+     * This flag is true while records recovered from the write-ahead log are being replayed
+     */
+    private volatile boolean isReplayRunning = false;
+
     /**
      * Disables retries of batches that Loki responds to with a 429 status code (TooManyRequests).
      * This reduces impacts on batches from other tenants, which could end up being delayed or dropped
@@ -114,72 +230,177 @@ public final class AsyncBufferPipeline {
     private volatile boolean isStopping = false;
 
     /**
-     * This flag is true when encode step is running.
-     * It is used in {@link #waitPipelineIsEmpty(long)} to track if encoding is still running while the {@link buffer} is empty
+     * Number of encoders blocked because {@link #sendQueue} is full and unable to accept more batches.
+     * While it's greater than 0, the append step stops accepting new log records, they are dropped instead.
+     * Each encoder is counted once until it puts its batch into the queue, so encoders that are not
+     * blocked don't lift the backpressure set by others.
+     * <p>
+     * This is a backpressure mechanism between send and append to prevent OOMs when too many records got stuck in buffers
      */
-    private volatile boolean isEncodeRunning = false;
+    private final AtomicInteger blockedEncoders = new AtomicInteger(0);
+
     /**
-     * This flag is true when send step is running.
-     * It is used in {@link #waitPipelineIsEmpty(long)} to track if sending is still running while the {@link #sendQueue} is empty
+     * Log levels of the records that are still accepted when {@link #blockedEncoders} is greater than 0.
+     * See {@link PipelineConfig#priorityLevels}
      */
-    private volatile boolean isSendRunning = false;
+    private final Set<String> priorityLevels;
 
     /**
-     * When {@link #sendQueue} is full and unable to accept more batches, this flag is set to false.
-     * This signals the append step to stop accepting new log records, they are dropped instead.
-     * <p>
-     * This is a backpressure mechanism between send and append to prevent OOMs when too many records got stuck in buffers
+     * See {@link PipelineConfig#priorityReservedItems}
      */
-    private AtomicBoolean acceptNewEvents = new AtomicBoolean(true);
+    private final int priorityReservedItems;
 
     /**
-     * Periodically is set to true by {@link #drainScheduledFuture} to check whether a batch should be cut
-     * by time elapsed since the last send (tracked in {@link #lastSendTimeMs}).
-     * <p>
-     * When {@link #stop()} is called, depending on {@link #drainOnStop} a drain can also be requested.
-     * <p>
-     * Drain means the batch is send as is, even if it's not fully packed with log records.
-     * This flag is used on encode step
+     * Number of prioritized records accepted since the first encoder was blocked, see {@link #blockedEncoders}.
+     * Once it exceeds {@link #priorityReservedItems}, prioritized records are dropped as well
+     */
+    private final AtomicInteger priorityBackpressureItems = new AtomicInteger(0);
+
+    /**
+     * See {@link PipelineConfig#overflowPolicy}
+     */
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * See {@link PipelineConfig#overflowBlockTimeoutMs}
      */
-    private AtomicBoolean drainRequested = new AtomicBoolean(false);
+    private final long overflowBlockTimeoutNs;
 
     /**
-     * Tracks when the last send operation was completed.
-     * It is used for draining on encode step
+     * Occupancy of the send queue as a fraction, see {@link PipelineConfig#overflowSampleThreshold}
      */
-    private AtomicLong lastSendTimeMs = new AtomicLong(System.currentTimeMillis());
+    private final double overflowSampleThreshold;
+
+    /**
+     * See {@link PipelineConfig#sendQueueMaxBytes}
+     */
+    private final long sendQueueMaxBytes;
+
+    /**
+     * If true, deferred records are formatted by the encoder rather than on append.
+     * It's only possible with a single encoder, as records are routed to encoders by stream,
+     * and without the write-ahead log, as it persists formatted records.
+     * See {@link LogRecord#deferred(long, int, int, Supplier)}
+     */
+    private final boolean deferredFormatting;
 
     /**
      * This is used for metrics only.
      */
     private AtomicLong unsentEvents = new AtomicLong(0L);
 
+    /**
+     * Runs delayed retries of async sends. Batch timeouts are tracked by encoders themselves
+     */
     private ScheduledExecutorService scheduler;
     private ExecutorService encoderThreadPool;
     private ExecutorService senderThreadPool;
 
-    private ScheduledFuture<?> drainScheduledFuture;
-
     public AsyncBufferPipeline(PipelineConfig conf) {
         Optional<Comparator<LogRecord>> logRecordComparator = conf.staticLabels
             ? Optional.empty()
             : Optional.of(compareByStream);
 
-        ByteBufferFactory bufferFactory = new ByteBufferFactory(conf.useDirectBuffers);
-
-        batcher = new Batcher(conf.batchMaxItems, conf.batchMaxBytes, conf.batchTimeoutMs);
+        bufferFactory = new ByteBufferFactory(conf.useDirectBuffers);
+
+        priorityLevels = Stream.of(conf.priorityLevels.split(","))
+            .map(String::trim)
+            .filter(l -> !l.isEmpty())
+            .collect(Collectors.toUnmodifiableSet());
+        priorityReservedItems = priorityLevels.isEmpty() ? 0 : conf.priorityReservedItems;
+
+        encoders = new Encoder[Math.max(1, conf.encoderThreads)];
+        // max items limit is split evenly between encoders
+        var bufferMaxItems = conf.bufferMaxItems > 0 ? Math.max(1, conf.bufferMaxItems / encoders.length) : 0;
+        var bufferReservedItems = Math.max(0, Math.min(priorityReservedItems / encoders.length, bufferMaxItems / 2));
+        // so is max bytes limit
+        var bufferMaxBytes = conf.bufferMaxBytes > 0 ? Math.max(1, conf.bufferMaxBytes / encoders.length) : Long.MAX_VALUE;
+        var bufferReservedBytes = bufferMaxBytes < Long.MAX_VALUE && !priorityLevels.isEmpty()
+            ? Math.max(0, Math.min(conf.priorityReservedBytes / encoders.length, bufferMaxBytes / 2))
+            : 0;
+        for (int i = 0; i < encoders.length; i++) {
+            encoders[i] = new Encoder(
+                createBuffer(conf, bufferMaxItems),
+                bufferMaxItems > 0 && bufferReservedItems > 0 ? bufferMaxItems - bufferReservedItems : Integer.MAX_VALUE,
+                bufferMaxBytes,
+                bufferMaxBytes - bufferReservedBytes,
+                new Batcher(conf.batchMaxItems, conf.batchMaxBytes, conf.batchTimeoutMs),
+                createWriter(conf, bufferFactory),
+                WaitStrategy.of(conf.waitStrategy));
+        }
         recordComparator = logRecordComparator;
-        writer = conf.writerFactory.factory.apply(conf.batchMaxBytes, bufferFactory);
-        sendQueue = new ByteBufferQueue(conf.sendQueueMaxBytes, bufferFactory);
+        sendQueue = new ByteBufferQueue(
+            conf.sendQueueMaxBytes,
+            priorityLevels.isEmpty() ? 0L : conf.priorityReservedBytes,
+            bufferFactory,
+            createSpill(conf));
+        sendQueueMaxBytes = conf.sendQueueMaxBytes;
+        overflowPolicy = conf.overflowPolicy;
+        overflowBlockTimeoutNs = TimeUnit.MILLISECONDS.toNanos(conf.overflowBlockTimeoutMs);
+        overflowSampleThreshold = conf.overflowSampleThreshold / 100.0;
+        // batches spilled before the restart are going to be sent as well
+        unsentEvents.set(sendQueue.getSpilledItems());
+        wal = conf.walDir != null
+            ? new WriteAheadLog(new MappedSegmentLog(Paths.get(conf.walDir), conf.walSegmentBytes, conf.walMaxBytes))
+            : null;
+        walCommitEachBatch = conf.walFsync.equals("batch");
+        walFsyncIntervalMs = conf.walFsync.equals("interval") ? conf.walFsyncIntervalMs : 0;
+        retryUntilRecovered = conf.spillDir != null || conf.walDir != null;
+        deferredFormatting = encoders.length == 1 && wal == null;
         httpClient = conf.httpClientFactory.apply(conf.httpConfig);
-        backoffMs = new ExponentialBackoff(conf.minRetryBackoffMs, conf.maxRetryBackoffMs);
+        maxConcurrentSends = Math.max(1, conf.maxConcurrentSends);
+        asyncSends = conf.asyncSends;
+        useVirtualThreads = conf.useVirtualThreads;
+        orderedSends = maxConcurrentSends > 1;
+        asyncSendPermits = new Semaphore(maxConcurrentSends);
+        minRetryBackoffMs = conf.minRetryBackoffMs;
+        maxRetryBackoffMs = conf.maxRetryBackoffMs;
+        // in async mode a single thread is enough to keep all the sends in flight
+        senders = new Sender[asyncSends ? 1 : maxConcurrentSends];
+        for (int i = 0; i < senders.length; i++)
+            senders[i] = new Sender(new ExponentialBackoff(conf.minRetryBackoffMs, conf.maxRetryBackoffMs));
         jitterMs = new Jitter(conf.maxRetryJitterMs);
         drainOnStop = conf.drainOnStop;
         maxRetries = conf.maxRetries;
         dropRateLimitedBatches = conf.dropRateLimitedBatches;
         parkTimeoutNs = TimeUnit.MILLISECONDS.toNanos(conf.internalQueuesCheckTimeoutMs);
+        batchTargetLatencyMs = conf.batchTargetLatencyMs;
+        senderWait = WaitStrategy.of(conf.waitStrategy);
+        idleWaitNs = senderWait.isSignalling()
+            ? Math.max(parkTimeoutNs, TimeUnit.SECONDS.toNanos(1))
+            : parkTimeoutNs;
         this.log = conf.internalLoggingFactory.apply(this);
-        this.metrics = conf.metricsEnabled ? new Loki4jMetrics(conf.name, () -> unsentEvents.get()) : null;
+        this.metrics = conf.metricsEnabled ? new Loki4jMetrics(conf.name, () -> unsentEvents.get(), sendQueue) : null;
+    }
+
+    /**
+     * Creates a buffer for a single encoder, unbounded if max items is 0
+     */
+    private static ConcurrentBuffer<LogRecord> createBuffer(PipelineConfig conf, int maxItems) {
+        if (maxItems <= 0)
+            return ConcurrentBuffer.unbounded();
+        if (conf.bufferStripes > 1)
+            return new StripedRingBuffer<>(conf.bufferStripes, maxItems, compareByTimestamp);
+        return new MpscRingBuffer<>(maxItems);
+    }
+
+    /**
+     * Creates a writer for a single encoder, wrapped into a compressing writer if compression is enabled
+     */
+    private static Writer createWriter(PipelineConfig conf, ByteBufferFactory bufferFactory) {
+        var writer = conf.writerFactory.factory.apply(conf.batchMaxBytes, bufferFactory);
+        if (conf.compression.equals("gzip"))
+            return new GzipWriter(writer, conf.batchMaxBytes, conf.compressionLevel, bufferFactory);
+        return writer;
+    }
+
+    /**
+     * Opens the disk spill of the send queue, if enabled
+     */
+    private static MappedSegmentLog createSpill(PipelineConfig conf) {
+        if (conf.spillDir == null)
+            return null;
+        return new MappedSegmentLog(Paths.get(conf.spillDir), conf.spillSegmentBytes, conf.spillMaxBytes);
     }
 
     public void start() {
@@ -188,18 +409,28 @@ public final class AsyncBufferPipeline {
         isStopping = false;
         started = true;
 
-        senderThreadPool = Executors.newFixedThreadPool(1, new Loki4jThreadFactory("loki4j-sender"));
-        senderThreadPool.execute(() -> runSendLoop());
+        var senderThreadFactory = new Loki4jThreadFactory("loki4j-sender", useVirtualThreads);
+        if (useVirtualThreads && !senderThreadFactory.isVirtual())
+            log.warn("Virtual threads are not supported by this JVM, falling back to platform threads");
+        senderThreadPool = Executors.newFixedThreadPool(senders.length, senderThreadFactory);
+        for (var sender : senders)
+            senderThreadPool.execute(() -> {
+                if (asyncSends) sender.runAsyncSendLoop();
+                else sender.runSendLoop();
+            });
 
-        encoderThreadPool = Executors.newFixedThreadPool(1, new Loki4jThreadFactory("loki4j-encoder"));
-        encoderThreadPool.execute(() -> runEncodeLoop());
+        encoderThreadPool = Executors.newFixedThreadPool(encoders.length, new Loki4jThreadFactory("loki4j-encoder"));
+        for (var encoder : encoders)
+            encoderThreadPool.execute(() -> encoder.runEncodeLoop());
 
         scheduler = Executors.newScheduledThreadPool(1, new Loki4jThreadFactory("loki4j-scheduler"));
-        drainScheduledFuture = scheduler.scheduleAtFixedRate(
-            () -> drain(),
-            100,
-            100,
-            TimeUnit.MILLISECONDS);
+
+        if (wal != null && walFsyncIntervalMs > 0)
+            scheduler.scheduleWithFixedDelay(wal::commit, walFsyncIntervalMs, walFsyncIntervalMs, TimeUnit.MILLISECONDS);
+        if (wal != null && !wal.isEmpty()) {
+            isReplayRunning = true;
+            new Loki4jThreadFactory("loki4j-wal-replay").newThread(this::replayWal).start();
+        }
 
         log.trace("Pipeline started");
     }
@@ -208,38 +439,69 @@ public final class AsyncBufferPipeline {
         log.trace("Pipeline is stopping...");
 
         isStopping = true;
-
-        drainScheduledFuture.cancel(false);
+        // spilled batches stay on disk until the next start
+        sendQueue.stopReplay();
 
         if (drainOnStop) {
             log.info("Pipeline is draining...");
             waitPipelineIsEmpty(Long.MAX_VALUE);
-            lastSendTimeMs.set(0);
             drain();
             waitPipelineIsEmpty(Long.MAX_VALUE);
             log.info("Drain completed");
         }
 
         started = false;
+        for (var encoder : encoders)
+            encoder.waitStrategy.signal();
+        senderWait.signal();
 
         scheduler.shutdown();
         encoderThreadPool.shutdown();
         senderThreadPool.shutdown();
+        // batches in flight are completed before the send queue is closed
+        waitAsyncSendsCompleted(httpClient.getConfig().requestTimeoutMs);
 
         try {
             httpClient.close();
         } catch (Exception e) {
             log.error(e, "Error while closing HttpClient");
         }
+        sendQueue.close();
+        if (wal != null)
+            wal.close();
 
         log.trace("Pipeline stopped");
     }
 
+    /**
+     * Puts the records recovered from the write-ahead log into encoder buffers.
+     * Records that are not replayed before the pipeline is stopped stay in the log
+     */
+    private void replayWal() {
+        var replayed = 0;
+        try {
+            LogRecord record;
+            while (started && (record = wal.poll()) != null) {
+                var encoder = encoderFor(record);
+                while (started && !encoder.offerWithinLimit(record, Long.MAX_VALUE))
+                    LockSupport.parkNanos(this, parkTimeoutNs);
+                encoder.waitStrategy.signal();
+                unsentEvents.incrementAndGet();
+                replayed++;
+            }
+            log.info("Replayed %s records from the write-ahead log", replayed);
+        } catch (Exception e) {
+            log.error(e, "Error while replaying the write-ahead log");
+        } finally {
+            isReplayRunning = false;
+        }
+    }
+
     public void waitPipelineIsEmpty(long timeoutMs) {
         var timeoutNs = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
         var elapsedNs = 0L;
         while(started
-                && (drainRequested.get() || !buffer.isEmpty() || isEncodeRunning || !sendQueue.isEmpty() || isSendRunning)
+                && (isEncodeInProgress() || !sendQueue.isEmpty() || isSendInProgress())
                 && elapsedNs < timeoutNs) {
             LockSupport.parkNanos(parkTimeoutNs);
             elapsedNs += parkTimeoutNs;
@@ -251,182 +513,272 @@ public final class AsyncBufferPipeline {
     }
 
     public boolean append(Supplier<LogRecord> recordSupplier) {
+        return append(recordSupplier, null);
+    }
+
+    /**
+     * @param level Log level of the record, records of {@link #priorityLevels} are dropped last
+     * under backpressure. Could be null
+     */
+    public boolean append(Supplier<LogRecord> recordSupplier, String level) {
         var startedNs = System.nanoTime();
+        var priority = level != null && priorityLevels.contains(level);
         boolean accepted = false;
-        if (acceptNewEvents.get()) {
+        if (isAccepting(priority, startedNs)) {
             LogRecord record = null;
             try {
                 record = recordSupplier.get();
+                if (record != null && record.isDeferred() && !deferredFormatting)
+                    record = record.format();
             } catch (Exception e) {
                 log.error(e, "Error occurred while appending an event");
                 if (metrics != null) metrics.appendFailed(() -> e.getClass().getSimpleName());
+                record = null;
                 accepted = true;
             }
-            if (record != null && batcher.validateLogRecordSize(record)) {
-                buffer.offer(record);
-                unsentEvents.incrementAndGet();
-                accepted = true;
-                log.trace("Log record was accepted for sending: %s", record);
+            var encoder = record != null ? encoderFor(record) : null;
+            // size of a deferred record is validated once it's formatted
+            if (record != null && (record.isDeferred() || encoder.batcher.validateLogRecordSize(record))) {
+                record.priority = priority;
+                // pooled record can be recycled as soon as it's offered, so trace it beforehand
+                log.trace("Log record is being offered for sending: %s", record);
+                if (wal != null && !wal.append(record)) {
+                    record.release();
+                } else if (offerToEncoder(encoder, record, startedNs)) {
+                    encoder.waitStrategy.signal();
+                    unsentEvents.incrementAndGet();
+                    accepted = true;
+                } else {
+                    if (wal != null) wal.ack(record.walPosition);
+                    record.release();
+                }
             } else if (record != null) {
                 log.warn("Dropping the record that exceeds max batch size: %s", record);
+                record.release();
             }
         }
         if (metrics != null)
-            metrics.eventAppended(startedNs, !accepted);
+            metrics.eventAppended(startedNs, !accepted, level);
         return accepted;
     }
 
-    private void drain() {
-        drainRequested.set(true);
-        log.trace("Drain planned");
+    /**
+     * Checks if a new record could be accepted according to the {@link #overflowPolicy}.
+     * Under backpressure, prioritized records are still accepted while there is reserved capacity
+     */
+    private boolean isAccepting(boolean priority, long startedNs) {
+        if (overflowPolicy == OverflowPolicy.SAMPLE && !priority && isSampledOut()) {
+            if (metrics != null) metrics.eventSampledOut();
+            return false;
+        }
+        if (canAccept(priority))
+            return true;
+        if (overflowPolicy != OverflowPolicy.BLOCK)
+            return false;
+        while (!canAccept(priority) && !isStopping && System.nanoTime() - startedNs < overflowBlockTimeoutNs)
+            LockSupport.parkNanos(this, parkTimeoutNs);
+        if (metrics != null) metrics.appendBlocked(startedNs);
+        return canAccept(priority);
     }
 
-    private void runEncodeLoop() {
-        var batch = new LogRecordBatch(batcher.getCapacity());
-        while (started) {
-            try {
-                while (started && buffer.isEmpty() && !drainRequested.get()) {
-                    LockSupport.parkNanos(this, parkTimeoutNs);
-                }
-                if (!started) return;
-                isEncodeRunning = true;
-                encodeStep(batch);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                return;
-            } finally {
-                isEncodeRunning = false;
-            }
-        }
+    private boolean canAccept(boolean priority) {
+        return !isBackpressured() || priority && priorityBackpressureItems.get() < priorityReservedItems;
     }
 
-    private void runSendLoop() {
-        while (started) {
-            try {
-                BinaryBatch batch = sendQueue.borrowBuffer();
-                while(started && batch == null) {
-                    LockSupport.parkNanos(this, parkTimeoutNs);
-                    batch = sendQueue.borrowBuffer();
-                }
-                if (!started) return;
-                isSendRunning = true;
-                sendStep(batch);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                return;
-            } finally {
-                isSendRunning = false;
-            }
-        }
+    private boolean isBackpressured() {
+        return blockedEncoders.get() > 0;
+    }
+
+    /**
+     * Random early drop: the probability to drop a record grows linearly
+     * from 0 at the threshold to 1 for the full send queue
+     */
+    private boolean isSampledOut() {
+        var occupancy = (double) sendQueue.getSizeBytes() / sendQueueMaxBytes;
+        if (occupancy <= overflowSampleThreshold)
+            return false;
+        var dropProbability = (occupancy - overflowSampleThreshold) / (1 - overflowSampleThreshold);
+        return ThreadLocalRandom.current().nextDouble() < dropProbability;
     }
 
-    private void encodeStep(LogRecordBatch batch) throws InterruptedException {
-        log.trace("Checking encode actions...");
-        LogRecord record = buffer.peek();
-        while(record != null && batch.isEmpty()) {
-            batcher.checkSizeBeforeAdd(record, batch);
-            if (batch.isEmpty()) batcher.add(buffer.remove(), batch);
-            if (batch.isEmpty()) record = buffer.peek();
+    /**
+     * Offers the record to the encoder's buffer. If the buffer is full, the caller could be blocked
+     * according to the {@link #overflowPolicy}
+     */
+    private boolean offerToEncoder(Encoder encoder, LogRecord record, long startedNs) {
+        if (encoder.offer(record))
+            return true;
+        if (overflowPolicy != OverflowPolicy.BLOCK)
+            return false;
+        var offered = false;
+        while (!offered && !isStopping && System.nanoTime() - startedNs < overflowBlockTimeoutNs) {
+            LockSupport.parkNanos(this, parkTimeoutNs);
+            offered = encoder.offer(record);
         }
+        if (metrics != null) metrics.appendBlocked(startedNs);
+        return offered;
+    }
 
-        if (batch.isEmpty() && drainRequested.get()) {
-            batcher.drain(lastSendTimeMs.get(), batch);
-            log.trace("Draining %s remained log records for encode", batch.size());
+    /**
+     * Drops the oldest batch waiting in the send queue to make room for a newer one
+     * @return false if there is no batch to drop
+     */
+    private boolean evictOldestBatch() {
+        var evicted = sendQueue.evictOldest();
+        if (evicted == null)
+            return false;
+        log.trace("Batch %s is dropped from the send queue to make room for newer batches", evicted);
+        unsentEvents.addAndGet(-evicted.sizeItems);
+        if (wal != null) wal.ack(evicted.walPositions);
+        if (metrics != null) metrics.eventsEvicted(evicted.sizeItems);
+        sendQueue.returnBuffer(evicted);
+        return true;
+    }
+
+    private static long estimateBufferedBytes(LogRecord record) {
+        return record.messageUtf8SizeBytes + record.metadataUtf8SizeBytes + RECORD_OVERHEAD_BYTES;
+    }
+
+    /**
+     * Selects an encoder for the given record based on its stream
+     */
+    private Encoder encoderFor(LogRecord record) {
+        if (encoders.length == 1)
+            return encoders[0];
+        return encoders[Math.floorMod(record.stream.hashCode(), encoders.length)];
+    }
+
+    private boolean isEncodeInProgress() {
+        if (isReplayRunning)
+            return true;
+        for (var encoder : encoders) {
+            if (encoder.drainRequested.get()
+                    || !encoder.buffer.isEmpty()
+                    || encoder.hasDrainedRecords
+                    || encoder.isEncodeRunning)
+                return true;
         }
-        if (batch.isEmpty()) {
-            drainRequested.set(false);
-            return;
+        return false;
+    }
+
+    private boolean isSendInProgress() {
+        for (var sender : senders) {
+            if (sender.isSendRunning)
+                return true;
         }
+        return asyncSendsInFlight.get() > 0;
+    }
 
-        writeBatch(batch, writer);
-        if (writer.isEmpty()) {
-            drainRequested.set(false);
+    private void waitAsyncSendsCompleted(long timeoutMs) {
+        var timeoutNs = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        var startedNs = System.nanoTime();
+        while (asyncSendsInFlight.get() > 0 && System.nanoTime() - startedNs < timeoutNs)
+            LockSupport.parkNanos(parkTimeoutNs);
+        if (asyncSendsInFlight.get() > 0)
+            log.warn("%s async sends are still in flight after %s ms", asyncSendsInFlight.get(), timeoutMs);
+    }
+
+    /**
+     * Encoders blocked on a full send queue are woken up once a batch leaves it,
+     * instead of waiting for the rest of the park timeout
+     */
+    private void wakeBlockedEncoders() {
+        if (!isBackpressured())
             return;
+        for (var encoder : encoders) {
+            var thread = encoder.thread;
+            if (thread != null)
+                LockSupport.unpark(thread);
         }
-        while(started &&
-                !sendQueue.offer(
-                    batch.batchId(),
-                    batch.size(),
-                    writer.size(),
-                    b -> writer.toByteBuffer(b))) {
-            acceptNewEvents.set(false);
-            LockSupport.parkNanos(this, parkTimeoutNs);
+    }
+
+    private void drain() {
+        for (var encoder : encoders) {
+            encoder.drainRequested.set(true);
+            encoder.waitStrategy.signal();
         }
-        batch.clear();
-        acceptNewEvents.set(true);
-        drainRequested.set(false);
+        log.trace("Drain planned");
+    }
+
+    /**
+     * Updates the average send latency, each new sample has weight of 1/8
+     */
+    private void recordSendLatency(long startedNs) {
+        var sampleUs = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startedNs);
+        sendLatencyAvgUs.updateAndGet(avg -> avg == 0 ? sampleUs : avg + (sampleUs - avg) / 8);
+    }
+
+    private void signalSenders() {
+        sendQueueVersion.incrementAndGet();
+        senderWait.signal();
     }
 
-    private void writeBatch(LogRecordBatch batch, Writer writer) {
+    /**
+     * Serializes the batch directly into the buffer of the given binary batch claimed from the send queue.
+     * @return false if serialization failed, so the batch is dropped
+     */
+    private boolean writeBatch(LogRecordBatch batch, Writer writer, BinaryBatch target) {
         var startedNs = System.nanoTime();
         recordComparator.ifPresent(cmp -> batch.sort(cmp));
         try {
-            writer.serializeBatch(batch);
+            target.data = writer.serializeBatchTo(batch, target.data, bufferFactory);
             log.info(
                 ">>> Batch %s converted to %,d bytes",
-                    batch, writer.size());
+                    batch, target.data.remaining());
             if (metrics != null)
-                metrics.batchEncoded(startedNs, writer.size());
+                metrics.batchEncoded(startedNs, target.data.remaining());
+            return true;
         } catch (Exception e) {
             log.error(e, "Error occurred while serializing batch %s", batch);
             unsentEvents.addAndGet(-batch.size());
             if (metrics != null) metrics.batchEncodeFailed(() -> e.getClass().getSimpleName());
             writer.reset();
+            // the batch is dropped, so it should not be replayed
+            if (wal != null) wal.ack(walPositions(batch));
+            batch.releaseRecords();
             batch.clear();
+            return false;
         }
     }
 
-    private void sendStep(BinaryBatch batch) throws InterruptedException {
-        try {
-            sendBatch(batch);
-            lastSendTimeMs.set(System.currentTimeMillis());
-            log.trace("Batch %s was successfully sent to Loki", batch);
-        } finally {
-            unsentEvents.addAndGet(-batch.sizeItems);
-            sendQueue.returnBuffer(batch);
-        }
+    private static long[] walPositions(LogRecordBatch batch) {
+        var positions = new long[batch.size()];
+        for (int i = 0; i < positions.length; i++)
+            positions[i] = batch.get(i).walPosition;
+        return positions;
     }
 
-    private LokiResponse sendBatch(BinaryBatch batch) {
-        var startedNs = System.nanoTime();
-        LokiResponse r = null;
-        Exception e = null;
-        int retry = 0;
-
-        do {
+    private void prepareForSend(BinaryBatch batch) {
+        batch.data.rewind();
+        // print out the batch before send if tracing is enabled
+        if (log.isTraceEnabled(this)) {
+            var payload = new byte[batch.data.limit()];
+            batch.data.get(payload);
             batch.data.rewind();
-            // print out the batch before send if tracing is enabled
-            if (log.isTraceEnabled(this)) {
-                var payload = new byte[batch.data.limit()];
-                batch.data.get(payload);
-                batch.data.rewind();
-                log.trace("Sending batch %s with %spayload:\n%s",
-                    batch,
-                    writer.isBinary() ? "binary " : "",
-                    writer.isBinary() ? bytesAsBase64String(payload) : bytesAsUtf8String(payload));
-            }
-            // try to send the batch
-            try {
-                r = httpClient.send(batch.data);
-                // exit if send is successful
-                if (r.status >= 200 && r.status < 300) {
-                    log.info("<<< %sBatch %s: Loki responded with status %s",
-                        retry > 0 ? "Retry #" + retry + ". " : "", batch, r.status);
-                    if (metrics != null) metrics.batchSent(startedNs, batch.sizeBytes);
-                    return r;
-                }
-            } catch (Exception re) {
-                e = re;
-            }
-            reportSendError(batch, e, r, retry);
-        } while (
-            ++retry <= maxRetries
-            && checkIfEligibleForRetry(e, r)
-            && reportRetryFailed(e, r)
-            && backoffSleep(retry));
+            log.trace("Sending batch %s with %spayload:\n%s",
+                batch,
+                encoders[0].writer.isBinary() ? "binary " : "",
+                encoders[0].writer.isBinary() ? bytesAsBase64String(payload) : bytesAsUtf8String(payload));
+        }
+    }
 
-        if (metrics != null) metrics.batchSendFailed(sendErrorReasonProvider(e, r));
-        return null;
+    private boolean isSuccess(BinaryBatch batch, LokiResponse r, int retry, long startedNs) {
+        if (r.status >= 200 && r.status < 300) {
+            if (retry == 0) recordSendLatency(startedNs);
+            log.info("<<< %sBatch %s: Loki responded with status %s",
+                retry > 0 ? "Retry #" + retry + ". " : "", batch, r.status);
+            if (metrics != null) metrics.batchSent(startedNs, batch.sizeBytes);
+            return true;
+        }
+        return false;
+    }
+
+    private static Exception unwrapSendException(Throwable ex) {
+        if (ex instanceof CompletionException && ex.getCause() != null)
+            ex = ex.getCause();
+        if (ex == null || ex instanceof Exception)
+            return (Exception) ex;
+        return new RuntimeException(ex);
     }
 
     private void reportSendError(BinaryBatch batch, Exception e, LokiResponse r, int retry) {
@@ -468,17 +820,536 @@ public final class AsyncBufferPipeline {
                 || (status == HttpStatus.TOO_MANY_REQUESTS && !dropRateLimitedBatches);
     }
 
-    private boolean backoffSleep(int retryNo) {
-        if (retryNo == 1)
-            backoffMs.reset();    // resetting backoff state on first retry
-        var timeoutMs = backoffMs.nextDelay() + jitterMs.nextJitter();
-        log.trace("Retry #%s backoff timeout: %s ms; state: %s", retryNo, timeoutMs, backoffMs);
-        try {
-            Thread.sleep(timeoutMs);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+    /**
+     * Encode step worker. It accumulates log records from its own buffer into batches,
+     * serializes them, and puts the results into the shared {@link #sendQueue}
+     */
+    private final class Encoder {
+
+        /**
+         * Thread-safe buffer to store incoming log records before they are batched (append -> encode).
+         * Depending on {@link PipelineConfig#bufferMaxItems} it's either unbounded or a pre-sized ring buffer,
+         * optionally split into several stripes (see {@link PipelineConfig#bufferStripes})
+         */
+        private final ConcurrentBuffer<LogRecord> buffer;
+
+        /**
+         * Records taken from the {@link #buffer} in bulk, but not added to a batch yet.
+         * Accessed by the encoder thread only
+         */
+        private final LogRecord[] drained;
+        private int drainedPos = 0;
+        private int drainedLen = 0;
+
+        /**
+         * This flag is true if some of the {@link #drained} records are left for the next encode step.
+         * It is used in {@link #waitPipelineIsEmpty(long)} along with the {@link #buffer} state
+         */
+        private volatile boolean hasDrainedRecords = false;
+
+        /**
+         * Max number of regular records in the {@link #buffer}, the rest of its capacity is reserved
+         * for prioritized records. {@link Integer#MAX_VALUE} if nothing is reserved
+         */
+        private final int regularMaxItems;
+
+        /**
+         * Max estimated size of records in the {@link #buffer}, {@link Long#MAX_VALUE} if not limited
+         */
+        private final long maxBytes;
+
+        /**
+         * Max estimated size of regular records in the {@link #buffer},
+         * the rest is reserved for prioritized records
+         */
+        private final long regularMaxBytes;
+
+        /**
+         * Estimated size of records currently in the {@link #buffer}.
+         * It's not tracked if the size is not limited
+         */
+        private final AtomicLong bufferedBytes = new AtomicLong(0L);
+
+        /**
+         * Batcher is responsible for accumulating log records according to configured batching rules
+         */
+        private final Batcher batcher;
+
+        /**
+         * Used to serialize (encode) log records into binary data
+         */
+        private final Writer writer;
+
+        /**
+         * When {@link #stop()} is called, depending on {@link #drainOnStop} a drain can be requested.
+         * Batches are cut by timeout without a drain, as the encoder wakes up at the batch deadline.
+         * <p>
+         * Drain means the batch is send as is, even if it's not fully packed with log records
+         */
+        private final AtomicBoolean drainRequested = new AtomicBoolean(false);
+
+        /**
+         * This flag is true when encode step is running.
+         * It is used in {@link #waitPipelineIsEmpty(long)} to track if encoding is still running while the {@link #buffer} is empty
+         */
+        private volatile boolean isEncodeRunning = false;
+
+        /**
+         * Encoder waits on this strategy until new records or a drain request arrive
+         */
+        private final WaitStrategy waitStrategy;
+
+        /**
+         * Thread running the encode loop. If it's blocked on a full {@link #sendQueue},
+         * it's unparked as soon as a batch leaves the queue
+         */
+        private volatile Thread thread;
+
+        Encoder(
+                ConcurrentBuffer<LogRecord> buffer,
+                int regularMaxItems,
+                long maxBytes,
+                long regularMaxBytes,
+                Batcher batcher,
+                Writer writer,
+                WaitStrategy waitStrategy) {
+            this.buffer = buffer;
+            this.regularMaxItems = regularMaxItems;
+            this.maxBytes = maxBytes;
+            this.regularMaxBytes = regularMaxBytes;
+            this.batcher = batcher;
+            this.writer = writer;
+            this.waitStrategy = waitStrategy;
+            this.drained = new LogRecord[batcher.getCapacity()];
+        }
+
+        /**
+         * Offers the record to the buffer. Regular records are shed first: they don't get into
+         * the reserved part of the buffer, while prioritized ones are accepted under backpressure
+         * until the reserve is exhausted
+         */
+        private boolean offer(LogRecord record) {
+            if (!record.priority) {
+                if (regularMaxItems != Integer.MAX_VALUE && buffer.size() >= regularMaxItems)
+                    return false;
+                return offerWithinLimit(record, regularMaxBytes);
+            }
+            if (isBackpressured() && priorityBackpressureItems.incrementAndGet() > priorityReservedItems)
+                return false;
+            return offerWithinLimit(record, maxBytes);
+        }
+
+        /**
+         * Offers the record to the buffer if its estimated size in bytes stays within the limit.
+         * A record is always accepted into an empty buffer, so a large record can't get stuck
+         */
+        private boolean offerWithinLimit(LogRecord record, long limitBytes) {
+            if (maxBytes == Long.MAX_VALUE)
+                return buffer.offer(record);
+            var recordBytes = estimateBufferedBytes(record);
+            var currentBytes = bufferedBytes.getAndAdd(recordBytes);
+            if ((currentBytes > 0 && currentBytes + recordBytes > limitBytes) || !buffer.offer(record)) {
+                bufferedBytes.addAndGet(-recordBytes);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Peeks the next record. Records are taken from the buffer in bulk, up to the batch capacity
+         * at a time. If the record is deferred, it's replaced with its formatted version.
+         * Deferred records that fail to format or exceed max batch size are dropped
+         */
+        private LogRecord peek() {
+            while (true) {
+                if (drainedPos == drainedLen && !drainBuffer())
+                    return null;
+                var record = drained[drainedPos];
+                if (!record.isDeferred())
+                    return record;
+                try {
+                    record = record.format();
+                    drained[drainedPos] = record;
+                } catch (Exception e) {
+                    log.error(e, "Error occurred while formatting an event");
+                    if (metrics != null) metrics.appendFailed(() -> e.getClass().getSimpleName());
+                }
+                if (!record.isDeferred() && batcher.validateLogRecordSize(record))
+                    return record;
+                if (!record.isDeferred())
+                    log.warn("Dropping the record that exceeds max batch size: %s", record);
+                take();
+                unsentEvents.decrementAndGet();
+            }
+        }
+
+        /**
+         * Takes the next record peeked before
+         */
+        private LogRecord take() {
+            var record = drained[drainedPos];
+            drained[drainedPos++] = null;
+            return record;
+        }
+
+        /**
+         * Takes available records from the buffer at once
+         * @return false if the buffer is empty
+         */
+        private boolean drainBuffer() {
+            drainedPos = 0;
+            drainedLen = buffer.drainTo(drained, drained.length);
+            if (maxBytes != Long.MAX_VALUE && drainedLen > 0) {
+                var drainedBytes = 0L;
+                for (int i = 0; i < drainedLen; i++)
+                    drainedBytes += estimateBufferedBytes(drained[i]);
+                bufferedBytes.addAndGet(-drainedBytes);
+            }
+            return drainedLen > 0;
+        }
+
+        private boolean isReady() {
+            return !started
+                || drainedPos < drainedLen
+                || !buffer.isEmpty()
+                || drainRequested.get()
+                || System.currentTimeMillis() >= batcher.deadlineMs();
+        }
+
+        /**
+         * Waits no longer than the deadline of the current batch, so it's cut right in time
+         */
+        private long waitTimeoutNs() {
+            var deadlineMs = batcher.deadlineMs();
+            if (deadlineMs == Long.MAX_VALUE)
+                return idleWaitNs;
+            var untilDeadlineNs = TimeUnit.MILLISECONDS.toNanos(Math.max(0, deadlineMs - System.currentTimeMillis()));
+            return Math.min(idleWaitNs, untilDeadlineNs);
+        }
+
+        private void runEncodeLoop() {
+            thread = Thread.currentThread();
+            var batch = new LogRecordBatch(batcher.getCapacity());
+            try {
+                while (started) {
+                    try {
+                        while (!isReady()) {
+                            waitStrategy.await(this::isReady, waitTimeoutNs());
+                        }
+                        if (!started) return;
+                        isEncodeRunning = true;
+                        encodeStep(batch);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    } finally {
+                        hasDrainedRecords = drainedPos < drainedLen;
+                        isEncodeRunning = false;
+                    }
+                }
+            } finally {
+                // the writer is used by this thread only, so it's released once the loop is over
+                writer.close();
+            }
+        }
+
+        private void encodeStep(LogRecordBatch batch) throws InterruptedException {
+            log.trace("Checking encode actions...");
+            if (batchTargetLatencyMs > 0) {
+                // leave the rest of the latency budget for sending
+                batcher.adaptLingerMs(batchTargetLatencyMs, TimeUnit.MICROSECONDS.toMillis(sendLatencyAvgUs.get()));
+            }
+            LogRecord record = peek();
+            while(record != null && batch.isEmpty()) {
+                batcher.checkSizeBeforeAdd(record, batch);
+                if (batch.isEmpty()) batcher.add(take(), batch);
+                if (batch.isEmpty()) record = peek();
+            }
+
+            // the request is consumed only when the batcher is drained, a request that arrives
+            // in the middle of the step is handled on the next one, so no records are left behind.
+            // Drain is requested on stop only, so records are cut regardless of recent sends
+            if (batch.isEmpty() && drainRequested.compareAndSet(true, false)) {
+                batcher.drain(0L, batch);
+                log.trace("Draining %s remained log records for encode", batch.size());
+            }
+            if (batch.isEmpty()) {
+                batcher.drainExpired(System.currentTimeMillis(), batch);
+            }
+            if (batch.isEmpty())
+                return;
+
+            // the batch is serialized in place, right into the buffer it's going to be sent from
+            var binBatch = sendQueue.claimBuffer(batch.getEstimatedSizeBytes());
+            if (!writeBatch(batch, writer, binBatch)) {
+                sendQueue.returnBuffer(binBatch);
+                return;
+            }
+            if (wal != null) {
+                binBatch.walPositions = walPositions(batch);
+                // group commit: all records of the batch are forced at once
+                if (walCommitEachBatch) wal.commit();
+            }
+            var streamKeys = orderedSends ? batch.streamKeys() : BinaryBatch.NO_STREAM_KEYS;
+            // batches with prioritized records can take the reserved part of the send queue
+            var priority = !priorityLevels.isEmpty() && batch.hasPriorityRecords();
+            var offered = false;
+            var blocked = false;
+            while(started &&
+                    !(offered = sendQueue.offer(
+                        binBatch,
+                        batch.batchId(),
+                        batch.size(),
+                        streamKeys,
+                        priority))) {
+                if (overflowPolicy == OverflowPolicy.DROP_OLDEST && evictOldestBatch())
+                    continue;
+                if (!blocked) {
+                    blocked = true;
+                    blockedEncoders.incrementAndGet();
+                }
+                LockSupport.parkNanos(this, parkTimeoutNs);
+            }
+            // the reserve for prioritized records is restored once no encoder is blocked
+            if (blocked && blockedEncoders.decrementAndGet() == 0)
+                priorityBackpressureItems.set(0);
+            if (!offered)
+                sendQueue.returnBuffer(binBatch);
+            signalSenders();
+            batch.releaseRecords();
+            batch.clear();
+        }
+    }
+
+    /**
+     * Send step worker. It takes encoded batches from the shared {@link #sendQueue}
+     * and sends them to Loki
+     */
+    private final class Sender {
+
+        private final ExponentialBackoff backoffMs;
+
+        /**
+         * This flag is true when send step is running.
+         * It is used in {@link #waitPipelineIsEmpty(long)} to track if sending is still running while the {@link #sendQueue} is empty
+         */
+        private volatile boolean isSendRunning = false;
+
+        Sender(ExponentialBackoff backoffMs) {
+            this.backoffMs = backoffMs;
+        }
+
+        /**
+         * If several batches are sent concurrently, batches sharing a stream should be sent in order
+         */
+        private BinaryBatch borrowBatch() {
+            var batch = orderedSends
+                ? sendQueue.borrowBufferOrdered()
+                : sendQueue.borrowBuffer();
+            if (batch != null)
+                wakeBlockedEncoders();
+            return batch;
+        }
+
+        /**
+         * Waits until a batch is borrowed from the send queue or the pipeline is stopped
+         */
+        private BinaryBatch awaitBatch() throws InterruptedException {
+            var version = sendQueueVersion.get();
+            BinaryBatch batch = borrowBatch();
+            while(started && batch == null) {
+                final var lastVersion = version;
+                senderWait.await(() -> !started || sendQueueVersion.get() != lastVersion, idleWaitNs);
+                version = sendQueueVersion.get();
+                batch = borrowBatch();
+            }
+            return batch;
+        }
+
+        private void runSendLoop() {
+            while (started) {
+                try {
+                    BinaryBatch batch = awaitBatch();
+                    if (!started) return;
+                    isSendRunning = true;
+                    sendStep(batch);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    isSendRunning = false;
+                }
+            }
+        }
+
+        private void runAsyncSendLoop() {
+            while (started) {
+                try {
+                    // the permit is acquired before a batch is borrowed,
+                    // so a borrowed batch is always sent, even if the pipeline is stopping
+                    while (started && !asyncSendPermits.tryAcquire(parkTimeoutNs, TimeUnit.NANOSECONDS)) { }
+                    if (!started) return;
+                    BinaryBatch batch = null;
+                    try {
+                        batch = awaitBatch();
+                        if (batch != null) {
+                            isSendRunning = true;
+                            asyncSendsInFlight.incrementAndGet();
+                            sendBatchAsync(batch, 0, System.nanoTime(), null);
+                        }
+                    } finally {
+                        // otherwise the permit is released once the send is completed
+                        if (batch == null)
+                            asyncSendPermits.release();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    isSendRunning = false;
+                }
+            }
+        }
+
+        private void sendStep(BinaryBatch batch) throws InterruptedException {
+            var unsent = false;
+            try {
+                unsent = !sendBatch(batch);
+                log.trace("Batch %s was successfully sent to Loki", batch);
+            } finally {
+                unsentEvents.addAndGet(-batch.sizeItems);
+                returnBatch(batch, unsent);
+            }
+        }
+
+        /**
+         * @return false if the batch failed with a retriable error, so it could be sent later
+         */
+        private boolean sendBatch(BinaryBatch batch) {
+            var startedNs = System.nanoTime();
+            LokiResponse r = null;
+            Exception e = null;
+            int retry = 0;
+
+            do {
+                prepareForSend(batch);
+                // try to send the batch
+                try {
+                    r = httpClient.send(batch.data);
+                    // exit if send is successful
+                    if (isSuccess(batch, r, retry, startedNs))
+                        return true;
+                } catch (Exception re) {
+                    e = re;
+                }
+                reportSendError(batch, e, r, retry);
+            } while (
+                (++retry <= maxRetries || retryUntilRecovered && !isStopping)
+                && checkIfEligibleForRetry(e, r)
+                && reportRetryFailed(e, r)
+                && backoffSleep(retry));
+
+            if (metrics != null) metrics.batchSendFailed(sendErrorReasonProvider(e, r));
+            return !checkIfEligibleForRetry(e, r);
+        }
+
+        /**
+         * Sends the batch without blocking the sender thread.
+         * Retries are scheduled on the {@link #scheduler} after the backoff delay
+         */
+        private void sendBatchAsync(BinaryBatch batch, int retry, long startedNs, ExponentialBackoff backoff) {
+            CompletableFuture<LokiResponse> response;
+            try {
+                prepareForSend(batch);
+                response = httpClient.sendAsync(batch.data);
+            } catch (Exception e) {
+                // a client could fail before the request is started
+                response = CompletableFuture.failedFuture(e);
+            }
+            response.whenComplete((r, ex) -> {
+                // the batch is completed and its permit is released unless a retry is scheduled
+                var retryScheduled = false;
+                var unsent = false;
+                try {
+                    var e = unwrapSendException(ex);
+                    if (e == null && isSuccess(batch, r, retry, startedNs))
+                        return;
+                    reportSendError(batch, e, r, retry);
+                    unsent = checkIfEligibleForRetry(e, r);
+                    var nextRetry = retry + 1;
+                    if ((nextRetry <= maxRetries || retryUntilRecovered && !isStopping)
+                            && unsent
+                            && reportRetryFailed(e, r))
+                        retryScheduled = scheduleRetry(batch, nextRetry, startedNs, backoff);
+                    if (!retryScheduled && metrics != null)
+                        metrics.batchSendFailed(sendErrorReasonProvider(e, r));
+                } catch (Exception e) {
+                    log.error(e, "Error while completing send of batch %s", batch);
+                } finally {
+                    if (!retryScheduled)
+                        completeAsyncSend(batch, unsent);
+                }
+            });
+        }
+
+        /**
+         * @return false if the retry could not be scheduled, because the pipeline is stopped
+         */
+        private boolean scheduleRetry(BinaryBatch batch, int retry, long startedNs, ExponentialBackoff backoff) {
+            var nextBackoff = backoff != null
+                ? backoff
+                : new ExponentialBackoff(minRetryBackoffMs, maxRetryBackoffMs);
+            var timeoutMs = nextBackoff.nextDelay() + jitterMs.nextJitter();
+            log.trace("Retry #%s backoff timeout: %s ms; state: %s", retry, timeoutMs, nextBackoff);
+            try {
+                scheduler.schedule(
+                    () -> sendBatchAsync(batch, retry, startedNs, nextBackoff),
+                    timeoutMs,
+                    TimeUnit.MILLISECONDS);
+                return true;
+            } catch (RejectedExecutionException re) {
+                log.warn("Unable to schedule retry #%s for batch %s, pipeline is stopped", retry, batch);
+                return false;
+            }
+        }
+
+        private void completeAsyncSend(BinaryBatch batch, boolean unsent) {
+            try {
+                unsentEvents.addAndGet(-batch.sizeItems);
+                returnBatch(batch, unsent);
+            } finally {
+                asyncSendsInFlight.decrementAndGet();
+                asyncSendPermits.release();
+            }
+        }
+
+        /**
+         * Returns the batch to the send queue.
+         * In ordered mode it could unblock other batches sharing streams with this one.
+         * If the batch is unsent, it's kept on disk for the next start (if spilling is enabled)
+         */
+        private void returnBatch(BinaryBatch batch, boolean unsent) {
+            if (!unsent && wal != null)
+                wal.ack(batch.walPositions);
+            if (!unsent)
+                sendQueue.returnBuffer(batch);
+            else if (sendQueue.returnUnprocessed(batch))
+                log.warn("Batch %s is kept on disk to be sent after restart", batch);
+            if (orderedSends) signalSenders();
+        }
+
+        private boolean backoffSleep(int retryNo) {
+            if (retryNo == 1)
+                backoffMs.reset();    // resetting backoff state on first retry
+            var timeoutMs = backoffMs.nextDelay() + jitterMs.nextJitter();
+            log.trace("Retry #%s backoff timeout: %s ms; state: %s", retryNo, timeoutMs, backoffMs);
+            try {
+                Thread.sleep(timeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
         }
-        return true;
     }
 
 }
@@ -4,11 +4,14 @@ import java.time.Duration;
 import java.util.Arrays;
 import java.util.function.Supplier;
 
+import com.github.loki4j.client.batch.ByteBufferQueue;
+import com.github.loki4j.client.util.ByteBufferPool;
 import com.github.loki4j.client.util.Cache.BoundAtomicMapCache;
 
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Counter.Builder;
 import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
 import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Tag;
@@ -22,6 +25,7 @@ public class Loki4jMetrics {
     private final Timer appendTimer;
     private final Timer encodeTimer;
     private final Timer sendTimer;
+    private final Timer overflowBlockTimer;
 
     private final DistributionSummary eventsEncodedSummary;
     private final DistributionSummary bytesSentSummary;
@@ -29,6 +33,11 @@ public class Loki4jMetrics {
     private final Counter batchesEncodedCounter;
     private final Counter batchesSentCounter;
     private final Counter droppedEventsCounter;
+    private final Counter evictedEventsCounter;
+    private final Counter sampledEventsCounter;
+
+    private final Builder droppedEventsByLevelCounterBuilder;
+    private final BoundAtomicMapCache<String, Counter> droppedEventsByLevelCounterCache = new BoundAtomicMapCache<>();
 
     private final Builder appendErrorsCounterBuilder;
     private final BoundAtomicMapCache<String, Counter> appendErrorsCounterCache = new BoundAtomicMapCache<>();
@@ -42,7 +51,8 @@ public class Loki4jMetrics {
     private final Builder sendErrorsCounterBuilder;
     private final BoundAtomicMapCache<String, Counter> sendErrorsCounterCache = new BoundAtomicMapCache<>();
 
-    public Loki4jMetrics(String appenderName, Supplier<Long> unsentEvents) {
+    public Loki4jMetrics(String appenderName, Supplier<Long> unsentEvents, ByteBufferQueue sendQueue) {
+        var bufferPool = sendQueue.bufferPool();
         var tags = Arrays.asList(
             Tag.of("appender", appenderName));
 
@@ -64,6 +74,12 @@ public class Loki4jMetrics {
             .tags(tags)
             .register(Metrics.globalRegistry);
 
+        overflowBlockTimer = Timer
+            .builder("loki4j.overflow.block.time")
+            .description("Time an append operation was blocked waiting for room in the pipeline")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+
         eventsEncodedSummary = DistributionSummary
             .builder("loki4j.encode.events")
             .description("Number of log events processed by encoder")
@@ -95,12 +111,62 @@ public class Loki4jMetrics {
             .tags(tags)
             .register(Metrics.globalRegistry);
 
+        evictedEventsCounter = Counter
+            .builder("loki4j.overflow.evicted.events")
+            .description("Number of events dropped from the send queue to make room for newer ones")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+
+        sampledEventsCounter = Counter
+            .builder("loki4j.overflow.sampled.events")
+            .description("Number of events dropped by sampling as the send queue is filling up")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+
         Gauge
             .builder("loki4j.unsent.events", () -> unsentEvents.get())
             .description("Current number of accepted but not yet sent events")
             .tags(tags)
             .register(Metrics.globalRegistry);
 
+        FunctionCounter
+            .builder("loki4j.buffer.pool.hits", bufferPool, ByteBufferPool::hits)
+            .description("Number of send queue buffers reused from the pool")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+
+        FunctionCounter
+            .builder("loki4j.buffer.pool.misses", bufferPool, ByteBufferPool::misses)
+            .description("Number of send queue buffers that had to be allocated as the pool had no suitable buffer")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+
+        FunctionCounter
+            .builder("loki4j.buffer.pool.allocated", bufferPool, ByteBufferPool::allocatedBytes)
+            .description("Total capacity of send queue buffers allocated so far")
+            .baseUnit("bytes")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+
+        Gauge
+            .builder("loki4j.buffer.pool.pooled", bufferPool, ByteBufferPool::pooledBytes)
+            .description("Current total capacity of buffers kept in the pool")
+            .baseUnit("bytes")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+
+        Gauge
+            .builder("loki4j.spill.bytes", sendQueue, ByteBufferQueue::getSpilledBytes)
+            .description("Current size of batches kept on disk and not yet sent")
+            .baseUnit("bytes")
+            .tags(tags)
+            .register(Metrics.globalRegistry);
+
+        droppedEventsByLevelCounterBuilder = Counter
+            .builder("loki4j.drop.events.level")
+            .description("Number of events dropped due to backpressure settings, by log level")
+            .tags(tags);
+
         appendErrorsCounterBuilder = Counter
             .builder("loki4j.append.errors")
             .description("Number of errors occurred while appending events")
@@ -126,11 +192,31 @@ public class Loki4jMetrics {
         timer.record(Duration.ofNanos(System.nanoTime() - startedNs));
     }
 
-    public void eventAppended(long startedNs, boolean dropped) {
+    public void eventAppended(long startedNs, boolean dropped, String level) {
         recordTimer(appendTimer, startedNs);
-        if (dropped) droppedEventsCounter.increment();
+        if (dropped) {
+            droppedEventsCounter.increment();
+            var levelKey = level != null ? level : "unknown";
+            droppedEventsByLevelCounterCache.get(levelKey, () -> {
+                return droppedEventsByLevelCounterBuilder
+                    .tag("level", levelKey)
+                    .register(Metrics.globalRegistry);
+            }).increment();
+        }
     }
     
+    public void appendBlocked(long startedNs) {
+        recordTimer(overflowBlockTimer, startedNs);
+    }
+
+    public void eventsEvicted(int count) {
+        evictedEventsCounter.increment(count);
+    }
+
+    public void eventSampledOut() {
+        sampledEventsCounter.increment();
+    }
+
     public void batchEncoded(long startedNs, int count) {
         recordTimer(encodeTimer, startedNs);
         eventsEncodedSummary.record(count);
@@ -0,0 +1,68 @@
+package com.github.loki4j.client.pipeline;
+
+import java.util.Set;
+
+/**
+ * Defines what happens to a new log record when the pipeline has no room for it
+ */
+public enum OverflowPolicy {
+
+    /**
+     * The new record is dropped
+     */
+    DROP_NEWEST("drop-newest"),
+
+    /**
+     * The oldest batch waiting in the send queue is dropped to make room for newer records.
+     * Batches with prioritized records are not dropped this way
+     */
+    DROP_OLDEST("drop-oldest"),
+
+    /**
+     * The caller is blocked until there is room for the new record, or the timeout is expired.
+     * In the latter case, the record is dropped
+     */
+    BLOCK("block"),
+
+    /**
+     * Once the send queue is filled above the threshold, new records are dropped randomly,
+     * with a probability that grows from 0 at the threshold to 1 for the full queue.
+     * Prioritized records are never sampled out
+     */
+    SAMPLE("sample");
+
+    private final String name;
+
+    OverflowPolicy(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Names of the supported overflow policies
+     */
+    public static final Set<String> NAMES = Set.of("drop-newest", "drop-oldest", "block", "sample");
+
+    /**
+     * Checks if there is an overflow policy with the given name
+     */
+    public static boolean isKnown(String name) {
+        return name != null && NAMES.contains(name);
+    }
+
+    /**
+     * Returns a policy by its name: drop-newest, drop-oldest, block, or sample
+     */
+    public static OverflowPolicy of(String name) {
+        for (var policy : values()) {
+            if (policy.name.equals(name))
+                return policy;
+        }
+        throw new IllegalArgumentException("Unknown overflow policy: " + name);
+    }
+
+}
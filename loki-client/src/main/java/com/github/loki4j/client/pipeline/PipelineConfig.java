@@ -1,5 +1,6 @@
 package com.github.loki4j.client.pipeline;
 
+import java.util.Optional;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
@@ -58,6 +59,15 @@ public class PipelineConfig {
      */
     public final long batchTimeoutMs;
 
+    /**
+     * Target time in milliseconds between a record is added to a batch and the batch is sent to Loki.
+     * If set, the time a batch waits for more records is reduced by the average send latency,
+     * so under steady load batches become as large as the latency budget allows.
+     * The wait time never exceeds {@link #batchTimeoutMs} and never drops below a quarter of the target,
+     * so batches keep growing if Loki is slow. Zero disables adaptive batching.
+     */
+    public final long batchTargetLatencyMs;
+
     /**
      * If you use only one label for all log records, you can
      * set this flag to true and save some CPU time on grouping records by label.
@@ -66,10 +76,140 @@ public class PipelineConfig {
 
     /**
      * Max number of bytes to keep in the send queue.
-     * When the queue is full, incoming log events are dropped.
+     * When the queue is full, incoming log events are dropped, unless spilling to disk is enabled.
      */
     public final long sendQueueMaxBytes;
 
+    /**
+     * Directory for spilling the send queue to disk, or null to disable spilling.
+     * If enabled, batches that don't fit into the send queue are written to memory-mapped
+     * segment files, and sent once there is room in the queue again. Batches that fit into
+     * the send queue are written there as well, so all the batches that are not sent before
+     * the shutdown are sent after the next start, in the order they were queued.
+     * Writing a batch costs a copy of its data on the encoder thread.
+     * Also, sending of a batch is retried until Loki recovers, instead of dropping
+     * the batch after {@link #maxRetries} attempts.
+     */
+    public final String spillDir;
+
+    /**
+     * Max number of bytes to keep on disk when spilling the send queue.
+     * When the limit is reached, incoming log events are dropped.
+     */
+    public final long spillMaxBytes;
+
+    /**
+     * Size of a single segment file for spilling the send queue.
+     * Must be larger than the largest batch.
+     */
+    public final int spillSegmentBytes;
+
+    /**
+     * Directory for the write-ahead log, or null to disable it.
+     * If enabled, accepted log records are written to memory-mapped segment files, and
+     * acknowledged once Loki confirms the batch they belong to. Records that are not acknowledged
+     * (e.g., if the JVM was killed) are sent after the next start.
+     * Also, sending of a batch is retried until Loki recovers, instead of dropping
+     * the batch after {@link #maxRetries} attempts.
+     * Records are written on the appending thread before {@code append()} returns, under a lock
+     * shared by all appending threads, so each record costs a serialization and a lock handoff.
+     * Records are not batched on the encoder side, as they would be lost if the JVM is killed
+     * while waiting in the buffer.
+     * Can't be used together with {@link #spillDir}.
+     */
+    public final String walDir;
+
+    /**
+     * Max number of bytes to keep in the write-ahead log.
+     * When the limit is reached, incoming log events are dropped.
+     */
+    public final long walMaxBytes;
+
+    /**
+     * Size of a single segment file of the write-ahead log.
+     */
+    public final int walSegmentBytes;
+
+    /**
+     * Defines when the write-ahead log is forced to the storage device.
+     * "batch" - before each batch is sent, "interval" - every {@link #walFsyncIntervalMs},
+     * "none" - only on shutdown, so records survive a crash of the JVM, but not of the OS.
+     */
+    public final String walFsync;
+
+    /**
+     * Interval between forcing the write-ahead log to the storage device, see {@link #walFsync}.
+     */
+    public final long walFsyncIntervalMs;
+
+    /**
+     * Max number of log records to keep in the buffer before they are batched.
+     * If greater than 0, a pre-sized lock-free ring buffer is used, and incoming
+     * log events are dropped when it is full.
+     * Otherwise, the buffer is unbounded.
+     */
+    public final int bufferMaxItems;
+
+    /**
+     * Max estimated size in bytes of log records kept in the buffer before they are batched.
+     * It's estimated by UTF-8 sizes of messages and metadata, incoming log events are dropped
+     * once it's reached. If 0 or less (default), the size in bytes is not limited.
+     */
+    public final long bufferMaxBytes;
+
+    /**
+     * Number of stripes to split the bounded buffer into (see {@link #bufferMaxItems}).
+     * If greater than 1, producer threads are spread across stripes, and the
+     * encoder merges stripes by record timestamp. Max items limit is split between stripes.
+     */
+    public final int bufferStripes;
+
+    /**
+     * Comma-separated list of log levels that are prioritized under backpressure, e.g., "ERROR,WARN".
+     * Once the pipeline is saturated, records of other levels are dropped first, while records
+     * of these levels are still accepted into the reserved capacity
+     * (see {@link #priorityReservedItems} and {@link #priorityReservedBytes}).
+     * If empty (default), all records are treated equally.
+     */
+    public final String priorityLevels;
+
+    /**
+     * Max number of prioritized records to accept into the buffer after other records start
+     * being dropped. For the bounded buffer, it's the part of {@link #bufferMaxItems} that
+     * is reserved for prioritized records, but no more than a half of it.
+     */
+    public final int priorityReservedItems;
+
+    /**
+     * Part of {@link #sendQueueMaxBytes} reserved for batches that contain prioritized records,
+     * but no more than a half of it. The same part of {@link #bufferMaxBytes} is reserved
+     * for prioritized records.
+     */
+    public final long priorityReservedBytes;
+
+    /**
+     * Defines what happens to new log records when the pipeline is saturated, see {@link OverflowPolicy}
+     */
+    public final OverflowPolicy overflowPolicy;
+
+    /**
+     * Max time to block the caller for if {@link #overflowPolicy} is {@link OverflowPolicy#BLOCK}
+     */
+    public final long overflowBlockTimeoutMs;
+
+    /**
+     * Occupancy of the send queue in percent, starting from which new records are sampled
+     * if {@link #overflowPolicy} is {@link OverflowPolicy#SAMPLE}
+     */
+    public final int overflowSampleThreshold;
+
+    /**
+     * Number of threads to use for encoding batches.
+     * Log records are distributed across encoders by stream, each encoder has its own
+     * buffer, batcher and writer, so memory required for encoding grows proportionally.
+     */
+    public final int encoderThreads;
+
     /**
      * Max number of attempts to send a batch to Loki before it will be dropped.
      * A failed batch send could be retried only in case of ConnectException, or receiving statuses 429, 503 from Loki.
@@ -77,6 +217,20 @@ public class PipelineConfig {
      */
     public final int maxRetries;
 
+    /**
+     * Max number of batches that can be sent to Loki concurrently.
+     * Batches sharing a stream are never sent concurrently, so the order of records within
+     * a stream is preserved.
+     */
+    public final int maxConcurrentSends;
+
+    /**
+     * If true, batches are sent using non-blocking HTTP client API, so a single
+     * sender thread can keep up to {@link #maxConcurrentSends} batches in flight.
+     * Otherwise, a separate sender thread is used for each concurrent send.
+     */
+    public final boolean asyncSends;
+
     /**
      * Initial backoff delay before the next attempt to re-send a failed batch.
      * Batches are retried with an exponential backoff (e.g. 0.5s, 1s, 2s, 4s, etc.) and jitter.
@@ -105,11 +259,30 @@ public class PipelineConfig {
      */
     public final long internalQueuesCheckTimeoutMs;
 
+    /**
+     * Defines how Loki4j threads wait if encode or send queues are empty:
+     * "park" sleeps for {@link #internalQueuesCheckTimeoutMs} between checks,
+     * "block" sleeps until a new record or batch arrives,
+     * "yield" and "spin" keep checking with minimal latency at cost of a busy CPU core.
+     */
+    public final String waitStrategy;
+
     /**
      * Use off-heap memory for storing intermediate data.
+     * Batches in JSON format can be serialized directly into the send queue only if its
+     * buffers are on-heap, so with the default value each batch is copied once.
+     * Set to false to skip this copy.
      */
     public final boolean useDirectBuffers;
 
+    /**
+     * Run sender loops on virtual threads if the JVM supports them (21+).
+     * Falls back to platform threads otherwise. Encoder loops are CPU-bound, so they always
+     * run on platform threads.
+     * HTTP client internals are configured separately, see {@link HttpConfig#useVirtualThreads}.
+     */
+    public final boolean useVirtualThreads;
+
     /**
      * If true, the pipeline will try to send all the remaining events on shutdown,
      * so the proper shutdown procedure might take longer.
@@ -122,6 +295,18 @@ public class PipelineConfig {
      */
     public final boolean metricsEnabled;
 
+    /**
+     * Compression applied to encoded batches before sending: "none" or "gzip".
+     * Batches are sent with the matching Content-Encoding header.
+     * Protobuf batches are already compressed with Snappy, so this is meant for JSON format.
+     */
+    public final String compression;
+
+    /**
+     * Compression level from 1 (fastest) to 9 (smallest), or -1 for the default level of the codec.
+     */
+    public final int compressionLevel;
+
     /**
      * A factory for Writer.
     */
@@ -149,17 +334,42 @@ public class PipelineConfig {
             int batchMaxItems,
             int batchMaxBytes,
             long batchTimeoutMs,
+            long batchTargetLatencyMs,
             boolean staticLabels,
             long sendQueueMaxBytes,
+            String spillDir,
+            long spillMaxBytes,
+            int spillSegmentBytes,
+            String walDir,
+            long walMaxBytes,
+            int walSegmentBytes,
+            String walFsync,
+            long walFsyncIntervalMs,
+            int bufferMaxItems,
+            long bufferMaxBytes,
+            int bufferStripes,
+            String priorityLevels,
+            int priorityReservedItems,
+            long priorityReservedBytes,
+            OverflowPolicy overflowPolicy,
+            long overflowBlockTimeoutMs,
+            int overflowSampleThreshold,
+            int encoderThreads,
             int maxRetries,
+            int maxConcurrentSends,
+            boolean asyncSends,
             long minRetryBackoffMs,
             long maxRetryBackoffMs,
             int maxRetryJitterMs,
             boolean dropRateLimitedBatches,
             long internalQueuesCheckTimeoutMs,
+            String waitStrategy,
             boolean useDirectBuffers,
+            boolean useVirtualThreads,
             boolean drainOnStop,
             boolean metricsEnabled,
+            String compression,
+            int compressionLevel,
             WriterFactory writerFactory,
             HttpConfig httpConfig, Function<HttpConfig, Loki4jHttpClient> httpClientFactory,
             Function<Object, Loki4jLogger> internalLoggingFactory) {
@@ -167,17 +377,42 @@ public class PipelineConfig {
         this.batchMaxItems = batchMaxItems;
         this.batchMaxBytes = batchMaxBytes;
         this.batchTimeoutMs = batchTimeoutMs;
+        this.batchTargetLatencyMs = batchTargetLatencyMs;
         this.staticLabels = staticLabels;
         this.sendQueueMaxBytes = sendQueueMaxBytes;
+        this.spillDir = spillDir;
+        this.spillMaxBytes = spillMaxBytes;
+        this.spillSegmentBytes = spillSegmentBytes;
+        this.walDir = walDir;
+        this.walMaxBytes = walMaxBytes;
+        this.walSegmentBytes = walSegmentBytes;
+        this.walFsync = walFsync;
+        this.walFsyncIntervalMs = walFsyncIntervalMs;
+        this.bufferMaxItems = bufferMaxItems;
+        this.bufferMaxBytes = bufferMaxBytes;
+        this.bufferStripes = bufferStripes;
+        this.priorityLevels = priorityLevels;
+        this.priorityReservedItems = priorityReservedItems;
+        this.priorityReservedBytes = priorityReservedBytes;
+        this.overflowPolicy = overflowPolicy;
+        this.overflowBlockTimeoutMs = overflowBlockTimeoutMs;
+        this.overflowSampleThreshold = overflowSampleThreshold;
+        this.encoderThreads = encoderThreads;
         this.maxRetries = maxRetries;
+        this.maxConcurrentSends = maxConcurrentSends;
+        this.asyncSends = asyncSends;
         this.minRetryBackoffMs = minRetryBackoffMs;
         this.maxRetryBackoffMs = maxRetryBackoffMs;
         this.maxRetryJitterMs = maxRetryJitterMs;
         this.dropRateLimitedBatches = dropRateLimitedBatches;
         this.internalQueuesCheckTimeoutMs = internalQueuesCheckTimeoutMs;
+        this.waitStrategy = waitStrategy;
         this.useDirectBuffers = useDirectBuffers;
+        this.useVirtualThreads = useVirtualThreads;
         this.drainOnStop = drainOnStop;
         this.metricsEnabled = metricsEnabled;
+        this.compression = compression;
+        this.compressionLevel = compressionLevel;
         this.writerFactory = writerFactory;
         this.httpConfig = httpConfig;
         this.httpClientFactory = httpClientFactory;
@@ -194,41 +429,100 @@ public class PipelineConfig {
         private int batchMaxItems = 1000;
         private int batchMaxBytes = 4 * 1024 * 1024;
         private long batchTimeoutMs = 60 * 1000;
+        private long batchTargetLatencyMs = 0;
         private boolean staticLabels = false;
         private long sendQueueMaxBytes = batchMaxBytes * 10;
+        private String spillDir = null;
+        private long spillMaxBytes = 1024L * 1024 * 1024;
+        private int spillSegmentBytes = 16 * 1024 * 1024;
+        private String walDir = null;
+        private long walMaxBytes = 1024L * 1024 * 1024;
+        private int walSegmentBytes = 16 * 1024 * 1024;
+        private String walFsync = "batch";
+        private long walFsyncIntervalMs = 1000;
+        private int bufferMaxItems = 0;
+        private long bufferMaxBytes = 0;
+        private int bufferStripes = 1;
+        private String priorityLevels = "";
+        private int priorityReservedItems = 1000;
+        private long priorityReservedBytes = batchMaxBytes;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+        private long overflowBlockTimeoutMs = 1000;
+        private int overflowSampleThreshold = 50;
+        private int encoderThreads = 1;
         private int maxRetries = 2;
+        private int maxConcurrentSends = 1;
+        private boolean asyncSends = false;
         private long minRetryBackoffMs = 500;
         private long maxRetryBackoffMs = 60 * 1000;
         private int maxRetryJitterMs = 500;
         private boolean dropRateLimitedBatches = false;
         private long internalQueuesCheckTimeoutMs = 25;
+        private String waitStrategy = "park";
         private boolean useDirectBuffers = true;
+        private boolean useVirtualThreads = false;
         private boolean drainOnStop = true;
         private boolean metricsEnabled = false;
+        private String compression = "none";
+        private int compressionLevel = 1;
         private WriterFactory writer = json;
         private HttpConfig.Builder httpConfigBuilder = java(5 * 60_000);
         private Function<HttpConfig, Loki4jHttpClient> httpClientFactory = cfg -> new JavaHttpClient(cfg);
         private Function<Object, Loki4jLogger> internalLoggingFactory;
 
         public PipelineConfig build() {
+            if (spillDir != null && walDir != null)
+                throw new IllegalArgumentException("Spilling to disk can't be used together with the write-ahead log");
+            checkWalFsync(walFsync);
+            if (!isValidOverflowSampleThreshold(overflowSampleThreshold))
+                throw new IllegalArgumentException("Overflow sample threshold should be in range [0, 100): " + overflowSampleThreshold);
+            if (!isValidCompressionLevel(compressionLevel))
+                throw new IllegalArgumentException("Compression level should be in range [1, 9] or -1: " + compressionLevel);
             return new PipelineConfig(
                     name,
                     batchMaxItems,
                     batchMaxBytes,
                     batchTimeoutMs,
+                    batchTargetLatencyMs,
                     staticLabels,
                     sendQueueMaxBytes,
+                    spillDir,
+                    spillMaxBytes,
+                    spillSegmentBytes,
+                    walDir,
+                    walMaxBytes,
+                    walSegmentBytes,
+                    walFsync,
+                    walFsyncIntervalMs,
+                    bufferMaxItems,
+                    bufferMaxBytes,
+                    bufferStripes,
+                    priorityLevels,
+                    priorityReservedItems,
+                    priorityReservedBytes,
+                    overflowPolicy,
+                    overflowBlockTimeoutMs,
+                    overflowSampleThreshold,
+                    encoderThreads,
                     maxRetries,
+                    maxConcurrentSends,
+                    asyncSends,
                     minRetryBackoffMs,
                     maxRetryBackoffMs,
                     maxRetryJitterMs,
                     dropRateLimitedBatches,
                     internalQueuesCheckTimeoutMs,
+                    waitStrategy,
                     useDirectBuffers,
+                    useVirtualThreads,
                     drainOnStop,
                     metricsEnabled,
+                    compression,
+                    compressionLevel,
                     writer,
-                    httpConfigBuilder.build(writer.contentType),
+                    httpConfigBuilder
+                        .setContentEncoding(contentEncoding(compression))
+                        .build(writer.contentType),
                     httpClientFactory,
                     internalLoggingFactory);
         }
@@ -253,6 +547,11 @@ public class PipelineConfig {
             return this;
         }
 
+        public Builder setBatchTargetLatencyMs(long batchTargetLatencyMs) {
+            this.batchTargetLatencyMs = batchTargetLatencyMs;
+            return this;
+        }
+
         public Builder setStaticLabels(boolean staticLabels) {
             this.staticLabels = staticLabels;
             return this;
@@ -263,11 +562,111 @@ public class PipelineConfig {
             return this;
         }
 
+        public Builder setSpillDir(String spillDir) {
+            this.spillDir = spillDir;
+            return this;
+        }
+
+        public Builder setSpillMaxBytes(long spillMaxBytes) {
+            this.spillMaxBytes = spillMaxBytes;
+            return this;
+        }
+
+        public Builder setSpillSegmentBytes(int spillSegmentBytes) {
+            this.spillSegmentBytes = spillSegmentBytes;
+            return this;
+        }
+
+        public Builder setWalDir(String walDir) {
+            this.walDir = walDir;
+            return this;
+        }
+
+        public Builder setWalMaxBytes(long walMaxBytes) {
+            this.walMaxBytes = walMaxBytes;
+            return this;
+        }
+
+        public Builder setWalSegmentBytes(int walSegmentBytes) {
+            this.walSegmentBytes = walSegmentBytes;
+            return this;
+        }
+
+        public Builder setWalFsync(String walFsync) {
+            this.walFsync = walFsync;
+            return this;
+        }
+
+        public Builder setWalFsyncIntervalMs(long walFsyncIntervalMs) {
+            this.walFsyncIntervalMs = walFsyncIntervalMs;
+            return this;
+        }
+
+        public Builder setBufferMaxItems(int bufferMaxItems) {
+            this.bufferMaxItems = bufferMaxItems;
+            return this;
+        }
+
+        public Builder setBufferMaxBytes(long bufferMaxBytes) {
+            this.bufferMaxBytes = bufferMaxBytes;
+            return this;
+        }
+
+        public Builder setBufferStripes(int bufferStripes) {
+            this.bufferStripes = bufferStripes;
+            return this;
+        }
+
+        public Builder setPriorityLevels(String priorityLevels) {
+            this.priorityLevels = priorityLevels;
+            return this;
+        }
+
+        public Builder setPriorityReservedItems(int priorityReservedItems) {
+            this.priorityReservedItems = priorityReservedItems;
+            return this;
+        }
+
+        public Builder setPriorityReservedBytes(long priorityReservedBytes) {
+            this.priorityReservedBytes = priorityReservedBytes;
+            return this;
+        }
+
+        public Builder setOverflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        public Builder setOverflowBlockTimeoutMs(long overflowBlockTimeoutMs) {
+            this.overflowBlockTimeoutMs = overflowBlockTimeoutMs;
+            return this;
+        }
+
+        public Builder setOverflowSampleThreshold(int overflowSampleThreshold) {
+            this.overflowSampleThreshold = overflowSampleThreshold;
+            return this;
+        }
+
+        public Builder setEncoderThreads(int encoderThreads) {
+            this.encoderThreads = encoderThreads;
+            return this;
+        }
+
         public Builder setMaxRetries(int maxRetries) {
             this.maxRetries = maxRetries;
             return this;
         }
 
+        public Builder setMaxConcurrentSends(int maxConcurrentSends) {
+            this.maxConcurrentSends = maxConcurrentSends;
+            return this;
+        }
+
+        public Builder setAsyncSends(boolean asyncSends) {
+            this.asyncSends = asyncSends;
+            return this;
+        }
+
         public Builder setMinRetryBackoffMs(long minRetryBackoffMs) {
             this.minRetryBackoffMs = minRetryBackoffMs;
             return this;
@@ -293,11 +692,21 @@ public class PipelineConfig {
             return this;
         }
 
+        public Builder setWaitStrategy(String waitStrategy) {
+            this.waitStrategy = waitStrategy;
+            return this;
+        }
+
         public Builder setUseDirectBuffers(boolean useDirectBuffers) {
             this.useDirectBuffers = useDirectBuffers;
             return this;
         }
 
+        public Builder setUseVirtualThreads(boolean useVirtualThreads) {
+            this.useVirtualThreads = useVirtualThreads;
+            return this;
+        }
+
         public Builder setDrainOnStop(boolean drainOnStop) {
             this.drainOnStop = drainOnStop;
             return this;
@@ -308,6 +717,16 @@ public class PipelineConfig {
             return this;
         }
 
+        public Builder setCompression(String compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        public Builder setCompressionLevel(int compressionLevel) {
+            this.compressionLevel = compressionLevel;
+            return this;
+        }
+
         public Builder setWriter(WriterFactory writer) {
             this.writer = writer;
             return this;
@@ -330,6 +749,45 @@ public class PipelineConfig {
 
     }
 
+    private static void checkWalFsync(String walFsync) {
+        if (!isValidWalFsync(walFsync))
+            throw new IllegalArgumentException("Unknown WAL fsync policy: " + walFsync);
+    }
+
+    /**
+     * Checks if the WAL fsync policy is supported: "batch", "interval", or "none"
+     */
+    public static boolean isValidWalFsync(String walFsync) {
+        return "batch".equals(walFsync) || "interval".equals(walFsync) || "none".equals(walFsync);
+    }
+
+    private static Optional<String> contentEncoding(String compression) {
+        if (!isValidCompression(compression))
+            throw new IllegalArgumentException("Unknown compression: " + compression);
+        return compression.equals("gzip") ? Optional.of("gzip") : Optional.empty();
+    }
+
+    /**
+     * Checks if the compression is supported: "none" or "gzip"
+     */
+    public static boolean isValidCompression(String compression) {
+        return "none".equals(compression) || "gzip".equals(compression);
+    }
+
+    /**
+     * Checks if the overflow sample threshold is in range [0, 100)
+     */
+    public static boolean isValidOverflowSampleThreshold(int overflowSampleThreshold) {
+        return overflowSampleThreshold >= 0 && overflowSampleThreshold < 100;
+    }
+
+    /**
+     * Checks if the compression level is in range [1, 9] or -1 for the default level
+     */
+    public static boolean isValidCompressionLevel(int compressionLevel) {
+        return compressionLevel == -1 || compressionLevel >= 1 && compressionLevel <= 9;
+    }
+
     /**
      * A factory for Writer.
      */
@@ -0,0 +1,153 @@
+package com.github.loki4j.client.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A compact insertion-ordered map backed by an array of entries.
+ * It's intended for a few key-value pairs (labels, metadata), so lookups are linear.
+ * <p>
+ * Entries are kept on {@link #clear()}, so the map can be refilled without allocations.
+ * Equality and hash code are compatible with other {@link Map} implementations.
+ * This class is not thread-safe.
+ */
+public final class ArrayMap extends AbstractMap<String, String> {
+
+    private Entry[] entries;
+    private int size = 0;
+
+    private final Set<Map.Entry<String, String>> entrySet = new EntrySet();
+
+    public ArrayMap(int initialCapacity) {
+        entries = new Entry[Math.max(1, initialCapacity)];
+        for (int i = 0; i < entries.length; i++)
+            entries[i] = new Entry();
+    }
+
+    @Override
+    public String put(String key, String value) {
+        for (int i = 0; i < size; i++) {
+            if (entries[i].key.equals(key))
+                return entries[i].setValue(value);
+        }
+        if (size == entries.length) {
+            var oldLength = entries.length;
+            entries = Arrays.copyOf(entries, oldLength * 2);
+            for (int i = oldLength; i < entries.length; i++)
+                entries[i] = new Entry();
+        }
+        var entry = entries[size++];
+        entry.key = key;
+        entry.value = value;
+        return null;
+    }
+
+    @Override
+    public String get(Object key) {
+        for (int i = 0; i < size; i++) {
+            if (entries[i].key.equals(key))
+                return entries[i].value;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        for (int i = 0; i < size; i++) {
+            if (entries[i].key.equals(key))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            entries[i].key = null;
+            entries[i].value = null;
+        }
+        size = 0;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return entrySet;
+    }
+
+    private final class EntrySet extends AbstractSet<Map.Entry<String, String>> {
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+            return new Iterator<Map.Entry<String, String>>() {
+                private int index = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return index < size;
+                }
+
+                @Override
+                public Map.Entry<String, String> next() {
+                    if (index >= size)
+                        throw new NoSuchElementException();
+                    return entries[index++];
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    private static final class Entry implements Map.Entry<String, String> {
+        private String key;
+        private String value;
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public String setValue(String value) {
+            var old = this.value;
+            this.value = value;
+            return old;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            var e = (Map.Entry<?, ?>) o;
+            return Objects.equals(key, e.getKey()) && Objects.equals(value, e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(key) ^ Objects.hashCode(value);
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+}
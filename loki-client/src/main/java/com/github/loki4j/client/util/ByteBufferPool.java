@@ -0,0 +1,133 @@
+package com.github.loki4j.client.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of reusable ByteBuffers.
+ * <p>
+ * Buffers are grouped into size classes by powers of two, a class {@code n} holds buffers
+ * with capacity from {@code 2^n} (inclusive) to {@code 2^(n+1)} (exclusive).
+ * A request is served from the smallest class that guarantees enough capacity or the next one,
+ * so a reused buffer is never more than 4x larger than requested.
+ * If no buffer is found, a new one is allocated with capacity rounded up to a power of two.
+ * <p>
+ * Total capacity of the buffers kept in the pool is limited, extra buffers are left to GC.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class ByteBufferPool {
+
+    private static final int CLASS_COUNT = 31;
+
+    private final ByteBufferFactory bufferFactory;
+
+    /**
+     * Max total capacity of the buffers kept in the pool
+     */
+    private final long maxPooledBytes;
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] classes;
+
+    private final AtomicLong pooledBytes = new AtomicLong(0L);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    public ByteBufferPool(long maxPooledBytes, ByteBufferFactory bufferFactory) {
+        this.maxPooledBytes = maxPooledBytes;
+        this.bufferFactory = bufferFactory;
+        this.classes = new ConcurrentLinkedQueue[CLASS_COUNT];
+        for (int i = 0; i < classes.length; i++)
+            classes[i] = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Returns a cleared buffer with at least the given capacity, either from the pool or a new one
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        var sizeClass = ceilClass(minCapacity);
+        for (int i = sizeClass; i < Math.min(sizeClass + 2, CLASS_COUNT); i++) {
+            var buffer = classes[i].poll();
+            if (buffer != null) {
+                pooledBytes.addAndGet(-buffer.capacity());
+                hits.increment();
+                buffer.clear();
+                return buffer;
+            }
+        }
+        misses.increment();
+        // requests larger than 2^30 can't be rounded up without an overflow
+        var capacity = sizeClass < CLASS_COUNT ? 1 << sizeClass : minCapacity;
+        allocatedBytes.add(capacity);
+        return bufferFactory.allocate(capacity);
+    }
+
+    /**
+     * Puts the buffer back to the pool, unless the pool is full.
+     * The buffer must not be used after that
+     */
+    public void release(ByteBuffer buffer) {
+        var capacity = buffer.capacity();
+        if (capacity == 0)
+            return;
+        long current;
+        do {
+            current = pooledBytes.get();
+            if (current + capacity > maxPooledBytes)
+                return;
+        } while (!pooledBytes.compareAndSet(current, current + capacity));
+        classes[floorClass(capacity)].offer(buffer);
+    }
+
+    private static int ceilClass(int capacity) {
+        return capacity <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(capacity - 1);
+    }
+
+    private static int floorClass(int capacity) {
+        return 31 - Integer.numberOfLeadingZeros(capacity);
+    }
+
+    /**
+     * Number of requests served from the pool
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of requests that required a new buffer to be allocated
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Total capacity of all buffers allocated by the pool
+     */
+    public long allocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    /**
+     * Total capacity of the buffers currently kept in the pool
+     */
+    public long pooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Number of the buffers currently kept in the pool
+     */
+    public int size() {
+        var size = 0;
+        for (var c : classes)
+            size += c.size();
+        return size;
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.github.loki4j.client.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A buffer that many producer threads put elements into, and a single consumer thread
+ * takes them from.
+ * <p>
+ * Methods {@link #offer(Object)}, {@link #isEmpty()} and {@link #size()} are thread-safe.
+ * Methods {@link #peek()}, {@link #poll()} and {@link #drainTo(Object[], int)} must be called
+ * from a single consumer thread only.
+ */
+public interface ConcurrentBuffer<E> {
+
+    /**
+     * Adds an element to the buffer
+     * @return false if the buffer is full
+     */
+    boolean offer(E e);
+
+    /**
+     * Returns the next element without removing it, or null if the buffer is empty
+     */
+    E peek();
+
+    /**
+     * Removes and returns the next element, or null if the buffer is empty
+     */
+    E poll();
+
+    /**
+     * Removes up to {@code maxItems} elements at once and puts them into the target array
+     * starting from index 0
+     * @return Number of elements removed
+     */
+    int drainTo(E[] target, int maxItems);
+
+    boolean isEmpty();
+
+    /**
+     * Returns the number of elements in the buffer, the result is approximate if producers
+     * are adding elements concurrently
+     */
+    int size();
+
+    /**
+     * Creates an unbounded buffer backed by {@link ConcurrentLinkedQueue}
+     */
+    static <E> ConcurrentBuffer<E> unbounded() {
+        return new Unbounded<>();
+    }
+
+    final class Unbounded<E> implements ConcurrentBuffer<E> {
+        private final ConcurrentLinkedQueue<E> queue = new ConcurrentLinkedQueue<>();
+
+        private Unbounded() { }
+
+        @Override
+        public boolean offer(E e) {
+            return queue.offer(e);
+        }
+
+        @Override
+        public E peek() {
+            return queue.peek();
+        }
+
+        @Override
+        public E poll() {
+            return queue.poll();
+        }
+
+        @Override
+        public int drainTo(E[] target, int maxItems) {
+            var count = 0;
+            E e;
+            while (count < maxItems && (e = queue.poll()) != null)
+                target[count++] = e;
+            return count;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return queue.isEmpty();
+        }
+
+        @Override
+        public int size() {
+            return queue.size();
+        }
+    }
+}
@@ -5,20 +5,62 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 public class Loki4jThreadFactory implements ThreadFactory {
 
+    /**
+     * Factory of virtual threads if they are supported by the current JVM (21+), null otherwise.
+     * The library is compiled for Java 17, so virtual threads are accessed via reflection
+     */
+    private static final ThreadFactory VIRTUAL_THREADS = createVirtualThreadFactory();
+
     private String namePrefix;
 
     private AtomicInteger counter;
 
+    private boolean virtual;
+
     public Loki4jThreadFactory(String namePrefix) {
+        this(namePrefix, false);
+    }
+
+    /**
+     * @param namePrefix Prefix for names of created threads
+     * @param virtual If true, virtual threads are created when supported by the JVM,
+     * otherwise platform daemon threads are created
+     */
+    public Loki4jThreadFactory(String namePrefix, boolean virtual) {
         this.namePrefix = namePrefix;
         this.counter = new AtomicInteger(0);
+        this.virtual = virtual && VIRTUAL_THREADS != null;
     }
 
     @Override
     public Thread newThread(Runnable r) {
-        var t = new Thread(r, namePrefix + "-" + counter.getAndIncrement());
+        var name = namePrefix + "-" + counter.getAndIncrement();
+        if (virtual) {
+            var t = VIRTUAL_THREADS.newThread(r);
+            t.setName(name);
+            return t;
+        }
+        var t = new Thread(r, name);
         t.setDaemon(true);
         return t;
     }
-    
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public static boolean virtualThreadsSupported() {
+        return VIRTUAL_THREADS != null;
+    }
+
+    private static ThreadFactory createVirtualThreadFactory() {
+        try {
+            var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            var factory = Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+            return (ThreadFactory) factory;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
 }
@@ -0,0 +1,605 @@
+package com.github.loki4j.client.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent FIFO log of binary records stored in memory-mapped segment files.
+ * <p>
+ * Records are appended to the last segment, a new segment is started once it is full.
+ * Records are read in the order they were appended, and each read record must be acknowledged
+ * via {@link #ack(long)} once it's processed. The position before which all the records are
+ * acknowledged is persisted, so after a restart the log is recovered from this position,
+ * i.e. unacknowledged records are read again. Records acknowledged after this position are
+ * marked in place, so they are skipped.
+ * <p>
+ * Alternatively, records could be processed right away and only read back after a restart,
+ * see {@link #appendPending(ByteBuffer...)}. Such records could be mixed with regular ones,
+ * they are skipped when the log is read.
+ * <p>
+ * Total number of segments is limited. Segments that contain only acknowledged records
+ * are recycled for new records, so the files are not re-allocated.
+ * <p>
+ * Each record is prefixed with its length and a checksum that covers the segment number,
+ * so stale data in recycled or partially written segments is never read as a record.
+ * <p>
+ * The directory is locked while the log is open, so it can't be shared by several logs,
+ * neither in the same process nor in different ones.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class MappedSegmentLog implements Closeable {
+
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String HEAD_FILE = "head";
+    private static final String LOCK_FILE = "lock";
+
+    private final Path dir;
+
+    /**
+     * Size of a newly allocated segment file
+     */
+    private final int segmentBytes;
+
+    /**
+     * Max number of segment files in the directory
+     */
+    private final int maxSegments;
+
+    /**
+     * Segments that contain records which are not acknowledged yet, in the order of their numbers.
+     * The last one is the segment new records are appended to
+     */
+    private final ArrayList<Segment> segments = new ArrayList<>();
+
+    /**
+     * Segments that contain only acknowledged records, ready to be re-used
+     */
+    private final ArrayDeque<Segment> free = new ArrayDeque<>();
+
+    /**
+     * Positions of the records that are read but not acknowledged yet
+     */
+    private final TreeSet<Long> pending = new TreeSet<>();
+
+    private final CRC32 crc = new CRC32();
+
+    private final ByteBuffer segmentNoBytes = ByteBuffer.allocate(8);
+
+    private final MappedByteBuffer headFile;
+
+    /**
+     * Exclusive lock on the directory, held until the log is closed
+     */
+    private final FileLock dirLock;
+
+    /**
+     * Guards forcing changes to the storage device, so concurrent flushes are grouped
+     */
+    private final Object flushLock = new Object();
+
+    /**
+     * All records before this position are forced to the storage device
+     */
+    private long flushedPos;
+
+    /**
+     * All records before this position are acknowledged
+     */
+    private long head;
+
+    /**
+     * Position of the next record to read
+     */
+    private long readPos;
+
+    private volatile int unreadCount;
+
+    private boolean closed = false;
+
+    /**
+     * Opens the log in the given directory and recovers the records that were not acknowledged
+     * @param dir Directory for segment files, it is created if it doesn't exist
+     * @param segmentBytes Size of a segment file, a record can't be larger than that
+     * @param maxBytes Max total size of segment files
+     */
+    public MappedSegmentLog(Path dir, int segmentBytes, long maxBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxBytes / segmentBytes));
+        FileLock lock = null;
+        try {
+            Files.createDirectories(dir);
+            lock = lockDir(dir);
+            headFile = map(dir.resolve(HEAD_FILE), 8);
+            head = headFile.getLong(0);
+            recover();
+        } catch (IOException e) {
+            unlock(lock);
+            throw new UncheckedIOException("Unable to open segment log in " + dir, e);
+        }
+        dirLock = lock;
+    }
+
+    private static FileLock lockDir(Path dir) throws IOException {
+        var ch = FileChannel.open(dir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = null;
+        try {
+            lock = ch.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // locked by this process
+        } finally {
+            if (lock == null)
+                ch.close();
+        }
+        if (lock == null)
+            throw new IOException("Directory is used by another segment log");
+        return lock;
+    }
+
+    private static void unlock(FileLock lock) {
+        if (lock == null)
+            return;
+        try {
+            // closing the channel releases the lock
+            lock.channel().close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to unlock segment log", e);
+        }
+    }
+
+    private void recover() throws IOException {
+        var found = new ArrayList<Segment>();
+        try (var files = Files.list(dir)) {
+            for (var path : (Iterable<Path>) files::iterator) {
+                var name = path.getFileName().toString();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    var no = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16);
+                    found.add(new Segment(no, path, map(path, (int) Files.size(path))));
+                }
+            }
+        }
+        found.sort((a, b) -> Long.compare(a.no, b.no));
+
+        for (var segment : found) {
+            var expectedNo = segments.isEmpty() ? segmentNo(head) : last().no + 1;
+            if (segment.no == expectedNo) {
+                segment.limit = scan(segment, segments.isEmpty() ? offset(head) : 0);
+                segments.add(segment);
+            } else if (segment.no > expectedNo && segments.isEmpty()) {
+                // the head segment is missing, start from the first segment that exists
+                head = position(segment.no, 0);
+                segment.limit = scan(segment, 0);
+                segments.add(segment);
+            } else if (segment.no < expectedNo) {
+                recycle(segment);
+            } else {
+                // records after a gap can't be replayed in order
+                Files.delete(segment.path);
+            }
+        }
+        if (segments.isEmpty())
+            segments.add(allocate(segmentNo(head)));
+        readPos = head;
+        flushedPos = end();
+    }
+
+    /**
+     * Skips all valid records in the segment starting from the given offset
+     * @return Offset next to the last valid record
+     */
+    private int scan(Segment segment, int offset) {
+        while (true) {
+            var length = recordLength(segment, offset);
+            if (length < 0)
+                return offset;
+            if (!isAcked(segment, offset))
+                unreadCount++;
+            offset += RECORD_HEADER_BYTES + length;
+        }
+    }
+
+    /**
+     * Returns the length of a valid record at the given offset, even if it's acknowledged
+     * @return Length of the record, or -1 if there is no valid record
+     */
+    private int recordLength(Segment segment, int offset) {
+        var buf = segment.buffer;
+        if (offset + RECORD_HEADER_BYTES > buf.capacity())
+            return -1;
+        var length = Math.abs(buf.getInt(offset));
+        if (length <= 0 || length > buf.capacity() - offset - RECORD_HEADER_BYTES)
+            return -1;
+        var data = buf.duplicate();
+        data.limit(offset + RECORD_HEADER_BYTES + length);
+        data.position(offset + RECORD_HEADER_BYTES);
+        if (checksum(segment.no, data) != buf.getInt(offset + 4))
+            return -1;
+        return length;
+    }
+
+    private int checksum(long no, ByteBuffer... parts) {
+        crc.reset();
+        segmentNoBytes.clear();
+        crc.update(segmentNoBytes.putLong(no).flip());
+        for (var part : parts)
+            crc.update(part.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Appends a record that consists of the remaining bytes of the given buffers.
+     * Buffer positions are not changed
+     * @return Position of the record, or -1 if the log is full or closed
+     */
+    public synchronized long append(ByteBuffer... parts) {
+        var position = write(parts);
+        if (position >= 0)
+            unreadCount++;
+        return position;
+    }
+
+    /**
+     * Appends a record that is considered already read, so it is only acknowledged via {@link #ack(long)}.
+     * This way, the log is read only to recover records that were not acknowledged before a restart.
+     * Buffer positions are not changed
+     * @return Position of the record, or -1 if the log is full or closed
+     */
+    public synchronized long appendPending(ByteBuffer... parts) {
+        var position = write(parts);
+        if (position >= 0)
+            pending.add(position);
+        return position;
+    }
+
+    private long write(ByteBuffer... parts) {
+        if (closed)
+            return -1;
+        var length = 0;
+        for (var part : parts)
+            length += part.remaining();
+        if (length == 0 || length > segmentBytes - RECORD_HEADER_BYTES)
+            return -1;
+
+        var segment = last();
+        if (segment.limit + RECORD_HEADER_BYTES + length > segment.buffer.capacity()) {
+            segment = nextSegment();
+            if (segment == null)
+                return -1;
+        }
+        var buf = segment.buffer;
+        var offset = segment.limit;
+        buf.position(offset + RECORD_HEADER_BYTES);
+        for (var part : parts)
+            buf.put(part.duplicate());
+        buf.putInt(offset + 4, checksum(segment.no, parts));
+        buf.putInt(offset, length);
+        segment.limit = offset + RECORD_HEADER_BYTES + length;
+        return position(segment.no, offset);
+    }
+
+    private Segment nextSegment() {
+        if (segments.size() >= maxSegments)
+            return null;
+        var no = last().no + 1;
+        try {
+            Segment segment = null;
+            while (segment == null && !free.isEmpty()) {
+                var recycled = free.poll();
+                if (recycled.buffer.capacity() == segmentBytes) {
+                    var path = segmentPath(no);
+                    Files.move(recycled.path, path, StandardCopyOption.REPLACE_EXISTING);
+                    segment = new Segment(no, path, recycled.buffer);
+                } else {
+                    Files.deleteIfExists(recycled.path);
+                }
+            }
+            if (segment == null)
+                segment = allocate(no);
+            segments.add(segment);
+            return segment;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates a new segment file filled with zeros.
+     * Disk space is allocated right away, so writes to the mapped buffer never fail
+     */
+    private Segment allocate(long no) throws IOException {
+        var path = segmentPath(no);
+        try (var ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var zeros = ByteBuffer.allocate(64 * 1024);
+            for (long pos = 0; pos < segmentBytes; pos += zeros.capacity()) {
+                zeros.clear().limit((int) Math.min(zeros.capacity(), segmentBytes - pos));
+                while (zeros.hasRemaining())
+                    ch.write(zeros, pos + zeros.position());
+            }
+            return new Segment(no, path, ch.map(MapMode.READ_WRITE, 0, segmentBytes));
+        }
+    }
+
+    /**
+     * Returns the length of the next record to read without reading it
+     * @return Length of the record, or -1 if there are no records to read
+     */
+    public synchronized int peekLength() {
+        if (!moveToNextRecord())
+            return -1;
+        return segment(readPos).buffer.getInt(offset(readPos));
+    }
+
+    /**
+     * Reads the next record, records appended via {@link #appendPending(ByteBuffer...)} are skipped.
+     * The record must be acknowledged via {@link #ack(long)} once it's processed
+     * @param reader Receives a read-only buffer with the record, valid only until the reader returns
+     * @return Position of the record, or -1 if there are no records to read
+     */
+    public synchronized long poll(Consumer<ByteBuffer> reader) {
+        if (!moveToNextRecord())
+            return -1;
+        var position = readPos;
+        var segment = segment(position);
+        var offset = offset(position);
+        var length = segment.buffer.getInt(offset);
+        var data = segment.buffer.asReadOnlyBuffer();
+        data.limit(offset + RECORD_HEADER_BYTES + length);
+        data.position(offset + RECORD_HEADER_BYTES);
+        reader.accept(data);
+        readPos = position + RECORD_HEADER_BYTES + length;
+        pending.add(position);
+        unreadCount--;
+        return position;
+    }
+
+    /**
+     * Passes each record that is not read yet to the given reader, without reading it
+     */
+    public synchronized void forEachUnread(Consumer<ByteBuffer> reader) {
+        var pos = readPos;
+        for (int i = segments.indexOf(segment(pos)); i < segments.size(); i++) {
+            var segment = segments.get(i);
+            var offset = segment.no == segmentNo(pos) ? offset(pos) : 0;
+            while (offset < segment.limit) {
+                var length = Math.abs(segment.buffer.getInt(offset));
+                if (!isAcked(segment, offset) && !pending.contains(position(segment.no, offset))) {
+                    var data = segment.buffer.asReadOnlyBuffer();
+                    data.limit(offset + RECORD_HEADER_BYTES + length);
+                    data.position(offset + RECORD_HEADER_BYTES);
+                    reader.accept(data);
+                }
+                offset += RECORD_HEADER_BYTES + length;
+            }
+        }
+    }
+
+    private boolean moveToNextRecord() {
+        if (unreadCount == 0)
+            return false;
+        skipReadSegments();
+        // pending and acknowledged records are already read
+        var segment = segment(readPos);
+        while (isAcked(segment, offset(readPos)) || pending.contains(readPos)) {
+            readPos += RECORD_HEADER_BYTES + Math.abs(segment.buffer.getInt(offset(readPos)));
+            skipReadSegments();
+            segment = segment(readPos);
+        }
+        return true;
+    }
+
+    private static boolean isAcked(Segment segment, int offset) {
+        return segment.buffer.getInt(offset) < 0;
+    }
+
+    /**
+     * Marks the record as acknowledged by negating its length,
+     * so it's not read again after a restart
+     */
+    private void markAcked(long position) {
+        var buf = segment(position).buffer;
+        var offset = offset(position);
+        buf.putInt(offset, -Math.abs(buf.getInt(offset)));
+    }
+
+    /**
+     * Moves the read position to the next segment if the current one is read completely
+     * and no more records could be appended to it
+     */
+    private void skipReadSegments() {
+        var segment = segment(readPos);
+        while (offset(readPos) >= segment.limit && segment != last()) {
+            segment = segments.get(segments.indexOf(segment) + 1);
+            readPos = position(segment.no, 0);
+        }
+    }
+
+    /**
+     * Acknowledges a record read via {@link #poll(Consumer)} or appended via {@link #appendPending(ByteBuffer...)}.
+     * Segments that contain only acknowledged records are recycled
+     */
+    public synchronized void ack(long position) {
+        if (closed || !pending.remove(position))
+            return;
+        markAcked(position);
+        moveHead();
+    }
+
+    /**
+     * Acknowledges several records at once, see {@link #ack(long)}
+     */
+    public synchronized void ack(long[] positions) {
+        if (closed)
+            return;
+        var removed = false;
+        for (var position : positions) {
+            if (pending.remove(position)) {
+                markAcked(position);
+                removed = true;
+            }
+        }
+        if (removed)
+            moveHead();
+    }
+
+    private void moveHead() {
+        if (unreadCount > 0) {
+            skipReadSegments();
+        } else {
+            // there could be pending records appended after the last read one
+            readPos = end();
+        }
+        var newHead = pending.isEmpty() ? readPos : Math.min(readPos, pending.first());
+        if (newHead == head)
+            return;
+        head = newHead;
+        headFile.putLong(0, head);
+        while (segments.get(0).no < segmentNo(head))
+            recycle(segments.remove(0));
+    }
+
+    private void recycle(Segment segment) {
+        segment.limit = 0;
+        free.offer(segment);
+    }
+
+    public boolean isEmpty() {
+        return unreadCount == 0;
+    }
+
+    /**
+     * Number of records that are not read yet
+     */
+    public int size() {
+        return unreadCount;
+    }
+
+    /**
+     * Number of bytes occupied by records that are not acknowledged yet
+     */
+    public synchronized long sizeBytes() {
+        var bytes = -offset(head);
+        for (var segment : segments)
+            bytes += segment.limit;
+        return bytes;
+    }
+
+    /**
+     * Forces all appended records to be written to the storage device.
+     * Appends are not blocked while the records are written, and concurrent flushes
+     * are grouped, so only one of them is actually waiting for the device
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            var buffers = new ArrayList<MappedByteBuffer>();
+            var from = new ArrayList<Integer>();
+            var to = new ArrayList<Integer>();
+            synchronized (this) {
+                var end = end();
+                if (end == flushedPos)
+                    return;
+                for (var segment : segments) {
+                    if (segment.no < segmentNo(flushedPos))
+                        continue;
+                    var offset = segment.no == segmentNo(flushedPos) ? offset(flushedPos) : 0;
+                    if (segment.limit > offset) {
+                        buffers.add(segment.buffer);
+                        from.add(offset);
+                        to.add(segment.limit);
+                    }
+                }
+                flushedPos = end;
+            }
+            for (int i = 0; i < buffers.size(); i++)
+                buffers.get(i).force(from.get(i), to.get(i) - from.get(i));
+        }
+    }
+
+    /**
+     * Flushes the log and stops accepting new records and acknowledgements.
+     * Records that are not acknowledged will be recovered when the log is opened next time
+     */
+    @Override
+    public void close() {
+        flush();
+        synchronized (this) {
+            if (closed)
+                return;
+            headFile.force();
+            closed = true;
+            unlock(dirLock);
+        }
+    }
+
+    /**
+     * Position next to the last appended record
+     */
+    private long end() {
+        var tail = last();
+        return position(tail.no, tail.limit);
+    }
+
+    private Segment last() {
+        return segments.get(segments.size() - 1);
+    }
+
+    private Segment segment(long position) {
+        return segments.get((int) (segmentNo(position) - segments.get(0).no));
+    }
+
+    private Path segmentPath(long no) {
+        return dir.resolve(String.format("%016x%s", no, SEGMENT_SUFFIX));
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        try (var ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return ch.map(MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static long position(long segmentNo, int offset) {
+        return (segmentNo << 32) | offset;
+    }
+
+    private static long segmentNo(long position) {
+        return position >>> 32;
+    }
+
+    private static int offset(long position) {
+        return (int) position;
+    }
+
+    private static final class Segment {
+        final long no;
+        final Path path;
+        final MappedByteBuffer buffer;
+        /**
+         * Offset next to the last record in this segment
+         */
+        int limit;
+
+        Segment(long no, Path path, MappedByteBuffer buffer) {
+            this.no = no;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+package com.github.loki4j.client.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free multi-producer/multi-consumer queue backed by a pre-sized ring buffer.
+ * <p>
+ * Each slot has its own sequence number that tells producers and consumers whether
+ * the slot is free or holds a published element, so no allocation happens on
+ * {@link #offer(Object)} or {@link #poll()}.
+ * <p>
+ * Peeking is racy with multiple consumers, so only offer and poll are provided.
+ * All methods are thread-safe.
+ */
+public final class MpmcRingBuffer<E> {
+
+    /**
+     * Distance (in longs) between positions, see {@link MpscRingBuffer}
+     */
+    private static final int PAD = 16;
+    private static final int PRODUCER = PAD;
+    private static final int CONSUMER = PAD * 2;
+
+    private final AtomicLongArray positions = new AtomicLongArray(PAD * 3);
+    private final AtomicLongArray sequences;
+    private final AtomicReferenceArray<E> items;
+    private final int mask;
+
+    /**
+     * @param capacity Min number of elements this buffer should fit,
+     * effective capacity is rounded up to the nearest power of two
+     */
+    public MpmcRingBuffer(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Ring buffer capacity must be positive: " + capacity);
+        var effectiveCapacity = 1 << (32 - Integer.numberOfLeadingZeros(capacity - 1));
+        this.items = new AtomicReferenceArray<>(effectiveCapacity);
+        this.sequences = new AtomicLongArray(effectiveCapacity);
+        for (int i = 0; i < effectiveCapacity; i++)
+            sequences.set(i, i);
+        this.mask = effectiveCapacity - 1;
+    }
+
+    /**
+     * Adds an element to the buffer
+     * @return false if the buffer is full
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException("Ring buffer does not accept nulls");
+        long pIndex;
+        int offset;
+        while (true) {
+            pIndex = positions.get(PRODUCER);
+            offset = (int) pIndex & mask;
+            var diff = sequences.get(offset) - pIndex;
+            if (diff == 0) {
+                if (positions.compareAndSet(PRODUCER, pIndex, pIndex + 1))
+                    break;
+            } else if (diff < 0) {
+                // the slot is not consumed yet since the previous lap
+                return false;
+            }
+        }
+        items.lazySet(offset, e);
+        sequences.lazySet(offset, pIndex + 1);
+        return true;
+    }
+
+    /**
+     * Removes and returns the next element, or null if the buffer is empty
+     */
+    public E poll() {
+        long cIndex;
+        int offset;
+        while (true) {
+            cIndex = positions.get(CONSUMER);
+            offset = (int) cIndex & mask;
+            var diff = sequences.get(offset) - (cIndex + 1);
+            if (diff == 0) {
+                if (positions.compareAndSet(CONSUMER, cIndex, cIndex + 1))
+                    break;
+            } else if (diff < 0) {
+                // the slot is not published yet
+                return null;
+            }
+        }
+        var e = items.get(offset);
+        items.lazySet(offset, null);
+        sequences.lazySet(offset, cIndex + mask + 1);
+        return e;
+    }
+
+    public boolean isEmpty() {
+        return positions.get(CONSUMER) >= positions.get(PRODUCER);
+    }
+
+    /**
+     * Returns the number of elements in the buffer, the result is approximate
+     * if it's modified concurrently
+     */
+    public int size() {
+        // read consumer first, so the result is never negative
+        var cIndex = positions.get(CONSUMER);
+        var pIndex = positions.get(PRODUCER);
+        return (int) Math.max(0, Math.min(pIndex - cIndex, items.length()));
+    }
+
+    public int capacity() {
+        return items.length();
+    }
+
+}
@@ -0,0 +1,140 @@
+package com.github.loki4j.client.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free multi-producer/single-consumer queue backed by a pre-sized ring buffer.
+ * <p>
+ * Unlike {@link java.util.concurrent.ConcurrentLinkedQueue ConcurrentLinkedQueue} it does not
+ * allocate a node per element. Producer and consumer sequences are padded to separate
+ * cache lines, so producers do not contend with the consumer. Producers also cache the
+ * last known limit of free slots, so they read the consumer sequence only when the buffer
+ * looks full.
+ * <p>
+ * Length of the ring is rounded up to the nearest power of two, but the buffer never holds
+ * more elements than its capacity.
+ * <p>
+ * Methods {@link #offer(Object)}, {@link #isEmpty()} and {@link #size()} are thread-safe.
+ * Methods {@link #poll()}, {@link #peek()} and {@link #drainTo(Object[], int)} must be called
+ * from a single consumer thread only.
+ */
+public final class MpscRingBuffer<E> implements ConcurrentBuffer<E> {
+
+    /**
+     * Distance (in longs) between sequence counters, 128 bytes covers
+     * two adjacent cache lines that could be prefetched together
+     */
+    private static final int PAD = 16;
+    private static final int PRODUCER = PAD;
+    private static final int PRODUCER_LIMIT = PAD * 2;
+    private static final int CONSUMER = PAD * 3;
+
+    private final AtomicLongArray sequences = new AtomicLongArray(PAD * 4);
+    private final AtomicReferenceArray<E> items;
+    private final int mask;
+    private final int capacity;
+
+    /**
+     * @param capacity Max number of elements this buffer could hold
+     */
+    public MpscRingBuffer(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Ring buffer capacity must be positive: " + capacity);
+        var length = 1 << (32 - Integer.numberOfLeadingZeros(capacity - 1));
+        this.items = new AtomicReferenceArray<>(length);
+        this.mask = length - 1;
+        this.capacity = capacity;
+        sequences.set(PRODUCER_LIMIT, capacity);
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException("Ring buffer does not accept nulls");
+        long pIndex;
+        do {
+            pIndex = sequences.get(PRODUCER);
+            if (pIndex >= sequences.get(PRODUCER_LIMIT)) {
+                var limit = sequences.get(CONSUMER) + capacity;
+                if (pIndex >= limit)
+                    return false;
+                sequences.set(PRODUCER_LIMIT, limit);
+            }
+        } while (!sequences.compareAndSet(PRODUCER, pIndex, pIndex + 1));
+        // slot is claimed, publish the element
+        items.lazySet((int) pIndex & mask, e);
+        return true;
+    }
+
+    @Override
+    public E poll() {
+        var cIndex = sequences.get(CONSUMER);
+        var offset = (int) cIndex & mask;
+        var e = waitForElement(cIndex, offset);
+        if (e == null)
+            return null;
+        items.lazySet(offset, null);
+        sequences.lazySet(CONSUMER, cIndex + 1);
+        return e;
+    }
+
+    @Override
+    public E peek() {
+        var cIndex = sequences.get(CONSUMER);
+        return waitForElement(cIndex, (int) cIndex & mask);
+    }
+
+    /**
+     * Takes all the elements published so far (up to the limit),
+     * the consumer sequence is advanced only once for all of them
+     */
+    @Override
+    public int drainTo(E[] target, int maxItems) {
+        var cIndex = sequences.get(CONSUMER);
+        var available = (int) Math.min(sequences.get(PRODUCER) - cIndex, maxItems);
+        for (int i = 0; i < available; i++) {
+            var offset = (int) (cIndex + i) & mask;
+            target[i] = waitForElement(cIndex + i, offset);
+            items.lazySet(offset, null);
+        }
+        if (available > 0)
+            sequences.lazySet(CONSUMER, cIndex + available);
+        return Math.max(0, available);
+    }
+
+    /**
+     * A producer could already claim a slot, but not yet publish its element.
+     * In this case we spin until the element becomes visible.
+     */
+    private E waitForElement(long cIndex, int offset) {
+        var e = items.get(offset);
+        if (e == null) {
+            if (cIndex == sequences.get(PRODUCER))
+                return null;
+            do {
+                Thread.onSpinWait();
+                e = items.get(offset);
+            } while (e == null);
+        }
+        return e;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return sequences.get(CONSUMER) == sequences.get(PRODUCER);
+    }
+
+    @Override
+    public int size() {
+        // read consumer first, so the result is never negative
+        var cIndex = sequences.get(CONSUMER);
+        var pIndex = sequences.get(PRODUCER);
+        return (int) Math.min(pIndex - cIndex, capacity);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+}
@@ -7,7 +7,8 @@ public class StringUtils {
 
     /**
      * Calculate the number of bytes required to store given string
-     * in UTF-8 encoding.
+     * in UTF-8 encoding. Unpaired surrogates are counted as replaced
+     * with '?', the same way {@link String#getBytes(java.nio.charset.Charset)} does.
      */
     public static int utf8Length(CharSequence input) {
         int count = 0;
@@ -17,9 +18,13 @@ public class StringUtils {
                 count++;
             } else if (ch <= 0x7FF) {
                 count += 2;
-            } else if (Character.isHighSurrogate(ch)) {
+            } else if (Character.isHighSurrogate(ch)
+                    && i + 1 < len
+                    && Character.isLowSurrogate(input.charAt(i + 1))) {
                 count += 4;
                 ++i;
+            } else if (Character.isSurrogate(ch)) {
+                count++;
             } else {
                 count += 3;
             }
@@ -0,0 +1,139 @@
+package com.github.loki4j.client.util;
+
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded multi-producer/single-consumer queue that spreads producers across several
+ * {@link MpscRingBuffer ring buffers} (stripes) to avoid contention on a single shared structure.
+ * Each producer thread always writes into the same stripe. Threads are assigned to stripes
+ * in round-robin on their first offer, so they are spread evenly.
+ * <p>
+ * The consumer merges the stripes: {@link #peek()} and {@link #poll()} return the smallest
+ * head element among all stripes according to the given comparator. Elements from the same
+ * stripe are always returned in the order they were added.
+ * <p>
+ * Note that {@link #offer(Object)} fails if the producer's stripe is full, even if other
+ * stripes still have free slots.
+ * <p>
+ * Methods {@link #offer(Object)}, {@link #isEmpty()} and {@link #size()} are thread-safe.
+ * Methods {@link #poll()}, {@link #peek()} and {@link #drainTo(Object[], int)} must be called
+ * from a single consumer thread only.
+ */
+public final class StripedRingBuffer<E> implements ConcurrentBuffer<E> {
+
+    /**
+     * Sequential index of a producer thread, assigned on its first offer to any striped buffer
+     */
+    private static final AtomicInteger nextThreadIndex = new AtomicInteger(0);
+    private static final ThreadLocal<Integer> threadIndex =
+        ThreadLocal.withInitial(() -> nextThreadIndex.getAndIncrement() & Integer.MAX_VALUE);
+
+    private final MpscRingBuffer<E>[] stripes;
+    private final Comparator<E> comparator;
+
+    /**
+     * Stripe selected by the last {@link #peek()}.
+     * It guarantees that the following {@link #poll()} returns the same element,
+     * even if a smaller one arrived in another stripe in between.
+     * Accessed by consumer thread only
+     */
+    private int headStripe = -1;
+
+    /**
+     * @param stripesCount Number of stripes, it's limited by capacity, so each stripe fits at least one element
+     * @param capacity Max number of elements in all the stripes, it's split between stripes evenly
+     * @param comparator Order used for merging stripes on the consumer side
+     */
+    @SuppressWarnings("unchecked")
+    public StripedRingBuffer(int stripesCount, int capacity, Comparator<E> comparator) {
+        if (stripesCount < 1)
+            throw new IllegalArgumentException("Number of stripes must be positive: " + stripesCount);
+        if (capacity < 1)
+            throw new IllegalArgumentException("Ring buffer capacity must be positive: " + capacity);
+        var effectiveCount = Math.min(stripesCount, capacity);
+        this.stripes = new MpscRingBuffer[effectiveCount];
+        for (int i = 0; i < effectiveCount; i++)
+            stripes[i] = new MpscRingBuffer<>(capacity / effectiveCount + (i < capacity % effectiveCount ? 1 : 0));
+        this.comparator = comparator;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        return offer(threadIndex.get() % stripes.length, e);
+    }
+
+    /**
+     * Adds an element to the given stripe
+     */
+    boolean offer(int stripe, E e) {
+        return stripes[stripe].offer(e);
+    }
+
+    @Override
+    public E peek() {
+        headStripe = selectHeadStripe();
+        return headStripe < 0 ? null : stripes[headStripe].peek();
+    }
+
+    @Override
+    public E poll() {
+        var stripe = headStripe >= 0 ? headStripe : selectHeadStripe();
+        headStripe = -1;
+        return stripe < 0 ? null : stripes[stripe].poll();
+    }
+
+    /**
+     * Takes elements one by one in the merged order
+     */
+    @Override
+    public int drainTo(E[] target, int maxItems) {
+        var count = 0;
+        E e;
+        while (count < maxItems && (e = poll()) != null)
+            target[count++] = e;
+        return count;
+    }
+
+    private int selectHeadStripe() {
+        var minStripe = -1;
+        E min = null;
+        for (int i = 0; i < stripes.length; i++) {
+            var e = stripes[i].peek();
+            if (e != null && (min == null || comparator.compare(e, min) < 0)) {
+                min = e;
+                minStripe = i;
+            }
+        }
+        return minStripe;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (var stripe : stripes) {
+            if (!stripe.isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int size() {
+        var size = 0;
+        for (var stripe : stripes)
+            size += stripe.size();
+        return size;
+    }
+
+    public int stripesCount() {
+        return stripes.length;
+    }
+
+    public int capacity() {
+        var capacity = 0;
+        for (var stripe : stripes)
+            capacity += stripe.capacity();
+        return capacity;
+    }
+
+}
@@ -0,0 +1,168 @@
+package com.github.loki4j.client.util;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Defines how a consumer thread waits for new work to appear.
+ * <p>
+ * A consumer calls {@link #await(BooleanSupplier, long)} in a loop until its condition is met.
+ * Producers call {@link #signal()} after they publish new work.
+ * Non-signalling strategies ignore signals and just poll the condition.
+ */
+public interface WaitStrategy {
+
+    /**
+     * Waits for a while, returns if the condition is met, the strategy is signalled,
+     * or the timeout is expired. The caller should re-check its condition after return.
+     * @param isReady Condition the consumer is waiting for
+     * @param timeoutNs Max time to wait in nanoseconds
+     */
+    void await(BooleanSupplier isReady, long timeoutNs) throws InterruptedException;
+
+    /**
+     * Wakes up consumers waiting on this strategy
+     */
+    void signal();
+
+    /**
+     * If true, every change a consumer waits for is signalled by producers,
+     * so wait timeouts serve only as a safety net
+     */
+    boolean isSignalling();
+
+    /**
+     * Names of the supported wait strategies
+     */
+    public static final Set<String> NAMES = Set.of("park", "block", "yield", "spin");
+
+    /**
+     * Checks if there is a wait strategy with the given name
+     */
+    public static boolean isKnown(String name) {
+        return name != null && NAMES.contains(name);
+    }
+
+    /**
+     * Creates a wait strategy by its name: park, block, yield, or spin
+     */
+    public static WaitStrategy of(String name) {
+        if (name == null)
+            throw new IllegalArgumentException("Wait strategy is not specified");
+        switch (name) {
+            case "park": return new ParkWaitStrategy();
+            case "block": return new BlockingWaitStrategy();
+            case "yield": return new YieldingWaitStrategy();
+            case "spin": return new BusySpinWaitStrategy();
+            default: throw new IllegalArgumentException("Unknown wait strategy: " + name);
+        }
+    }
+
+    /**
+     * Parks the consumer thread for the whole timeout.
+     * Adds up to timeout latency, but costs almost nothing while idle
+     */
+    public static class ParkWaitStrategy implements WaitStrategy {
+        @Override
+        public void await(BooleanSupplier isReady, long timeoutNs) {
+            LockSupport.parkNanos(this, timeoutNs);
+        }
+
+        @Override
+        public void signal() { }
+
+        @Override
+        public boolean isSignalling() {
+            return false;
+        }
+    }
+
+    /**
+     * Blocks the consumer thread until a producer signals.
+     * Producers take the lock only if there are consumers waiting,
+     * i.e. on transition of the queue from empty to non-empty
+     */
+    public static class BlockingWaitStrategy implements WaitStrategy {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final AtomicInteger waiters = new AtomicInteger(0);
+
+        @Override
+        public void await(BooleanSupplier isReady, long timeoutNs) throws InterruptedException {
+            lock.lock();
+            try {
+                // register before checking the condition, so a concurrent signal can not be lost
+                waiters.incrementAndGet();
+                var remainingNs = timeoutNs;
+                while (!isReady.getAsBoolean() && remainingNs > 0)
+                    remainingNs = notEmpty.awaitNanos(remainingNs);
+            } finally {
+                waiters.decrementAndGet();
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void signal() {
+            if (waiters.get() == 0)
+                return;
+            lock.lock();
+            try {
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isSignalling() {
+            return true;
+        }
+    }
+
+    /**
+     * Yields the consumer thread to others.
+     * Low latency, but keeps a CPU core busy while idle
+     */
+    public static class YieldingWaitStrategy implements WaitStrategy {
+        @Override
+        public void await(BooleanSupplier isReady, long timeoutNs) {
+            var deadlineNs = System.nanoTime() + timeoutNs;
+            while (!isReady.getAsBoolean() && System.nanoTime() - deadlineNs < 0)
+                Thread.yield();
+        }
+
+        @Override
+        public void signal() { }
+
+        @Override
+        public boolean isSignalling() {
+            return false;
+        }
+    }
+
+    /**
+     * Spins the consumer thread.
+     * The lowest latency, but burns a CPU core while idle
+     */
+    public static class BusySpinWaitStrategy implements WaitStrategy {
+        @Override
+        public void await(BooleanSupplier isReady, long timeoutNs) {
+            var deadlineNs = System.nanoTime() + timeoutNs;
+            while (!isReady.getAsBoolean() && System.nanoTime() - deadlineNs < 0)
+                Thread.onSpinWait();
+        }
+
+        @Override
+        public void signal() { }
+
+        @Override
+        public boolean isSignalling() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.github.loki4j.client.writer;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.github.loki4j.client.batch.LogRecordBatch;
+import com.github.loki4j.client.util.ByteBufferFactory;
+
+/**
+ * Compresses batches encoded by another writer into gzip format.
+ * The result should be sent with {@code Content-Encoding: gzip} header.
+ * <p>
+ * Deflater, checksum and buffers are allocated once and reused for all batches,
+ * so this writer must not be shared between threads. The deflater holds native memory,
+ * it's released via {@link #close()}.
+ */
+public final class GzipWriter implements Writer {
+
+    /**
+     * Gzip member header: magic, deflate method, no flags, no mtime, no extra flags, unknown OS
+     */
+    private static final byte[] HEADER = new byte[] { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    /**
+     * Gzip member trailer: CRC-32 and uncompressed size, both 4 bytes
+     */
+    private static final int TRAILER_SIZE = 8;
+
+    private final Writer writer;
+    private final ByteBufferFactory bbFactory;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+
+    private ByteBuffer uncompressed;
+    private ByteBuffer compressed;
+
+    private int size = 0;
+
+    /**
+     * @param writer A writer to compress the output of
+     * @param capacity Expected max size of the output of the wrapped writer, buffers grow if it's exceeded
+     * @param level Compression level from 1 (fastest) to 9 (smallest), or -1 for the default level
+     * @param bbFactory A factory for byte buffers
+     */
+    public GzipWriter(Writer writer, int capacity, int level, ByteBufferFactory bbFactory) {
+        this.writer = writer;
+        this.bbFactory = bbFactory;
+        this.deflater = new Deflater(level, true);
+        this.uncompressed = bbFactory.allocate(capacity);
+        this.compressed = allocateCompressed(capacity);
+    }
+
+    public boolean isBinary() {
+        return true;
+    }
+
+    public void serializeBatch(LogRecordBatch batch) {
+        writer.serializeBatch(batch);
+        var length = writer.size();
+        if (uncompressed.capacity() < length) {
+            uncompressed = bbFactory.allocate(length + length / 2);
+            compressed = allocateCompressed(uncompressed.capacity());
+        }
+        uncompressed.clear();
+        writer.toByteBuffer(uncompressed);
+        writer.reset();
+
+        crc.reset();
+        crc.update(uncompressed.duplicate());
+
+        compressed.clear();
+        compressed.put(HEADER);
+        deflater.reset();
+        deflater.setInput(uncompressed);
+        deflater.finish();
+        while (!deflater.finished()) {
+            // output never exceeds the bound, this is a safety net against an endless loop
+            if (!compressed.hasRemaining())
+                throw new BufferOverflowException();
+            deflater.deflate(compressed);
+        }
+        compressed.putInt((int) crc.getValue());
+        compressed.putInt(length);
+        compressed.flip();
+        size = compressed.remaining();
+    }
+
+    private ByteBuffer allocateCompressed(int uncompressedCapacity) {
+        // the same upper bound as zlib deflateBound() gives for incompressible input
+        var n = uncompressedCapacity;
+        var maxDeflatedSize = n + (n >> 12) + (n >> 14) + (n >> 25) + 13;
+        var buffer = bbFactory.allocate(HEADER.length + maxDeflatedSize + TRAILER_SIZE);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void toByteBuffer(ByteBuffer buffer) {
+        buffer.put(compressed);
+        buffer.flip();
+        reset();
+    }
+
+    public byte[] toByteArray() {
+        var result = new byte[compressed.remaining()];
+        compressed.get(result);
+        reset();
+        return result;
+    }
+
+    public void reset() {
+        size = 0;
+        compressed.clear();
+        writer.reset();
+    }
+
+    /**
+     * Releases the native memory of the deflater instead of waiting for GC to clean it up
+     */
+    @Override
+    public void close() {
+        deflater.end();
+        writer.close();
+    }
+
+}
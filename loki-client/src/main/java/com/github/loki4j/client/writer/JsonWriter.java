@@ -3,16 +3,36 @@ package com.github.loki4j.client.writer;
 import static com.github.loki4j.pkg.dslplatform.json.RawJsonWriter.*;
 
 import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.Map;
 
+import com.github.loki4j.client.batch.LabelStream;
 import com.github.loki4j.client.batch.LogRecord;
 import com.github.loki4j.client.batch.LogRecordBatch;
+import com.github.loki4j.client.util.ByteBufferFactory;
 import com.github.loki4j.pkg.dslplatform.json.RawJsonWriter;
 
 public final class JsonWriter implements Writer {
 
+    /**
+     * Max number of encoded label sets to cache.
+     * When the limit is reached, the cache is truncated to zero
+     */
+    private static final int MAX_CACHED_LABELS = 1000;
+
     private final RawJsonWriter raw;
 
+    /**
+     * Label sets already encoded into JSON objects, ready to be copied into the output.
+     * Label streams are interned, so they are effectively compared by identity
+     */
+    private final HashMap<LabelStream, byte[]> encodedLabels = new HashMap<>();
+
+    /**
+     * A separate writer used for encoding label sets before caching them
+     */
+    private final RawJsonWriter labelsRaw = new RawJsonWriter(256);
+
     public JsonWriter(int capacity) {
         this.raw = new RawJsonWriter(capacity);
     }
@@ -36,6 +56,30 @@ public final class JsonWriter implements Writer {
         endStreams();
     }
 
+    /**
+     * Writes JSON directly into the array backing the given heap buffer, so no copy is needed.
+     * If the batch doesn't fit, the output is moved to a larger array.
+     * Direct buffers are filled by copying, so the pipeline takes this path
+     * only if {@code useDirectBuffers} is off
+     */
+    @Override
+    public ByteBuffer serializeBatchTo(LogRecordBatch batch, ByteBuffer buffer, ByteBufferFactory bufferFactory) {
+        if (!buffer.hasArray() || buffer.arrayOffset() != 0)
+            return Writer.super.serializeBatchTo(batch, buffer, bufferFactory);
+        var ownBuffer = raw.getBuffer();
+        raw.setBuffer(buffer.array());
+        try {
+            serializeBatch(batch);
+            var output = raw.getBuffer();
+            var result = output == buffer.array() ? buffer : ByteBuffer.wrap(output);
+            result.clear();
+            result.limit(raw.size());
+            return result;
+        } finally {
+            raw.setBuffer(ownBuffer);
+        }
+    }
+
     public int size() {
         return raw.size();
     }
@@ -52,7 +96,7 @@ public final class JsonWriter implements Writer {
         raw.reset();
     }
 
-    private void beginStreams(LogRecord firstRecord, Map<String, String> firstLabels) {
+    private void beginStreams(LogRecord firstRecord, LabelStream firstLabels) {
         raw.writeByte(OBJECT_START);
         raw.writeQuotedAscii("streams");
         raw.writeByte(SEMI);
@@ -60,18 +104,19 @@ public final class JsonWriter implements Writer {
         stream(firstRecord, firstLabels);
     }
 
-    private void nextStream(LogRecord firstRecord, Map<String, String> labels) {
+    private void nextStream(LogRecord firstRecord, LabelStream labels) {
         raw.writeByte(ARRAY_END);
         raw.writeByte(OBJECT_END);
         raw.writeByte(COMMA);
         stream(firstRecord, labels);
     }
 
-    private void stream(LogRecord firstRecord, Map<String, String> labels) {
+    private void stream(LogRecord firstRecord, LabelStream labels) {
         raw.writeByte(OBJECT_START);
         raw.writeQuotedAscii("stream");
         raw.writeByte(SEMI);
-        keyValuePairs(labels);
+        var encoded = encodedLabels(labels);
+        raw.writeRaw(encoded, 0, encoded.length);
         raw.writeByte(COMMA);
         raw.writeQuotedAscii("values");
         raw.writeByte(SEMI);
@@ -96,7 +141,23 @@ public final class JsonWriter implements Writer {
         raw.writeByte(ARRAY_END);
     }
 
+    private byte[] encodedLabels(LabelStream labels) {
+        var encoded = encodedLabels.get(labels);
+        if (encoded == null) {
+            keyValuePairs(labelsRaw, labels);
+            encoded = labelsRaw.toByteArray();
+            if (encodedLabels.size() >= MAX_CACHED_LABELS)
+                encodedLabels.clear();
+            encodedLabels.put(labels, encoded);
+        }
+        return encoded;
+    }
+
     private void keyValuePairs(Map<String, String> kvp) {
+        keyValuePairs(raw, kvp);
+    }
+
+    private static void keyValuePairs(RawJsonWriter raw, Map<String, String> kvp) {
         raw.writeByte(OBJECT_START);
         var entries = kvp.entrySet().iterator();
         while (entries.hasNext()) {
@@ -1,37 +1,94 @@
 package com.github.loki4j.client.writer;
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.Map;
 
+import com.github.loki4j.client.batch.LabelStream;
 import com.github.loki4j.client.batch.LogRecord;
 import com.github.loki4j.client.batch.LogRecordBatch;
 import com.github.loki4j.client.util.ByteBufferFactory;
-import com.github.loki4j.pkg.google.protobuf.Timestamp;
-import com.github.loki4j.pkg.loki.protobuf.Push.EntryAdapter;
-import com.github.loki4j.pkg.loki.protobuf.Push.LabelPairAdapter;
-import com.github.loki4j.pkg.loki.protobuf.Push.PushRequest;
-import com.github.loki4j.pkg.loki.protobuf.Push.StreamAdapter;
-import com.google.protobuf.CodedOutputStream;
+import com.github.loki4j.client.util.StringUtils;
 
 import org.xerial.snappy.Snappy;
 
+/**
+ * Encodes batches into Snappy-compressed Protobuf {@code PushRequest} messages
+ * as defined in {@code loki-protobuf/src/main/proto/push.proto}.
+ * <p>
+ * Messages are written field by field, without building an intermediate object graph.
+ * Lengths of nested messages are calculated from the records before they are written.
+ * <p>
+ * Encoding and compression are fused: the message is written into a small chunk buffer,
+ * and each chunk is compressed as soon as it's full. Compressed chunks are appended one after
+ * another behind a single preamble with the total uncompressed length, which forms a valid
+ * Snappy raw block. Chunks are 64 KiB, the same fragment size Snappy uses internally, so the
+ * result is identical to compressing the whole message at once.
+ */
 public final class ProtobufWriter implements Writer {
 
-    private final ByteBuffer uncompressed;
+    // wire types
+    private static final int VARINT = 0;
+    private static final int LEN = 2;
+
+    // PushRequest
+    private static final int PUSH_REQUEST_STREAMS = 1;
+    // StreamAdapter
+    private static final int STREAM_LABELS = 1;
+    private static final int STREAM_ENTRIES = 2;
+    // EntryAdapter
+    private static final int ENTRY_TIMESTAMP = 1;
+    private static final int ENTRY_LINE = 2;
+    private static final int ENTRY_STRUCTURED_METADATA = 3;
+    // Timestamp
+    private static final int TIMESTAMP_SECONDS = 1;
+    private static final int TIMESTAMP_NANOS = 2;
+    // LabelPairAdapter
+    private static final int LABEL_PAIR_NAME = 1;
+    private static final int LABEL_PAIR_VALUE = 2;
+
+    /**
+     * Max number of encoded label sets to cache.
+     * When the limit is reached, the cache is truncated to zero
+     */
+    private static final int MAX_CACHED_LABELS = 1000;
+
+    /**
+     * Size of an uncompressed chunk, matches the block size of Snappy
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final ByteBuffer chunk;
     private final ByteBuffer compressed;
 
-    private PushRequest.Builder request;
-    private StreamAdapter.Builder stream;
+    /**
+     * Used to preserve the tail of the compressed data that is overwritten
+     * by the preamble of the next compressed chunk
+     */
+    private final byte[] preambleTail = new byte[varintSize(CHUNK_SIZE)];
+
+    /**
+     * Label sets already encoded into UTF-8 bytes of Loki label string, e.g. {@code {app="my-app"}}.
+     * Label streams are interned, so they are effectively compared by identity
+     */
+    private final HashMap<LabelStream, byte[]> encodedLabels = new HashMap<>();
+
+    /**
+     * Sizes of encoded entries of the batch being serialized, calculated once per record
+     */
+    private int[] entrySizes = new int[0];
+
     private int size = 0;
 
     public ProtobufWriter(int capacity, ByteBufferFactory bbFactory) {
         // allocating x1.5 of capacity, as compressed protobuf size
         // may be larger than uncompressed json
         var capacityX1_5 = capacity + capacity / 2;
-        this.uncompressed = bbFactory.allocate(capacityX1_5);
+        this.chunk = bbFactory.allocate(Math.min(CHUNK_SIZE, capacityX1_5));
         this.compressed = bbFactory.allocate(capacityX1_5);
-        this.request = PushRequest.newBuilder();
     }
 
     public boolean isBinary() {
@@ -39,26 +96,50 @@ public final class ProtobufWriter implements Writer {
     }
 
     public void serializeBatch(LogRecordBatch batch) {
-        var currentStream = batch.get(0).stream;
-        nextStream(currentStream);
-        for (int i = 0; i < batch.size(); i++) {
-            if (!batch.get(i).stream.equals(currentStream)) {
-                currentStream = batch.get(i).stream;
-                nextStream(currentStream);
-            }
-            nextEntry(batch.get(i));
-        }
+        if (entrySizes.length < batch.size())
+            entrySizes = new int[batch.capacity()];
         try {
+            // the total length goes to the preamble before any chunk is compressed
+            var messageSize = 0;
+            for (int start = 0, end; start < batch.size(); start = end) {
+                end = streamEnd(batch, start);
+                for (int i = start; i < end; i++)
+                    entrySizes[i] = entrySize(batch.get(i));
+                messageSize += fieldSize(streamSize(batch, start, end));
+            }
+            putVarint(compressed, messageSize);
+
+            for (int start = 0, end; start < batch.size(); start = end) {
+                end = streamEnd(batch, start);
+                writeStream(batch, start, end);
+            }
             endStreams();
         } catch (IOException e) {
             throw new RuntimeException("Protobuf encoding error", e);
         }
     }
 
-    private void nextStream(Map<String, String> labelSet) {
-        stream = request
-            .addStreamsBuilder()
-            .setLabels(label(labelSet));
+    /**
+     * Returns the end (exclusive) of the contiguous run of records
+     * sharing the stream of the record at {@code start}
+     */
+    private static int streamEnd(LogRecordBatch batch, int start) {
+        var stream = batch.get(start).stream;
+        var end = start + 1;
+        while (end < batch.size() && batch.get(end).stream.equals(stream))
+            end++;
+        return end;
+    }
+
+    private byte[] encodedLabels(LabelStream labelSet) {
+        var encoded = encodedLabels.get(labelSet);
+        if (encoded == null) {
+            encoded = label(labelSet).getBytes(StandardCharsets.UTF_8);
+            if (encodedLabels.size() >= MAX_CACHED_LABELS)
+                encodedLabels.clear();
+            encodedLabels.put(labelSet, encoded);
+        }
+        return encoded;
     }
 
     static String label(Map<String, String> labels) {
@@ -79,37 +160,241 @@ public final class ProtobufWriter implements Writer {
         return s.toString();
     }
 
-    private void nextEntry(LogRecord record) {
-        var entry = EntryAdapter.newBuilder()
-            .setTimestamp(Timestamp.newBuilder()
-                .setSeconds(record.timestampMs / 1000)
-                .setNanos((int)(record.timestampMs % 1000) * 1_000_000 + record.nanosInMs))
-            .setLine(record.message);
+    /**
+     * Size of a StreamAdapter message with records from {@code start} (inclusive)
+     * to {@code end} (exclusive). Entry sizes must be already calculated
+     */
+    private int streamSize(LogRecordBatch batch, int start, int end) {
+        var size = fieldSize(encodedLabels(batch.get(start).stream).length);
+        for (int i = start; i < end; i++)
+            size += fieldSize(entrySizes[i]);
+        return size;
+    }
+
+    /**
+     * Writes a StreamAdapter message with records from {@code start} (inclusive)
+     * to {@code end} (exclusive) as an element of PushRequest.streams
+     */
+    private void writeStream(LogRecordBatch batch, int start, int end) throws IOException {
+        var labels = encodedLabels(batch.get(start).stream);
+        putTag(PUSH_REQUEST_STREAMS, LEN);
+        putVarint(streamSize(batch, start, end));
+
+        putTag(STREAM_LABELS, LEN);
+        putVarint(labels.length);
+        put(labels);
+
+        for (int i = start; i < end; i++) {
+            putTag(STREAM_ENTRIES, LEN);
+            putVarint(entrySizes[i]);
+            writeEntry(batch.get(i));
+        }
+    }
+
+    private static long seconds(LogRecord record) {
+        return record.timestampMs / 1000;
+    }
+
+    private static int nanos(LogRecord record) {
+        return (int)(record.timestampMs % 1000) * 1_000_000 + record.nanosInMs;
+    }
+
+    private static int timestampSize(LogRecord record) {
+        var seconds = seconds(record);
+        var nanos = nanos(record);
+        return (seconds != 0 ? 1 + varintSize(seconds) : 0)
+            + (nanos != 0 ? 1 + varintSize(nanos) : 0);
+    }
+
+    private static int entrySize(LogRecord record) {
+        // timestamp is a message field, so it's written even if empty
+        var size = fieldSize(timestampSize(record));
+        if (record.messageUtf8SizeBytes > 0)
+            size += fieldSize(record.messageUtf8SizeBytes);
+        for (var kvp : record.metadata.entrySet())
+            size += fieldSize(labelPairSize(kvp.getKey(), kvp.getValue()));
+        return size;
+    }
+
+    private static int labelPairSize(String name, String value) {
+        return stringFieldSize(StringUtils.utf8Length(name))
+            + stringFieldSize(StringUtils.utf8Length(value));
+    }
+
+    private void writeEntry(LogRecord record) throws IOException {
+        putTag(ENTRY_TIMESTAMP, LEN);
+        putVarint(timestampSize(record));
+        var seconds = seconds(record);
+        if (seconds != 0) {
+            putTag(TIMESTAMP_SECONDS, VARINT);
+            putVarint(seconds);
+        }
+        var nanos = nanos(record);
+        if (nanos != 0) {
+            putTag(TIMESTAMP_NANOS, VARINT);
+            putVarint(nanos);
+        }
+
+        if (record.messageUtf8SizeBytes > 0) {
+            putTag(ENTRY_LINE, LEN);
+            putVarint(record.messageUtf8SizeBytes);
+            putUtf8(record.message);
+        }
+
         for (var kvp : record.metadata.entrySet()) {
-            entry.addStructuredMetadata(LabelPairAdapter.newBuilder()
-                .setName(kvp.getKey())
-                .setValue(kvp.getValue())
-            );
+            var nameSize = StringUtils.utf8Length(kvp.getKey());
+            var valueSize = StringUtils.utf8Length(kvp.getValue());
+            putTag(ENTRY_STRUCTURED_METADATA, LEN);
+            putVarint(stringFieldSize(nameSize) + stringFieldSize(valueSize));
+            putStringField(LABEL_PAIR_NAME, kvp.getKey(), nameSize);
+            putStringField(LABEL_PAIR_VALUE, kvp.getValue(), valueSize);
         }
-        stream.addEntries(entry);
     }
 
-    private void endStreams() throws IOException {
-        var writer = CodedOutputStream.newInstance(uncompressed);
-        request.build().writeTo(writer);
-        writer.flush();
-        uncompressed.flip();
-        if (uncompressed.hasArray()) {
-            size = Snappy.compress(
-                uncompressed.array(),
+    /**
+     * Size of a length-delimited field with a single-byte tag
+     */
+    private static int fieldSize(int length) {
+        return 1 + varintSize(length) + length;
+    }
+
+    /**
+     * Size of a string field, empty strings are omitted according to proto3 rules
+     */
+    private static int stringFieldSize(int utf8Length) {
+        return utf8Length > 0 ? fieldSize(utf8Length) : 0;
+    }
+
+    private static int varintSize(long value) {
+        var size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private void putStringField(int field, String value, int utf8Length) throws IOException {
+        if (utf8Length == 0)
+            return;
+        putTag(field, LEN);
+        putVarint(utf8Length);
+        putUtf8(value);
+    }
+
+    private void putTag(int field, int wireType) throws IOException {
+        // all field numbers are less than 16, so a tag always fits in a single byte
+        put((byte) (field << 3 | wireType));
+    }
+
+    private void putVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        put((byte) value);
+    }
+
+    private static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private void put(byte b) throws IOException {
+        if (!chunk.hasRemaining())
+            compressChunk();
+        chunk.put(b);
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        var offset = 0;
+        while (offset < bytes.length) {
+            if (!chunk.hasRemaining())
+                compressChunk();
+            var length = Math.min(chunk.remaining(), bytes.length - offset);
+            chunk.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    /**
+     * Writes the string in UTF-8, unpaired surrogates are replaced with '?'
+     * the same way {@link String#getBytes(java.nio.charset.Charset)} does.
+     * The number of bytes written matches {@link StringUtils#utf8Length(CharSequence)}
+     */
+    private void putUtf8(String value) throws IOException {
+        for (int i = 0, len = value.length(); i < len; i++) {
+            char ch = value.charAt(i);
+            if (ch <= 0x7F) {
+                put((byte) ch);
+            } else if (ch <= 0x7FF) {
+                put((byte) (0xC0 | (ch >> 6)));
+                put((byte) (0x80 | (ch & 0x3F)));
+            } else if (Character.isHighSurrogate(ch)
+                    && i + 1 < len
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                var cp = Character.toCodePoint(ch, value.charAt(++i));
+                put((byte) (0xF0 | (cp >> 18)));
+                put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(ch)) {
+                put((byte) '?');
+            } else {
+                put((byte) (0xE0 | (ch >> 12)));
+                put((byte) (0x80 | ((ch >> 6) & 0x3F)));
+                put((byte) (0x80 | (ch & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Compresses the current chunk and appends the result to the compressed data.
+     * <p>
+     * Snappy prepends every compressed chunk with a preamble of its length.
+     * Only the preamble with the total length must remain, so the chunk is compressed
+     * over the tail of the data written so far, and then the tail is restored.
+     * The tail is never shorter than the preamble, as the total length is not less
+     * than the length of the chunk.
+     */
+    private void compressChunk() throws IOException {
+        chunk.flip();
+        var length = chunk.remaining();
+        if (length == 0) {
+            chunk.clear();
+            return;
+        }
+        var tailLength = varintSize(length);
+        var offset = compressed.position() - tailLength;
+        // native compression does not check the output bounds
+        if (offset + Snappy.maxCompressedLength(length) > compressed.capacity())
+            throw new BufferOverflowException();
+        compressed.get(offset, preambleTail, 0, tailLength);
+        int compressedLength;
+        if (chunk.hasArray()) {
+            compressedLength = Snappy.compress(
+                chunk.array(),
                 0,
-                uncompressed.limit(),
+                length,
                 compressed.array(),
-                0);
-            compressed.limit(size());
+                offset);
         } else {
-            size = Snappy.compress(uncompressed, compressed);
+            compressed.position(offset);
+            compressedLength = Snappy.compress(chunk, compressed);
+            compressed.limit(compressed.capacity());
         }
+        compressed.put(offset, preambleTail, 0, tailLength);
+        compressed.position(offset + compressedLength);
+        chunk.clear();
+    }
+
+    private void endStreams() throws IOException {
+        compressChunk();
+        compressed.flip();
+        size = compressed.limit();
     }
 
     public int size() {
@@ -133,10 +418,8 @@ public final class ProtobufWriter implements Writer {
      * Resets the writer
      */
     public final void reset() {
-        this.request = PushRequest.newBuilder();
-        stream = null;
         size = 0;
-        uncompressed.clear();
+        chunk.clear();
         compressed.clear();
     }
 
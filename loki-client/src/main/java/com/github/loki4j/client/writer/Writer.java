@@ -3,6 +3,7 @@ package com.github.loki4j.client.writer;
 import java.nio.ByteBuffer;
 
 import com.github.loki4j.client.batch.LogRecordBatch;
+import com.github.loki4j.client.util.ByteBufferFactory;
 
 public interface Writer {
 
@@ -10,6 +11,24 @@ public interface Writer {
 
     void serializeBatch(LogRecordBatch batch);
 
+    /**
+     * Serializes a batch into the given buffer. If the buffer is too small,
+     * a larger one is allocated by {@code bufferFactory} instead.
+     * <p>
+     * By default, the batch is serialized into the writer's own buffer and then copied.
+     * Writers that can write directly into the given buffer override this method.
+     * @return A buffer containing the serialized batch, ready to be read
+     */
+    default ByteBuffer serializeBatchTo(LogRecordBatch batch, ByteBuffer buffer, ByteBufferFactory bufferFactory) {
+        serializeBatch(batch);
+        var size = size();
+        if (buffer.capacity() < size)
+            buffer = bufferFactory.allocate(size + size / 2);
+        buffer.clear();
+        toByteBuffer(buffer);
+        return buffer;
+    }
+
     int size();
 
     default boolean isEmpty() {
@@ -21,4 +40,10 @@ public interface Writer {
     byte[] toByteArray();
 
     void reset();
+
+    /**
+     * Releases native resources held by the writer, if any.
+     * The writer must not be used afterwards
+     */
+    default void close() { }
 }
@@ -74,6 +74,23 @@ public class RawJsonWriter {
         this.buffer = new byte[capacity];
     }
 
+    /**
+     * Switches the writer to the given array, so the output is written directly into it.
+     * Position is reset. If the array is not large enough, it will be replaced with a larger copy,
+     * so the actual output should be taken from {@link #getBuffer()}.
+     */
+    public final void setBuffer(byte[] buffer) {
+        this.buffer = buffer;
+        this.position = 0;
+    }
+
+    /**
+     * Returns the array the writer currently writes to. It contains the output up to {@link #size()}
+     */
+    public final byte[] getBuffer() {
+        return buffer;
+    }
+
     final byte[] ensureCapacity(final int free) {
         if (position + free >= buffer.length) {
             enlargeOrFlush(position, free);
@@ -134,4 +134,60 @@ public class BatcherTest {
         assertEquals(0, buf.size(), "Batch is not ready");
     }
 
+    @Test
+    public void testDrainExpired() {
+        var cbb = new Batcher(10, 1000, 100);
+        var buf = new LogRecordBatch(10);
+        assertEquals(Long.MAX_VALUE, cbb.deadlineMs(), "No deadline for empty batch");
+
+        var startedMs = System.currentTimeMillis();
+        var r1 = logRecord(1);
+        cbb.add(r1, buf);
+        var deadlineMs = cbb.deadlineMs();
+        assertTrue(deadlineMs >= startedMs + 100 && deadlineMs <= System.currentTimeMillis() + 100, "Deadline is set");
+
+        cbb.add(logRecord(2), buf);
+        assertEquals(deadlineMs, cbb.deadlineMs(), "Deadline is defined by the oldest record");
+
+        cbb.drainExpired(deadlineMs - 1, buf);
+        assertEquals(0, buf.size(), "Batch is not expired yet");
+
+        cbb.drainExpired(deadlineMs, buf);
+        assertEquals(2, buf.size(), "Batch is expired");
+        assertEquals(BatchCondition.DRAIN, buf.getCondition(), "Correct batch condition");
+        assertEquals(Long.MAX_VALUE, cbb.deadlineMs(), "No deadline after batch is cut");
+    }
+
+    @Test
+    public void testLinger() {
+        var cbb = new Batcher(10, 1000, 100);
+        var buf = new LogRecordBatch(10);
+        assertEquals(100L, cbb.getLingerMs(), "Linger is max timeout by default");
+
+        cbb.setLingerMs(500);
+        assertEquals(100L, cbb.getLingerMs(), "Linger is bound by max timeout");
+        cbb.setLingerMs(-10);
+        assertEquals(0L, cbb.getLingerMs(), "Linger is not negative");
+
+        cbb.setLingerMs(30);
+        cbb.add(logRecord(1), buf);
+        var deadlineMs = cbb.deadlineMs();
+        cbb.setLingerMs(10);
+        assertEquals(deadlineMs - 20, cbb.deadlineMs(), "Linger applies to the current batch");
+    }
+
+    @Test
+    public void testAdaptiveLinger() {
+        var cbb = new Batcher(10, 1000, 1000);
+
+        cbb.adaptLingerMs(400, 100);
+        assertEquals(300L, cbb.getLingerMs(), "Linger is the rest of the target latency");
+        cbb.adaptLingerMs(400, 350);
+        assertEquals(100L, cbb.getLingerMs(), "Linger is not less than a quarter of the target");
+        cbb.adaptLingerMs(400, 5000);
+        assertEquals(100L, cbb.getLingerMs(), "Slow sends don't drop linger to zero");
+        cbb.adaptLingerMs(8000, 100);
+        assertEquals(1000L, cbb.getLingerMs(), "Linger is bound by max timeout");
+    }
+
 }
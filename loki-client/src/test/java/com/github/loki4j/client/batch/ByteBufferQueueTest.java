@@ -1,15 +1,22 @@
 package com.github.loki4j.client.batch;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
 
 import com.github.loki4j.client.util.ByteBufferFactory;
+import com.github.loki4j.client.util.MappedSegmentLog;
 
 public class ByteBufferQueueTest {
 
+    @TempDir
+    Path spillDir;
+
     private static byte[] read(BinaryBatch bb) {
         var r = new byte[bb.data.remaining()];
         bb.data.get(r);
@@ -22,6 +29,66 @@ public class ByteBufferQueueTest {
         return bb;
     }
 
+    private static byte[] filled(int value, int size) {
+        var bs = new byte[size];
+        Arrays.fill(bs, (byte) value);
+        return bs;
+    }
+
+    private static BinaryBatch claim(ByteBufferQueue queue, int size) {
+        var batch = queue.claimBuffer(size);
+        write(batch.data, new byte[size]);
+        return batch;
+    }
+
+    @Test
+    public void testPriorityReserve() {
+        var queue = new ByteBufferQueue(20, 8, new ByteBufferFactory(false), null);
+        var noKeys = BinaryBatch.NO_STREAM_KEYS;
+
+        assertTrue(queue.offer(claim(queue, 6), 0, 1, noKeys, false), "can add regular batch 0");
+        assertTrue(queue.offer(claim(queue, 6), 1, 1, noKeys, false), "can add regular batch 1");
+        var batch2 = claim(queue, 6);
+        assertFalse(queue.offer(batch2, 2, 1, noKeys, false), "regular batch 2 doesn't fit into 12 bytes");
+        assertTrue(queue.offer(batch2, 2, 1, noKeys, true), "priority batch 2 takes the reserve");
+        assertEquals(18, queue.getSizeBytes(), "18 bytes added");
+        assertFalse(queue.offer(claim(queue, 4), 3, 1, noKeys, true), "reserve is exhausted");
+
+        queue.returnBuffer(queue.borrowBuffer());
+        assertFalse(queue.offer(claim(queue, 4), 3, 1, noKeys, false), "regular batch 3 still doesn't fit");
+        queue.returnBuffer(queue.borrowBuffer());
+        assertTrue(queue.offer(claim(queue, 4), 3, 1, noKeys, false), "regular batch 3 fits");
+
+        var capped = new ByteBufferQueue(20, 100, new ByteBufferFactory(false), null);
+        assertTrue(capped.offer(claim(capped, 10), 0, 1, noKeys, false), "at least a half is left for regular batches");
+        assertFalse(capped.offer(claim(capped, 1), 1, 1, noKeys, false), "regular batches take no more than a half");
+    }
+
+    @Test
+    public void testEvictOldest() {
+        var queue = new ByteBufferQueue(20, 8, new ByteBufferFactory(false), null);
+        assertNull(queue.evictOldest(), "nothing to evict");
+
+        assertTrue(queue.offer(claim(queue, 4), 0, 1, new int[] { 1 }, true), "priority batch 0 added");
+        assertTrue(queue.offer(claim(queue, 4), 1, 2, new int[] { 1 }, false), "batch 1 added");
+        assertTrue(queue.offer(claim(queue, 4), 2, 3, new int[] { 2 }, false), "batch 2 added");
+
+        var borrowed = queue.borrowBufferOrdered();
+        assertEquals(0, borrowed.batchId, "batch 0 borrowed");
+
+        var evicted = queue.evictOldest();
+        assertEquals(1, evicted.batchId, "oldest regular batch evicted");
+        assertEquals(4, queue.getSizeBytes(), "only batch 2 is left");
+        queue.returnBuffer(evicted);
+
+        assertTrue(queue.offer(claim(queue, 4), 3, 1, new int[] { 1 }, true), "priority batch 3 added");
+        assertEquals(2, queue.borrowBufferOrdered().batchId, "batch 2 borrowed");
+        assertNull(queue.borrowBufferOrdered(), "stream of evicted batch is still borrowed by batch 0");
+        assertNull(queue.evictOldest(), "priority batches are not evicted");
+        queue.returnBuffer(borrowed);
+        assertEquals(3, queue.borrowBufferOrdered().batchId, "batch 3 borrowed");
+    }
+
     @Test
     public void testMaxSize() {
         var queue = new ByteBufferQueue(10, new ByteBufferFactory(false));
@@ -79,11 +146,170 @@ public class ByteBufferQueueTest {
         assertEquals(1, queue.poolSize(), "1 batch in pool");
         var binBatch1 = queue.borrowBuffer();
         queue.returnBuffer(binBatch1);
-        assertEquals(1, queue.poolSize(), "still 1 batch in pool");
+        assertEquals(2, queue.poolSize(), "2 batches in pool");
 
-        assertTrue(queue.offer(2, 1, 8, bb -> write(bb, new byte[] {0, 1, 2, 3, 4, 5, 6, 7})), "can add batch 2");
-        assertEquals(8, queue.getSizeBytes(), "8 bytes added");
-        assertEquals(0, queue.poolSize(), "batch from pool reused");
+        assertTrue(queue.offer(2, 1, 4, bb -> write(bb, new byte[] {0, 1, 2, 3})), "can add batch 2");
+        assertEquals(4, queue.getSizeBytes(), "4 bytes added");
+        assertEquals(1, queue.poolSize(), "batch from pool reused");
+
+        var binBatch2 = queue.borrowBuffer();
+        queue.returnBuffer(binBatch2);
+        assertTrue(queue.offer(3, 1, 8, bb -> write(bb, new byte[] {0, 1, 2, 3, 4, 5, 6, 7})), "can add batch 3");
+        assertEquals(2, queue.poolSize(), "batches in pool are too small");
+        assertEquals(1, queue.bufferPool().hits(), "buffers reused");
+        assertEquals(3, queue.bufferPool().misses(), "buffers allocated");
+    }
+
+    @Test
+    public void testClaimBuffer() {
+        var queue = new ByteBufferQueue(10, new ByteBufferFactory(false));
+
+        var binBatch0 = queue.claimBuffer(6);
+        write(binBatch0.data, new byte[] {0, 1, 2, 3, 4, 5});
+        assertEquals(0, queue.getSizeBytes(), "claimed buffer is not counted");
+        assertTrue(queue.offer(binBatch0, 0, 1, BinaryBatch.NO_STREAM_KEYS), "can add batch 0");
+        assertEquals(6, queue.getSizeBytes(), "6 bytes added");
+
+        var binBatch1 = queue.claimBuffer(5);
+        write(binBatch1.data, new byte[] {7, 8, 9, 10, 11});
+        assertFalse(queue.offer(binBatch1, 1, 1, BinaryBatch.NO_STREAM_KEYS), "can not add batch 1");
+        assertEquals(6, queue.getSizeBytes(), "still 6 bytes added");
+
+        var borrowed = queue.borrowBuffer();
+        assertEquals(0, borrowed.batchId, "batch id");
+        assertEquals(6, borrowed.sizeBytes, "batch bytes");
+        assertArrayEquals(new byte[] {0, 1, 2, 3, 4, 5}, read(borrowed), "batch data");
+        var borrowedData = borrowed.data;
+        queue.returnBuffer(borrowed);
+
+        assertTrue(queue.offer(binBatch1, 1, 1, BinaryBatch.NO_STREAM_KEYS), "can add batch 1");
+        assertEquals(5, queue.getSizeBytes(), "5 bytes added");
+        assertSame(borrowedData, queue.claimBuffer(4).data, "buffer from pool reused");
+    }
+
+    @Test
+    public void testOrderedBorrow() {
+        var queue = new ByteBufferQueue(100, new ByteBufferFactory(false));
+        assertTrue(queue.offer(0, 1, 4, new int[] {1, 2}, bb -> write(bb, new byte[] {0, 1, 2, 3})), "can add batch 0");
+        assertTrue(queue.offer(1, 1, 4, new int[] {2}, bb -> write(bb, new byte[] {4, 5, 6, 7})), "can add batch 1");
+        assertTrue(queue.offer(2, 1, 4, new int[] {3}, bb -> write(bb, new byte[] {8, 9, 10, 11})), "can add batch 2");
+        assertTrue(queue.offer(3, 1, 4, new int[] {3, 4}, bb -> write(bb, new byte[] {12, 13, 14, 15})), "can add batch 3");
+
+        var binBatch0 = queue.borrowBufferOrdered();
+        assertEquals(0, binBatch0.batchId, "batch 0 borrowed first");
+        var binBatch2 = queue.borrowBufferOrdered();
+        assertEquals(2, binBatch2.batchId, "batch 1 shares a stream with borrowed batch 0, batch 2 borrowed");
+        assertNull(queue.borrowBufferOrdered(), "batch 3 shares a stream with borrowed batch 2");
+        assertEquals(8, queue.getSizeBytes(), "2 batches remain in queue");
+
+        queue.returnBuffer(binBatch2);
+        var binBatch3 = queue.borrowBufferOrdered();
+        assertEquals(3, binBatch3.batchId, "batch 3 borrowed after batch 2 returned");
+        assertNull(queue.borrowBufferOrdered(), "batch 1 still waits for batch 0");
+
+        queue.returnBuffer(binBatch0);
+        var binBatch1 = queue.borrowBufferOrdered();
+        assertEquals(1, binBatch1.batchId, "batch 1 borrowed after batch 0 returned");
+        assertTrue(queue.isEmpty(), "queue is empty");
+    }
+
+    @Test
+    public void testSpill() {
+        var queue = new ByteBufferQueue(40, new ByteBufferFactory(false), new MappedSegmentLog(spillDir, 1024, 4096));
+        assertTrue(queue.offer(0, 1, 30, bb -> write(bb, new byte[30])), "batch 0 added to memory");
+        assertTrue(queue.offer(1, 2, 15, bb -> write(bb, new byte[15])), "batch 1 spilled");
+        assertTrue(queue.offer(2, 3, 5, new int[] {7}, bb -> write(bb, new byte[] {1, 2, 3, 4, 5})), "batch 2 spilled to keep the order");
+        assertEquals(30, queue.getSizeBytes(), "only batch 0 is in memory");
+        assertEquals(5, queue.getSpilledItems(), "items of batches 1 and 2 are on disk");
+
+        var binBatch0 = queue.borrowBuffer();
+        assertEquals(0, binBatch0.batchId, "batch 0 borrowed first");
+        queue.returnBuffer(binBatch0);
+
+        var binBatch1 = queue.borrowBuffer();
+        assertEquals(1, binBatch1.batchId, "batch 1 moved back to memory");
+        assertEquals(2, binBatch1.sizeItems, "batch 1 items");
+        assertEquals(15, binBatch1.sizeBytes, "batch 1 bytes");
+        assertEquals(5, queue.getSizeBytes(), "batch 2 moved back to memory as well");
+        assertEquals(0, queue.getSpilledItems(), "nothing left on disk to move");
+        queue.returnBuffer(binBatch1);
+
+        var binBatch2 = queue.borrowBufferOrdered();
+        assertEquals(2, binBatch2.batchId, "batch 2 borrowed");
+        assertArrayEquals(new int[] {7}, binBatch2.streamKeys, "batch 2 stream keys");
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5}, read(binBatch2), "batch 2 data");
+        queue.stopReplay();
+        assertTrue(queue.returnUnprocessed(binBatch2), "batch 2 is kept on disk");
+        assertTrue(queue.isEmpty(), "queue is empty");
+        queue.close();
+
+        var restarted = new ByteBufferQueue(40, new ByteBufferFactory(false), new MappedSegmentLog(spillDir, 1024, 4096));
+        assertEquals(3, restarted.getSpilledItems(), "unprocessed batch 2 recovered");
+        assertFalse(restarted.isEmpty(), "queue is not empty");
+        var recovered = restarted.borrowBuffer();
+        assertEquals(2, recovered.batchId, "batch 2 borrowed after restart");
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5}, read(recovered), "batch 2 data");
+        restarted.returnBuffer(recovered);
+        assertEquals(0, restarted.getSpilledBytes(), "all spilled batches are processed");
+        restarted.close();
+    }
+
+    @Test
+    public void testUnprocessedBatchesRecoveredInOrder() {
+        var queue = new ByteBufferQueue(60, new ByteBufferFactory(false), new MappedSegmentLog(spillDir, 1024, 4096));
+        assertTrue(queue.offer(0, 1, 40, new int[] {7}, bb -> write(bb, filled(0, 40))), "batch 0 added to memory");
+        assertTrue(queue.offer(1, 2, 25, new int[] {7}, bb -> write(bb, filled(1, 25))), "batch 1 spilled");
+        assertTrue(queue.offer(2, 3, 20, new int[] {7}, bb -> write(bb, filled(2, 20))), "batch 2 spilled");
+
+        var binBatch0 = queue.borrowBufferOrdered();
+        assertEquals(0, binBatch0.batchId, "batch 0 borrowed");
+        assertNull(queue.borrowBufferOrdered(), "batch 1 moved back to memory, but its stream is borrowed");
+        assertEquals(3, queue.getSpilledItems(), "batch 2 is still on disk");
+        queue.stopReplay();
+        assertTrue(queue.returnUnprocessed(binBatch0), "batch 0 is kept on disk");
+        // batch 1 is left in memory
+        queue.close();
+
+        var restarted = new ByteBufferQueue(100, new ByteBufferFactory(false), new MappedSegmentLog(spillDir, 1024, 4096));
+        assertEquals(6, restarted.getSpilledItems(), "all batches recovered");
+        for (int i = 0; i < 3; i++) {
+            var recovered = restarted.borrowBufferOrdered();
+            assertEquals(i, recovered.batchId, "batch " + i + " borrowed in order after restart");
+            assertEquals(i, read(recovered)[0], "batch " + i + " data");
+            restarted.returnBuffer(recovered);
+        }
+        assertEquals(0, restarted.getSpilledBytes(), "all batches are processed");
+        restarted.close();
+    }
+
+    @Test
+    public void testProcessedBatchesNotRecovered() {
+        var queue = new ByteBufferQueue(40, new ByteBufferFactory(false), new MappedSegmentLog(spillDir, 1024, 4096));
+        assertTrue(queue.offer(0, 1, 40, bb -> write(bb, new byte[40])), "batch 0 added to memory");
+        for (int i = 1; i <= 3; i++) {
+            var id = i;
+            assertTrue(queue.offer(id, 1, 10, bb -> write(bb, new byte[] {(byte) id})), "batch " + i + " spilled");
+        }
+        queue.returnBuffer(queue.borrowBuffer());
+
+        var binBatch1 = queue.borrowBuffer();
+        var binBatch2 = queue.borrowBuffer();
+        var binBatch3 = queue.borrowBuffer();
+        assertEquals(1, binBatch1.batchId, "batch 1 moved back to memory");
+        queue.stopReplay();
+        assertTrue(queue.returnUnprocessed(binBatch1), "batch 1 is kept on disk");
+        queue.returnBuffer(binBatch2);
+        queue.returnBuffer(binBatch3);
+        queue.close();
+
+        var restarted = new ByteBufferQueue(40, new ByteBufferFactory(false), new MappedSegmentLog(spillDir, 1024, 4096));
+        assertEquals(1, restarted.getSpilledItems(), "processed batches 2 and 3 are not recovered");
+        var recovered = restarted.borrowBuffer();
+        assertEquals(1, recovered.batchId, "batch 1 borrowed after restart");
+        assertArrayEquals(new byte[] {1}, read(recovered), "batch 1 data");
+        assertNull(restarted.borrowBuffer(), "nothing else to borrow");
+        restarted.returnBuffer(recovered);
+        restarted.close();
     }
-    
+
 }
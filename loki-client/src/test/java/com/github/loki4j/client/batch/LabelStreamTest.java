@@ -0,0 +1,63 @@
+package com.github.loki4j.client.batch;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Map;
+
+import com.github.loki4j.client.util.OrderedMap;
+
+public class LabelStreamTest {
+
+    @Test
+    public void testInterning() {
+        var labels = OrderedMap.of("level", "INFO", "app", "my-app");
+        var s1 = LabelStream.of(labels);
+        var s2 = LabelStream.of(OrderedMap.of("level", "INFO", "app", "my-app"));
+        var s3 = LabelStream.of(OrderedMap.of("level", "WARN", "app", "my-app"));
+
+        assertSame(s1, s2, "Equal labels are interned");
+        assertSame(s1, LabelStream.of(s1), "Label stream is not re-interned");
+        assertNotEquals(s1, s3, "Different labels");
+        assertNotEquals(s1.id, s3.id, "Different ids");
+
+        labels.put("level", "ERROR");
+        assertEquals("INFO", s1.get("level"), "Source map is not retained");
+    }
+
+    @Test
+    public void testCompatibleWithMap() {
+        var labels = OrderedMap.of("level", "INFO", "app", "мой-апп");
+        var stream = LabelStream.of(labels);
+
+        assertEquals(labels, stream, "Equals to source map");
+        assertEquals(stream, labels, "Source map equals to it");
+        assertEquals(labels.hashCode(), stream.hashCode(), "Same hash code");
+        assertEquals(labels.toString(), stream.toString(), "Same order");
+        assertEquals(5 + 4 + 3 + 13, stream.utf8SizeBytes, "Correct UTF-8 size");
+    }
+
+    @Test
+    public void testEqualAfterTruncation() {
+        var s1 = LabelStream.of(Map.of("app", "truncated"));
+        // overflow the interning cache, so it's truncated
+        for (int i = 0; i <= 10_000; i++)
+            LabelStream.of(Map.of("app", "a" + i));
+        var s2 = LabelStream.of(Map.of("app", "truncated"));
+
+        assertNotSame(s1, s2, "Interned again after truncation");
+        assertNotEquals(s1.id, s2.id, "Different ids");
+        assertEquals(s1, s2, "Equal labels");
+        assertEquals(s1.hashCode(), s2.hashCode(), "Same hash code");
+    }
+
+    @Test
+    public void testRecordStream() {
+        var r1 = LogRecord.create(100L, 1, OrderedMap.of("app", "my-app"), "m1", OrderedMap.of());
+        var r2 = LogRecord.create(101L, 1, OrderedMap.of("app", "my-app"), "m2", OrderedMap.of());
+        assertSame(r1.stream, r2.stream, "Records share interned stream");
+        assertEquals(3 + 6, r1.streamUtf8SizeBytes, "Stream size is taken from label stream");
+    }
+
+}
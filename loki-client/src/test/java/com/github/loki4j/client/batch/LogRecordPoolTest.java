@@ -0,0 +1,52 @@
+package com.github.loki4j.client.batch;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Map;
+
+public class LogRecordPoolTest {
+
+    @Test
+    public void testStorageReused() {
+        var pool = new LogRecordPool(2);
+        var storage = pool.borrow();
+        storage.stream().put("app", "test");
+        storage.metadata().put("traceId", "1");
+        var record = LogRecord.pooled(storage, 100L, 1, storage.stream(), "msg", storage.metadata());
+        assertTrue(record.isPooled(), "pooled record");
+        assertEquals(Map.of("app", "test"), record.stream, "stream");
+        assertEquals(Map.of("traceId", "1"), record.metadata, "metadata");
+
+        record.release();
+        assertEquals(1, pool.size(), "storage returned to the pool");
+        var reused = pool.borrow();
+        assertSame(storage, reused, "storage reused");
+        assertTrue(reused.stream().isEmpty(), "stream storage cleared");
+        assertTrue(reused.metadata().isEmpty(), "metadata storage cleared");
+        assertEquals(Map.of("app", "test"), record.stream, "stream is interned, so it's kept after release");
+    }
+
+    @Test
+    public void testNonPooledRelease() {
+        var record = LogRecord.create(100L, 1, Map.of("app", "test"), "msg", Map.of());
+        assertFalse(record.isPooled(), "non-pooled record");
+        record.release();
+        assertEquals("msg", record.message, "non-pooled record is not changed");
+    }
+
+    @Test
+    public void testDeferredFormat() {
+        var deferred = LogRecord.deferred(100L, 1, 3, () -> LogRecord.create(100L, 1, Map.of("app", "test"), "msg", Map.of()));
+        deferred.priority = true;
+        assertTrue(deferred.isDeferred(), "deferred record");
+
+        var formatted = deferred.format();
+        assertFalse(formatted.isDeferred(), "formatted record");
+        assertEquals("msg", formatted.message, "message");
+        assertTrue(formatted.priority, "priority carried over");
+        assertTrue(deferred.isDeferred(), "deferred record is not changed");
+    }
+
+}
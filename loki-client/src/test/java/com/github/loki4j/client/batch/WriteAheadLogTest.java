@@ -0,0 +1,76 @@
+package com.github.loki4j.client.batch;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+import com.github.loki4j.client.util.MappedSegmentLog;
+
+public class WriteAheadLogTest {
+
+    @TempDir
+    Path dir;
+
+    private WriteAheadLog open() {
+        return new WriteAheadLog(new MappedSegmentLog(dir, 4096, 64 * 1024));
+    }
+
+    @Test
+    public void testRecoverUnacknowledged() {
+        var records = new LogRecord[] {
+            LogRecord.create(100L, 1, Map.of("app", "my-app"), "l=INFO c=test.TestApp t=thread-1 | Test message 1", Map.of()),
+            LogRecord.create(103L, 2, Map.of("app", "my-app", "level", "WARN"), "Unicode: привет, 日本語, 😀", Map.of("traceId", "abc", "user", "ü")),
+            LogRecord.create(104L, 3, Map.of(), "", Map.of("k", "")),
+        };
+        var wal = open();
+        assertTrue(wal.isEmpty(), "nothing to recover");
+        for (var r : records) {
+            assertTrue(wal.append(r), "record appended");
+            assertTrue(r.walPosition >= 0, "position set");
+        }
+        assertNull(wal.poll(), "appended records are not read back");
+        wal.ack(new long[] { records[0].walPosition });
+        wal.commit();
+        wal.close();
+
+        var recovered = open();
+        assertFalse(recovered.isEmpty(), "records to recover");
+        var r1 = recovered.poll();
+        assertEquals(records[1], r1, "record 1 recovered");
+        assertEquals(records[1].walPosition, r1.walPosition, "record 1 position");
+        assertEquals(records[1].messageUtf8SizeBytes, r1.messageUtf8SizeBytes, "record 1 message size");
+        var r2 = recovered.poll();
+        assertEquals(records[2], r2, "record 2 recovered");
+        assertNull(recovered.poll(), "no more records");
+
+        var r3 = LogRecord.create(105L, 4, Map.of("app", "my-app"), "Test message 3", Map.of());
+        assertTrue(recovered.append(r3), "record 3 appended after recovery");
+        recovered.ack(new long[] { r1.walPosition, r2.walPosition });
+        recovered.close();
+
+        var reopened = open();
+        assertEquals(r3, reopened.poll(), "only record 3 is not acknowledged");
+        assertNull(reopened.poll(), "no more records");
+        reopened.close();
+    }
+
+    @Test
+    public void testFull() {
+        var wal = new WriteAheadLog(new MappedSegmentLog(dir, 256, 512));
+        var message = "x".repeat(50);
+        var appended = 0;
+        while (wal.append(LogRecord.create(100L, appended, Map.of("app", "my-app"), message, Map.of())))
+            appended++;
+        assertEquals(4, appended, "2 records per segment, 2 segments");
+
+        var record = LogRecord.create(200L, 0, Map.of("app", "my-app"), message, Map.of());
+        assertFalse(wal.append(record), "log is full");
+        assertEquals(-1, record.walPosition, "position is not set");
+        wal.close();
+    }
+
+}
@@ -0,0 +1,487 @@
+package com.github.loki4j.client.pipeline;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import com.github.loki4j.client.batch.LabelStream;
+import com.github.loki4j.client.batch.LogRecord;
+import com.github.loki4j.client.http.HttpConfig;
+import com.github.loki4j.client.http.Loki4jHttpClient;
+import com.github.loki4j.client.http.LokiResponse;
+import com.github.loki4j.client.util.Loki4jLogger;
+
+public class AsyncBufferPipelineTest {
+
+    @TempDir
+    Path dir;
+
+    private static final Pattern messagePattern = Pattern.compile("\"(s\\d+)-(\\d+)\"");
+
+    private static final Loki4jLogger silentLogger = new Loki4jLogger() {
+        public void trace(String msg, Object... args) { }
+        public void info(String msg, Object... args) { }
+        public void warn(String msg, Object... args) { }
+        public void warn(Throwable ex, String msg, Object... args) { }
+        public void error(String msg, Object... args) { }
+        public void error(Throwable ex, String msg, Object... args) { }
+    };
+
+    /**
+     * Collects payloads of the batches sent. It could be suspended to simulate Loki being slow,
+     * or respond with an error status to simulate Loki being unavailable
+     */
+    static class TestHttpClient implements Loki4jHttpClient {
+        final ConcurrentLinkedQueue<String> payloads = new ConcurrentLinkedQueue<>();
+        volatile boolean suspended = false;
+        volatile int status = 204;
+
+        @Override
+        public HttpConfig getConfig() {
+            return HttpConfig.builder().build("application/json");
+        }
+
+        @Override
+        public LokiResponse send(ByteBuffer batch) throws Exception {
+            while (suspended)
+                LockSupport.parkNanos(1_000_000);
+            var responseStatus = status;
+            if (responseStatus == 204)
+                payloads.add(payload(batch));
+            return new LokiResponse(responseStatus, "");
+        }
+
+        @Override
+        public void close() { }
+
+        static String payload(ByteBuffer batch) {
+            var bytes = new byte[batch.remaining()];
+            batch.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Responds to async sends with scripted responses, once there are no more of them, sends are successful.
+     * Only payloads of successful sends are collected
+     */
+    static class AsyncTestHttpClient extends TestHttpClient {
+        final ConcurrentLinkedQueue<Supplier<CompletableFuture<LokiResponse>>> responses = new ConcurrentLinkedQueue<>();
+        final AtomicInteger sends = new AtomicInteger(0);
+
+        @Override
+        public CompletableFuture<LokiResponse> sendAsync(ByteBuffer batch) {
+            sends.incrementAndGet();
+            var payload = payload(batch);
+            var response = responses.poll();
+            var result = response != null
+                ? response.get()
+                : CompletableFuture.completedFuture(new LokiResponse(204, ""));
+            return result.thenApply(r -> {
+                if (r != null && r.status == 204)
+                    payloads.add(payload);
+                return r;
+            });
+        }
+    }
+
+    static PipelineConfig.Builder config(Loki4jHttpClient client) {
+        return PipelineConfig.builder()
+            .setBatchMaxItems(10)
+            .setBatchTimeoutMs(50)
+            .setMinRetryBackoffMs(10)
+            .setMaxRetryBackoffMs(50)
+            .setMaxRetryJitterMs(1)
+            .setUseDirectBuffers(false)
+            .setHttpClientFactory(cfg -> client)
+            .setInternalLoggingFactory(source -> silentLogger);
+    }
+
+    static LogRecord record(String stream, int seq) {
+        return LogRecord.create(100L + seq, seq, Map.of("stream", stream), stream + "-" + seq, Map.of());
+    }
+
+    /**
+     * Extracts messages of each payload, grouped by stream
+     */
+    static List<Map<String, List<Integer>>> sentMessages(TestHttpClient client) {
+        var result = new ArrayList<Map<String, List<Integer>>>();
+        for (var payload : client.payloads) {
+            var messages = new TreeMap<String, List<Integer>>();
+            var m = messagePattern.matcher(payload);
+            while (m.find())
+                messages.computeIfAbsent(m.group(1), k -> new ArrayList<>()).add(Integer.parseInt(m.group(2)));
+            result.add(messages);
+        }
+        return result;
+    }
+
+    /**
+     * Merges messages of all payloads in the order they were sent
+     */
+    static Map<String, List<Integer>> sentMessagesByStream(TestHttpClient client) {
+        var result = new TreeMap<String, List<Integer>>();
+        for (var payload : sentMessages(client))
+            payload.forEach((stream, seqs) -> result.computeIfAbsent(stream, k -> new ArrayList<>()).addAll(seqs));
+        return result;
+    }
+
+    static void assertSentInOrder(Map<String, List<Integer>> sent, int streams, int recordsPerStream) {
+        assertEquals(streams, sent.size(), "all streams are sent");
+        for (var e : sent.entrySet()) {
+            var seqs = e.getValue();
+            assertEquals(recordsPerStream, seqs.size(), "all records of stream " + e.getKey() + " are sent");
+            for (int i = 0; i < seqs.size(); i++)
+                assertEquals(i, seqs.get(i), "record " + i + " of stream " + e.getKey() + " is in order");
+        }
+    }
+
+    @Test
+    public void testEncodersShardStreams() {
+        var client = new TestHttpClient();
+        var pipeline = new AsyncBufferPipeline(config(client).setEncoderThreads(3).build());
+        pipeline.start();
+        for (int i = 0; i < 100; i++)
+            assertTrue(pipeline.append(recordSupplier(i)), "record " + i + " accepted");
+        pipeline.waitPipelineIsEmpty(10_000);
+        pipeline.stop();
+
+        var shards = new HashSet<Integer>();
+        for (var payload : sentMessages(client)) {
+            var payloadShards = new HashSet<Integer>();
+            for (var stream : payload.keySet())
+                payloadShards.add(Math.floorMod(LabelStream.of(Map.of("stream", stream)).hashCode(), 3));
+            assertEquals(1, payloadShards.size(), "batch contains streams of one encoder only: " + payload.keySet());
+            shards.addAll(payloadShards);
+        }
+        assertTrue(shards.size() > 1, "streams are spread across encoders: " + shards);
+        assertEquals(100, sentMessagesByStream(client).values().stream().mapToInt(List::size).sum(), "all records sent");
+    }
+
+    @Test
+    public void testEncodersKeepStreamOrder() throws InterruptedException {
+        var client = new TestHttpClient();
+        var pipeline = new AsyncBufferPipeline(config(client)
+            .setEncoderThreads(3)
+            .setBufferMaxItems(10_000)
+            .build());
+        pipeline.start();
+        var producers = new Thread[5];
+        for (int p = 0; p < producers.length; p++) {
+            var stream = "s" + p;
+            producers[p] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    var seq = i;
+                    pipeline.append(() -> record(stream, seq));
+                }
+            });
+            producers[p].start();
+        }
+        for (var p : producers)
+            p.join();
+        pipeline.waitPipelineIsEmpty(10_000);
+        pipeline.stop();
+
+        assertSentInOrder(sentMessagesByStream(client), 5, 1000);
+    }
+
+    @Test
+    public void testBackpressureWithSeveralEncoders() {
+        var client = new TestHttpClient();
+        client.suspended = true;
+        var pipeline = new AsyncBufferPipeline(config(client)
+            .setEncoderThreads(3)
+            .setSendQueueMaxBytes(2 * 1024)
+            .build());
+        pipeline.start();
+
+        var seq = 0;
+        var accepted = 0;
+        while (seq < 100_000 && pipeline.append(recordSupplier(seq++)))
+            accepted++;
+        assertTrue(seq < 100_000, "backpressure is on");
+
+        // unblocked encoders must not lift the backpressure while the send queue is full
+        var acceptedUnderBackpressure = 0;
+        for (int i = 0; i < 500; i++) {
+            if (pipeline.append(recordSupplier(seq++)))
+                acceptedUnderBackpressure++;
+            if (i % 50 == 0)
+                LockSupport.parkNanos(5_000_000);
+        }
+        assertEquals(0, acceptedUnderBackpressure, "no records accepted under backpressure");
+
+        client.suspended = false;
+        pipeline.waitPipelineIsEmpty(10_000);
+        assertTrue(pipeline.append(recordSupplier(seq++)), "backpressure is off");
+        accepted++;
+        pipeline.waitPipelineIsEmpty(10_000);
+        pipeline.stop();
+
+        assertEquals(accepted, sentMessagesByStream(client).values().stream().mapToInt(List::size).sum(), "all accepted records sent");
+    }
+
+    @Test
+    public void testAsyncSends() {
+        var client = new AsyncTestHttpClient();
+        var pipeline = new AsyncBufferPipeline(config(client)
+            .setAsyncSends(true)
+            .setMaxConcurrentSends(3)
+            .build());
+        pipeline.start();
+        for (int i = 0; i < 600; i++)
+            assertTrue(pipeline.append(recordSupplier(i)), "record " + i + " accepted");
+        pipeline.waitPipelineIsEmpty(10_000);
+        pipeline.stop();
+
+        assertSentInOrder(sentMessagesByStream(client), 6, 100);
+    }
+
+    @Test
+    public void testAsyncSendRetries() {
+        var client = new AsyncTestHttpClient();
+        client.responses.add(() -> CompletableFuture.completedFuture(new LokiResponse(503, "unavailable")));
+        client.responses.add(() -> CompletableFuture.failedFuture(new ConnectException("refused")));
+        var pipeline = new AsyncBufferPipeline(config(client)
+            .setAsyncSends(true)
+            .build());
+        pipeline.start();
+        for (int i = 0; i < 10; i++)
+            assertTrue(pipeline.append(recordSupplier(i)), "record " + i + " accepted");
+        pipeline.waitPipelineIsEmpty(10_000);
+        pipeline.stop();
+
+        assertEquals(3, client.sends.get(), "batch is sent after 2 retries");
+        assertEquals(10, sentMessagesByStream(client).values().stream().mapToInt(List::size).sum(), "all records sent");
+    }
+
+    @Test
+    public void testAsyncSendFailures() {
+        var client = new AsyncTestHttpClient();
+        // the client throws instead of returning a future
+        client.responses.add(() -> { throw new IllegalStateException("client failed"); });
+        // completion handler fails on a missing response
+        client.responses.add(() -> CompletableFuture.completedFuture(null));
+        client.responses.add(() -> CompletableFuture.failedFuture(new IOException("broken pipe")));
+        client.responses.add(() -> CompletableFuture.completedFuture(new LokiResponse(400, "bad request")));
+        // a single permit, so a leaked one would block all the next sends
+        var pipeline = new AsyncBufferPipeline(config(client)
+            .setAsyncSends(true)
+            .setMaxConcurrentSends(1)
+            .build());
+        pipeline.start();
+        for (int b = 0; b < 5; b++) {
+            for (int i = 0; i < 10; i++)
+                assertTrue(pipeline.append(recordSupplier(b * 10 + i)), "record " + i + " of batch " + b + " accepted");
+            pipeline.waitPipelineIsEmpty(10_000);
+        }
+        pipeline.stop();
+
+        assertEquals(5, client.sends.get(), "failed batches are not retried");
+        assertEquals(1, client.payloads.size(), "batch sent after failures");
+        assertEquals(10, sentMessagesByStream(client).values().stream().mapToInt(List::size).sum(), "records of the last batch sent");
+    }
+
+    @Test
+    public void testAsyncStopWithSendsInFlight() throws InterruptedException {
+        var client = new AsyncTestHttpClient();
+        var inFlight = new CompletableFuture<LokiResponse>();
+        client.responses.add(() -> inFlight);
+        var pipeline = new AsyncBufferPipeline(config(client)
+            .setAsyncSends(true)
+            .build());
+        pipeline.start();
+        for (int i = 0; i < 10; i++)
+            assertTrue(pipeline.append(recordSupplier(i)), "record " + i + " accepted");
+        while (client.sends.get() == 0)
+            LockSupport.parkNanos(1_000_000);
+
+        var responder = new Thread(() -> {
+            LockSupport.parkNanos(200_000_000);
+            inFlight.complete(new LokiResponse(204, ""));
+        });
+        responder.start();
+        pipeline.stop();
+        responder.join();
+
+        assertEquals(1, client.payloads.size(), "stop waits for the send in flight");
+        assertEquals(10, sentMessagesByStream(client).values().stream().mapToInt(List::size).sum(), "all records sent");
+    }
+
+    @Test
+    public void testSpilledBatchesSentAfterRestart() {
+        var unavailable = new TestHttpClient();
+        unavailable.status = 503;
+        var pipeline = new AsyncBufferPipeline(config(unavailable)
+            .setSpillDir(dir.toString())
+            .build());
+        pipeline.start();
+        for (int i = 0; i < 60; i++)
+            assertTrue(pipeline.append(recordSupplier(i)), "record " + i + " accepted");
+        // batches that failed to be sent are kept on disk on stop
+        pipeline.stop();
+        assertTrue(unavailable.payloads.isEmpty(), "nothing sent while Loki is unavailable");
+
+        var client = new TestHttpClient();
+        var restarted = new AsyncBufferPipeline(config(client)
+            .setSpillDir(dir.toString())
+            .build());
+        restarted.start();
+        restarted.waitPipelineIsEmpty(10_000);
+        restarted.stop();
+
+        assertSentInOrder(sentMessagesByStream(client), 6, 10);
+    }
+
+    @Test
+    public void testQueuedBatchesSentAfterRestartWithoutDrain() {
+        var unavailable = new TestHttpClient();
+        unavailable.status = 503;
+        var pipeline = new AsyncBufferPipeline(config(unavailable)
+            .setSendQueueMaxBytes(1024)
+            .setSpillDir(dir.toString())
+            .setDrainOnStop(false)
+            .build());
+        pipeline.start();
+        for (int i = 0; i < 60; i++)
+            assertTrue(pipeline.append(recordSupplier(i)), "record " + i + " accepted");
+        // let encoders put all the batches into the send queue, some of them are spilled
+        LockSupport.parkNanos(500_000_000L);
+        // batches left in memory are kept on disk as well
+        pipeline.stop();
+        assertTrue(unavailable.payloads.isEmpty(), "nothing sent while Loki is unavailable");
+
+        var client = new TestHttpClient();
+        var restarted = new AsyncBufferPipeline(config(client)
+            .setSpillDir(dir.toString())
+            .build());
+        restarted.start();
+        restarted.waitPipelineIsEmpty(10_000);
+        restarted.stop();
+
+        assertSentInOrder(sentMessagesByStream(client), 6, 10);
+    }
+
+    @Test
+    public void testUnsentRecordsRedeliveredAfterRestart() {
+        var client = new TestHttpClient();
+        var pipeline = new AsyncBufferPipeline(config(client)
+            .setWalDir(dir.toString())
+            .build());
+        pipeline.start();
+        for (int i = 0; i < 12; i++)
+            assertTrue(pipeline.append(recordSupplier(i)), "record " + i + " accepted");
+        pipeline.waitPipelineIsEmpty(10_000);
+        client.status = 503;
+        for (int i = 12; i < 30; i++)
+            assertTrue(pipeline.append(recordSupplier(i)), "record " + i + " accepted");
+        pipeline.stop();
+
+        var restartedClient = new TestHttpClient();
+        var restarted = new AsyncBufferPipeline(config(restartedClient)
+            .setWalDir(dir.toString())
+            .build());
+        restarted.start();
+        restarted.waitPipelineIsEmpty(10_000);
+        restarted.stop();
+
+        // confirmed records are not sent again, the rest are sent after restart
+        var sent = sentMessagesByStream(client);
+        sentMessagesByStream(restartedClient).forEach((stream, seqs) ->
+            sent.computeIfAbsent(stream, k -> new ArrayList<>()).addAll(seqs));
+        assertSentInOrder(sent, 6, 5);
+    }
+
+    @Test
+    public void testBufferMaxBytes() {
+        var client = new TestHttpClient();
+        var pipeline = new AsyncBufferPipeline(config(client)
+            .setBufferMaxBytes(5000)
+            .build());
+        // records stay in the buffer until the pipeline is started
+        for (int i = 0; i < 4; i++)
+            assertTrue(pipeline.append(largeRecordSupplier(i)), "record " + i + " accepted");
+        assertFalse(pipeline.append(largeRecordSupplier(4)), "record exceeding the limit dropped");
+
+        pipeline.start();
+        pipeline.waitPipelineIsEmpty(10_000);
+        assertTrue(pipeline.append(largeRecordSupplier(4)), "record accepted once the buffer is drained");
+        pipeline.waitPipelineIsEmpty(10_000);
+        pipeline.stop();
+
+        assertSentInOrder(sentMessagesByStream(client), 1, 5);
+    }
+
+    @Test
+    public void testBufferMaxBytesReservedForPriority() {
+        var client = new TestHttpClient();
+        var pipeline = new AsyncBufferPipeline(config(client)
+            .setBufferMaxBytes(5000)
+            .setPriorityLevels("ERROR")
+            .setPriorityReservedBytes(2000)
+            .build());
+        for (int i = 0; i < 2; i++)
+            assertTrue(pipeline.append(largeRecordSupplier(i), "INFO"), "regular record " + i + " accepted");
+        assertFalse(pipeline.append(largeRecordSupplier(2), "INFO"), "regular record dropped at the reserve");
+        for (int i = 2; i < 4; i++)
+            assertTrue(pipeline.append(largeRecordSupplier(i), "ERROR"), "prioritized record " + i + " accepted");
+        assertFalse(pipeline.append(largeRecordSupplier(4), "ERROR"), "prioritized record exceeding the limit dropped");
+
+        pipeline.start();
+        pipeline.waitPipelineIsEmpty(10_000);
+        pipeline.stop();
+
+        assertSentInOrder(sentMessagesByStream(client), 1, 4);
+    }
+
+    @Test
+    public void testOversizedRecordAcceptedIntoEmptyBuffer() {
+        var client = new TestHttpClient();
+        var pipeline = new AsyncBufferPipeline(config(client)
+            .setBufferMaxBytes(500)
+            .build());
+        assertTrue(pipeline.append(largeRecordSupplier(0)), "oversized record accepted into empty buffer");
+        assertFalse(pipeline.append(largeRecordSupplier(1)), "next record dropped");
+
+        pipeline.start();
+        pipeline.waitPipelineIsEmpty(10_000);
+        assertTrue(pipeline.append(largeRecordSupplier(1)), "oversized record accepted once the buffer is drained");
+        pipeline.waitPipelineIsEmpty(10_000);
+        pipeline.stop();
+
+        assertSentInOrder(sentMessagesByStream(client), 1, 2);
+    }
+
+    /**
+     * Records are spread across 6 streams
+     */
+    static Supplier<LogRecord> recordSupplier(int seq) {
+        return () -> record("s" + (seq % 6), seq / 6);
+    }
+
+    /**
+     * Records of a single stream, each is estimated to take more than 1000 bytes in the buffer
+     */
+    static Supplier<LogRecord> largeRecordSupplier(int seq) {
+        return () -> LogRecord.create(100L + seq, seq, Map.of("stream", "s0"), "s0-" + seq, Map.of("pad", "x".repeat(1000)));
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.github.loki4j.client.pipeline;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.github.loki4j.client.http.HttpConfig;
+
+public class PipelineConfigTest {
+
+    @Test
+    public void testVirtualThreadsConfiguredSeparately() {
+        var http = HttpConfig.builder().setUseVirtualThreads(true);
+        var conf = PipelineConfig.builder()
+            .setHttpConfig(http)
+            .setUseVirtualThreads(false)
+            .build();
+        assertFalse(conf.useVirtualThreads, "platform sender threads");
+        assertTrue(conf.httpConfig.useVirtualThreads, "explicit HTTP config value is kept");
+
+        conf = PipelineConfig.builder()
+            .setHttpConfig(HttpConfig.builder())
+            .setUseVirtualThreads(true)
+            .build();
+        assertTrue(conf.useVirtualThreads, "virtual sender threads");
+        assertFalse(conf.httpConfig.useVirtualThreads, "HTTP config is not changed");
+    }
+
+    @Test
+    public void testCompressionValidated() {
+        assertThrows(IllegalArgumentException.class,
+            () -> PipelineConfig.builder().setCompression("zstd").build(), "unknown compression");
+        assertThrows(IllegalArgumentException.class,
+            () -> PipelineConfig.builder().setCompressionLevel(10).build(), "level is too high");
+        assertThrows(IllegalArgumentException.class,
+            () -> PipelineConfig.builder().setCompressionLevel(0).build(), "level is too low");
+
+        var conf = PipelineConfig.builder().setCompression("gzip").setCompressionLevel(-1).build();
+        assertEquals(-1, conf.compressionLevel, "default level of the codec");
+    }
+
+    @Test
+    public void testWalFsyncValidated() {
+        assertThrows(IllegalArgumentException.class,
+            () -> PipelineConfig.builder().setWalFsync("always").build(), "unknown policy");
+        assertThrows(IllegalArgumentException.class,
+            () -> PipelineConfig.builder().setWalFsync(null).build(), "policy not specified");
+        assertEquals("interval", PipelineConfig.builder().setWalFsync("interval").build().walFsync, "known policy");
+    }
+
+    @Test
+    public void testOverflowSettingsValidated() {
+        for (var name : OverflowPolicy.NAMES)
+            assertEquals(name, OverflowPolicy.of(name).toString(), name);
+        assertFalse(OverflowPolicy.isKnown("drop-latest"), "unknown policy");
+        assertFalse(OverflowPolicy.isKnown(null), "policy not specified");
+        assertThrows(IllegalArgumentException.class, () -> OverflowPolicy.of("drop-latest"), "unknown policy");
+
+        assertThrows(IllegalArgumentException.class,
+            () -> PipelineConfig.builder().setOverflowSampleThreshold(100).build(), "threshold is too high");
+        assertThrows(IllegalArgumentException.class,
+            () -> PipelineConfig.builder().setOverflowSampleThreshold(-1).build(), "threshold is too low");
+        assertEquals(0, PipelineConfig.builder().setOverflowSampleThreshold(0).build().overflowSampleThreshold, "zero threshold");
+    }
+
+}
@@ -0,0 +1,39 @@
+package com.github.loki4j.client.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ArrayMapTest {
+
+    @Test
+    public void testCompatibleWithLinkedHashMap() {
+        var map = new ArrayMap(1);
+        map.put("level", "INFO");
+        map.put("app", "my-app");
+        map.put("level", "WARN");
+
+        var expected = OrderedMap.of("level", "WARN", "app", "my-app");
+        assertEquals(2, map.size(), "size is correct");
+        assertEquals("WARN", map.get("level"), "value is replaced");
+        assertTrue(map.equals(expected), "equals to LinkedHashMap");
+        assertTrue(expected.equals(map), "LinkedHashMap equals to it");
+        assertEquals(expected.hashCode(), map.hashCode(), "same hash code");
+        assertEquals(expected.toString(), map.toString(), "same order");
+    }
+
+    @Test
+    public void testReuse() {
+        var map = new ArrayMap(2);
+        map.put("a", "1");
+        map.put("b", "2");
+        map.put("c", "3");
+        map.clear();
+        assertTrue(map.isEmpty(), "empty after clear");
+        assertNull(map.get("a"), "no values after clear");
+
+        map.put("d", "4");
+        assertEquals(OrderedMap.of("d", "4"), map, "refilled");
+    }
+
+}
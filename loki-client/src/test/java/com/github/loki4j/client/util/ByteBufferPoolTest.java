@@ -0,0 +1,73 @@
+package com.github.loki4j.client.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+
+public class ByteBufferPoolTest {
+
+    @Test
+    public void testSizeClasses() {
+        var pool = new ByteBufferPool(1 << 20, new ByteBufferFactory(false));
+
+        var b1000 = pool.acquire(1000);
+        assertEquals(1024, b1000.capacity(), "capacity is rounded up to a power of two");
+        var b1024 = pool.acquire(1024);
+        assertEquals(1024, b1024.capacity(), "power of two is not rounded");
+        assertEquals(2, pool.misses(), "new buffers allocated");
+        assertEquals(2048, pool.allocatedBytes(), "allocated bytes");
+
+        pool.release(b1000);
+        pool.release(ByteBuffer.allocate(3000));
+        assertEquals(2, pool.size(), "buffers are pooled");
+        assertEquals(4024, pool.pooledBytes(), "pooled bytes");
+
+        assertSame(b1000, pool.acquire(400), "buffer of the next class is reused");
+        assertEquals(1, pool.hits(), "hit");
+
+        pool.release(b1024);
+        assertNotSame(b1024, pool.acquire(100), "buffers more than 4x larger are not reused");
+        assertEquals(3, pool.misses(), "miss");
+
+        assertEquals(4096, pool.acquire(2049).capacity(), "buffer of a smaller class is not reused");
+        assertEquals(4, pool.misses(), "miss");
+        assertEquals(3000, pool.acquire(2048).capacity(), "buffer of exactly matching class is reused");
+        assertSame(b1024, pool.acquire(1000), "buffer of exactly matching class is reused");
+        assertEquals(0, pool.size(), "pool is empty");
+        assertEquals(0, pool.pooledBytes(), "no pooled bytes");
+    }
+
+    @Test
+    public void testReleasedBufferIsCleared() {
+        var pool = new ByteBufferPool(1 << 20, new ByteBufferFactory(true));
+        var buffer = pool.acquire(16);
+        buffer.put(new byte[] {1, 2, 3});
+        buffer.flip();
+        pool.release(buffer);
+
+        var reused = pool.acquire(16);
+        assertSame(buffer, reused, "buffer is reused");
+        assertEquals(0, reused.position(), "position is reset");
+        assertEquals(16, reused.limit(), "limit is reset");
+    }
+
+    @Test
+    public void testMaxPooledBytes() {
+        var pool = new ByteBufferPool(2048, new ByteBufferFactory(false));
+        pool.release(pool.acquire(1024));
+        pool.release(pool.acquire(1024));
+        assertEquals(1, pool.size(), "the same buffer is reused");
+
+        var b1 = pool.acquire(1024);
+        var b2 = pool.acquire(1024);
+        var b3 = pool.acquire(1024);
+        pool.release(b1);
+        pool.release(b2);
+        pool.release(b3);
+        assertEquals(2, pool.size(), "pool is limited");
+        assertEquals(2048, pool.pooledBytes(), "pooled bytes are limited");
+    }
+
+}
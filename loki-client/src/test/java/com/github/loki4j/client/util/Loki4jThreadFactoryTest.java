@@ -0,0 +1,39 @@
+package com.github.loki4j.client.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class Loki4jThreadFactoryTest {
+
+    private static boolean isVirtual(Thread t) throws ReflectiveOperationException {
+        return (boolean) Thread.class.getMethod("isVirtual").invoke(t);
+    }
+
+    @Test
+    public void testVirtualThreads() throws ReflectiveOperationException {
+        var factory = new Loki4jThreadFactory("test-virtual", true);
+        var t = factory.newThread(() -> { });
+        assertEquals("test-virtual-0", t.getName(), "thread name");
+
+        if (Runtime.version().feature() >= 21) {
+            assertTrue(Loki4jThreadFactory.virtualThreadsSupported(), "supported on Java 21+");
+            assertTrue(factory.isVirtual(), "factory creates virtual threads");
+            assertTrue(isVirtual(t), "virtual thread created");
+        } else {
+            assertFalse(Loki4jThreadFactory.virtualThreadsSupported(), "not supported before Java 21");
+            assertFalse(factory.isVirtual(), "factory falls back to platform threads");
+            assertTrue(t.isDaemon(), "platform daemon thread created");
+        }
+    }
+
+    @Test
+    public void testPlatformThreads() {
+        var factory = new Loki4jThreadFactory("test-platform", false);
+        assertFalse(factory.isVirtual(), "virtual threads not requested");
+        var t = factory.newThread(() -> { });
+        assertEquals("test-platform-0", t.getName(), "thread name");
+        assertTrue(t.isDaemon(), "platform daemon thread created");
+    }
+
+}
@@ -0,0 +1,160 @@
+package com.github.loki4j.client.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class MappedSegmentLogTest {
+
+    @TempDir
+    Path dir;
+
+    private static ByteBuffer record(int value, int size) {
+        var bb = ByteBuffer.allocate(size);
+        while (bb.hasRemaining())
+            bb.put((byte) value);
+        return bb.flip();
+    }
+
+    private static int poll(MappedSegmentLog log, long[] position) {
+        var value = new int[] { -1 };
+        position[0] = log.poll(bb -> value[0] = bb.get(bb.limit() - 1));
+        return value[0];
+    }
+
+    private long segmentFiles() throws IOException {
+        try (var files = Files.list(dir)) {
+            return files.filter(f -> f.toString().endsWith(".seg")).count();
+        }
+    }
+
+    @Test
+    public void testAppendAndPoll() {
+        var log = new MappedSegmentLog(dir, 1024, 4096);
+        assertTrue(log.isEmpty(), "log is empty");
+        assertEquals(-1, log.peekLength(), "nothing to peek");
+
+        assertTrue(log.append(record(1, 10)) >= 0, "record 1 appended");
+        assertTrue(log.append(record(2, 5), record(2, 15)) >= 0, "record 2 appended from 2 parts");
+        assertEquals(2, log.size(), "2 records");
+        assertEquals(46, log.sizeBytes(), "size with headers");
+
+        var pos = new long[1];
+        assertEquals(10, log.peekLength(), "length of record 1");
+        assertEquals(1, poll(log, pos), "record 1 read first");
+        var pos1 = pos[0];
+        assertEquals(20, log.peekLength(), "length of record 2");
+        assertEquals(2, poll(log, pos), "record 2 read second");
+        assertTrue(log.isEmpty(), "no records to read");
+        assertEquals(-1, log.poll(bb -> fail("nothing to read")), "nothing to read");
+
+        log.ack(pos1);
+        assertEquals(28, log.sizeBytes(), "record 1 acknowledged");
+        log.ack(pos[0]);
+        assertEquals(0, log.sizeBytes(), "all records acknowledged");
+        log.close();
+    }
+
+    @Test
+    public void testRecovery() {
+        var log = new MappedSegmentLog(dir, 64, 1024);
+        for (int i = 1; i <= 4; i++)
+            assertTrue(log.append(record(i, 20)) >= 0, "record " + i + " appended");
+
+        var pos = new long[1];
+        assertEquals(1, poll(log, pos), "record 1 read");
+        log.ack(pos[0]);
+        assertEquals(2, poll(log, pos), "record 2 read, but not acknowledged");
+        log.close();
+        assertEquals(-1, log.append(record(5, 20)), "closed log doesn't accept records");
+
+        var recovered = new MappedSegmentLog(dir, 64, 1024);
+        assertEquals(3, recovered.size(), "unacknowledged records recovered");
+        var count = new int[1];
+        recovered.forEachUnread(bb -> count[0]++);
+        assertEquals(3, count[0], "unread records");
+        assertEquals(2, poll(recovered, pos), "record 2 read again");
+        assertEquals(3, poll(recovered, pos), "record 3 read");
+        assertTrue(recovered.append(record(5, 20)) >= 0, "record 5 appended after recovery");
+        assertEquals(4, poll(recovered, pos), "record 4 read");
+        assertEquals(5, poll(recovered, pos), "record 5 read");
+        assertTrue(recovered.isEmpty(), "all records read");
+        recovered.close();
+    }
+
+    @Test
+    public void testPendingAndAcknowledgedRecordsSkipped() {
+        var log = new MappedSegmentLog(dir, 1024, 4096);
+        assertTrue(log.append(record(1, 20)) >= 0, "record 1 appended");
+        var pos2 = log.appendPending(record(2, 20));
+        assertTrue(pos2 >= 0, "record 2 appended as pending");
+        assertTrue(log.append(record(3, 20)) >= 0, "record 3 appended");
+        assertTrue(log.appendPending(record(4, 20)) >= 0, "record 4 appended as pending");
+        assertEquals(2, log.size(), "2 records to read");
+        var count = new int[1];
+        log.forEachUnread(bb -> count[0]++);
+        assertEquals(2, count[0], "pending records are not unread");
+
+        var pos = new long[1];
+        assertEquals(1, poll(log, pos), "record 1 read");
+        assertEquals(3, poll(log, pos), "pending record 2 skipped");
+        log.ack(pos[0]);
+        assertTrue(log.isEmpty(), "pending record 4 is not read");
+        log.close();
+
+        var recovered = new MappedSegmentLog(dir, 1024, 4096);
+        assertEquals(3, recovered.size(), "records 1, 2 and 4 recovered");
+        assertEquals(1, poll(recovered, pos), "record 1 read again");
+        assertEquals(2, poll(recovered, pos), "record 2 read after restart");
+        assertEquals(4, poll(recovered, pos), "acknowledged record 3 skipped");
+        assertTrue(recovered.isEmpty(), "all records read");
+        recovered.close();
+    }
+
+    @Test
+    public void testSegmentsRecycled() throws IOException {
+        // 2 segments, 2 records per segment
+        var log = new MappedSegmentLog(dir, 64, 128);
+        assertEquals(-1, log.append(record(0, 57)), "record larger than segment is rejected");
+        for (int i = 1; i <= 4; i++)
+            assertTrue(log.append(record(i, 20)) >= 0, "record " + i + " appended");
+        assertEquals(-1, log.append(record(5, 20)), "log is full");
+        assertEquals(2, segmentFiles(), "2 segments allocated");
+
+        var pos = new long[1];
+        assertEquals(1, poll(log, pos), "record 1 read");
+        log.ack(pos[0]);
+        assertEquals(-1, log.append(record(5, 20)), "segment is not recycled until all its records are acknowledged");
+        assertEquals(2, poll(log, pos), "record 2 read");
+        log.ack(pos[0]);
+        assertTrue(log.append(record(5, 20)) >= 0, "record 5 appended to recycled segment");
+        assertEquals(2, segmentFiles(), "no new segments allocated");
+        log.close();
+
+        var recovered = new MappedSegmentLog(dir, 64, 128);
+        assertEquals(3, recovered.size(), "stale records of recycled segment are not recovered");
+        assertEquals(3, poll(recovered, pos), "record 3 read");
+        assertEquals(4, poll(recovered, pos), "record 4 read");
+        assertEquals(5, poll(recovered, pos), "record 5 read");
+        recovered.close();
+    }
+
+    @Test
+    public void testDirectoryLocked() {
+        var log = new MappedSegmentLog(dir, 64, 1024);
+        assertThrows(UncheckedIOException.class, () -> new MappedSegmentLog(dir, 64, 1024), "directory is in use");
+        log.close();
+
+        var reopened = new MappedSegmentLog(dir, 64, 1024);
+        assertTrue(reopened.append(record(1, 20)) >= 0, "directory is released on close");
+        reopened.close();
+    }
+
+}
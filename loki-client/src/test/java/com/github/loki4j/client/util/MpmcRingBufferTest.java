@@ -0,0 +1,82 @@
+package com.github.loki4j.client.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MpmcRingBufferTest {
+
+    @Test
+    public void testOfferPoll() {
+        var buffer = new MpmcRingBuffer<String>(3);
+        assertEquals(4, buffer.capacity(), "capacity is rounded up");
+        assertTrue(buffer.isEmpty(), "empty initially");
+        assertNull(buffer.poll(), "nothing to poll");
+
+        for (int i = 0; i < 4; i++)
+            assertTrue(buffer.offer("item" + i), "can add item " + i);
+        assertFalse(buffer.offer("item4"), "buffer is full");
+        assertEquals(4, buffer.size(), "size is correct");
+
+        assertEquals("item0", buffer.poll(), "poll item 0");
+        assertTrue(buffer.offer("item4"), "can add item 4 after wrap");
+        for (int i = 1; i < 5; i++)
+            assertEquals("item" + i, buffer.poll(), "poll item " + i);
+        assertTrue(buffer.isEmpty(), "empty finally");
+        assertNull(buffer.poll(), "nothing to poll");
+    }
+
+    @Test
+    public void testConcurrentProducersAndConsumers() throws InterruptedException {
+        var threads = 4;
+        var itemsPerProducer = 50_000;
+        var buffer = new MpmcRingBuffer<Integer>(256);
+        var start = new CountDownLatch(1);
+        var consumed = new AtomicInteger();
+        var sum = new AtomicLong();
+
+        var producers = new Thread[threads];
+        var consumers = new Thread[threads];
+        for (int p = 0; p < threads; p++) {
+            producers[p] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < itemsPerProducer; i++) {
+                    while (!buffer.offer(i))
+                        Thread.onSpinWait();
+                }
+            });
+            consumers[p] = new Thread(() -> {
+                while (consumed.get() < threads * itemsPerProducer) {
+                    var item = buffer.poll();
+                    if (item == null) {
+                        Thread.onSpinWait();
+                        continue;
+                    }
+                    sum.addAndGet(item);
+                    consumed.incrementAndGet();
+                }
+            });
+            producers[p].start();
+            consumers[p].start();
+        }
+        start.countDown();
+        for (int p = 0; p < threads; p++) {
+            producers[p].join();
+            consumers[p].join();
+        }
+
+        var expectedSum = (long) threads * itemsPerProducer * (itemsPerProducer - 1) / 2;
+        assertEquals(threads * itemsPerProducer, consumed.get(), "all items consumed");
+        assertEquals(expectedSum, sum.get(), "no items lost or duplicated");
+        assertTrue(buffer.isEmpty(), "empty finally");
+    }
+
+}
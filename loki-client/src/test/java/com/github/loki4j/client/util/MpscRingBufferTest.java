@@ -0,0 +1,128 @@
+package com.github.loki4j.client.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MpscRingBufferTest {
+
+    @Test
+    public void testCapacity() {
+        assertEquals(1, new MpscRingBuffer<String>(1).capacity(), "1 -> 1");
+        assertEquals(3, new MpscRingBuffer<String>(3).capacity(), "3 -> 3");
+        assertEquals(1000, new MpscRingBuffer<String>(1000).capacity(), "1000 -> 1000");
+
+        // ring length is rounded up to 4, but only 3 slots could be taken
+        var buffer = new MpscRingBuffer<String>(3);
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 3; i++)
+                assertTrue(buffer.offer("item" + i), "can add item " + i + " on lap " + lap);
+            assertFalse(buffer.offer("item3"), "buffer is full on lap " + lap);
+            assertEquals(3, buffer.size(), "size is correct on lap " + lap);
+            for (int i = 0; i < 3; i++)
+                assertEquals("item" + i, buffer.poll(), "poll item " + i + " on lap " + lap);
+        }
+    }
+
+    @Test
+    public void testOfferPoll() {
+        var buffer = new MpscRingBuffer<String>(4);
+        assertTrue(buffer.isEmpty(), "empty initially");
+        assertNull(buffer.peek(), "nothing to peek");
+        assertNull(buffer.poll(), "nothing to poll");
+
+        for (int i = 0; i < 4; i++)
+            assertTrue(buffer.offer("item" + i), "can add item " + i);
+        assertFalse(buffer.offer("item4"), "buffer is full");
+        assertEquals(4, buffer.size(), "size is correct");
+
+        assertEquals("item0", buffer.peek(), "peek does not remove");
+        assertEquals("item0", buffer.poll(), "poll item 0");
+        assertEquals("item1", buffer.poll(), "poll item 1");
+        assertEquals(2, buffer.size(), "size is correct");
+
+        assertTrue(buffer.offer("item4"), "can add item 4 after wrap");
+        assertTrue(buffer.offer("item5"), "can add item 5 after wrap");
+        assertFalse(buffer.offer("item6"), "buffer is full again");
+
+        for (int i = 2; i < 6; i++)
+            assertEquals("item" + i, buffer.poll(), "poll item " + i);
+        assertTrue(buffer.isEmpty(), "empty finally");
+        assertNull(buffer.poll(), "nothing to poll");
+    }
+
+    @Test
+    public void testDrainTo() {
+        var buffer = new MpscRingBuffer<String>(4);
+        var target = new String[3];
+        assertEquals(0, buffer.drainTo(target, 3), "nothing to drain");
+
+        for (int i = 0; i < 4; i++)
+            buffer.offer("item" + i);
+        assertEquals(3, buffer.drainTo(target, 3), "drained up to the limit");
+        assertArrayEquals(new String[] { "item0", "item1", "item2" }, target, "drained in order");
+        assertEquals(1, buffer.size(), "one item left");
+
+        assertTrue(buffer.offer("item4"), "can add item 4 after wrap");
+        assertEquals(2, buffer.drainTo(target, 3), "drained the rest");
+        assertEquals("item3", target[0], "item 3 drained");
+        assertEquals("item4", target[1], "item 4 drained");
+        assertTrue(buffer.isEmpty(), "empty finally");
+        assertTrue(buffer.offer("item5"), "slots are released");
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        var producers = 8;
+        var itemsPerProducer = 50_000;
+        var buffer = new MpscRingBuffer<Integer>(1024);
+        var start = new CountDownLatch(1);
+        var outOfOrder = new AtomicInteger();
+
+        var threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            var producerId = p;
+            threads[p] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < itemsPerProducer; i++) {
+                    while (!buffer.offer(producerId * itemsPerProducer + i))
+                        Thread.onSpinWait();
+                }
+            });
+            threads[p].start();
+        }
+
+        var lastSeen = new int[producers];
+        Arrays.fill(lastSeen, -1);
+        start.countDown();
+        var received = 0;
+        while (received < producers * itemsPerProducer) {
+            var item = buffer.poll();
+            if (item == null) {
+                Thread.onSpinWait();
+                continue;
+            }
+            var producerId = item / itemsPerProducer;
+            var seq = item % itemsPerProducer;
+            // items from the same producer must arrive in order
+            if (seq != lastSeen[producerId] + 1)
+                outOfOrder.incrementAndGet();
+            lastSeen[producerId] = seq;
+            received++;
+        }
+        for (var t : threads)
+            t.join();
+
+        assertEquals(0, outOfOrder.get(), "no items lost or reordered");
+        assertTrue(buffer.isEmpty(), "all items consumed");
+    }
+
+}
@@ -17,6 +17,15 @@ public class StringUtilsTest {
         }
     }
 
+    @Test
+    public void testUtf8LengthUnpairedSurrogates() {
+        var high = String.valueOf(Character.MIN_HIGH_SURROGATE);
+        var low = String.valueOf(Character.MIN_LOW_SURROGATE);
+        for (var test : new String[] { high, low, "a" + high + "b", low + high, high + high + low }) {
+            assertEquals(test.getBytes(UTF_8).length, StringUtils.utf8Length(test));
+        }
+    }
+
     @Test
     public void testIsBlank() {
         assertEquals(true, StringUtils.isBlank(null));
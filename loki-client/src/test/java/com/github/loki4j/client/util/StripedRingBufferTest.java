@@ -0,0 +1,125 @@
+package com.github.loki4j.client.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+public class StripedRingBufferTest {
+
+    private static final Comparator<Long> natural = Comparator.naturalOrder();
+
+    @Test
+    public void testCapacity() {
+        assertEquals(1, new StripedRingBuffer<Long>(1, 10, natural).stripesCount(), "1 stripe");
+        assertEquals(3, new StripedRingBuffer<Long>(3, 10, natural).stripesCount(), "3 stripes");
+        assertEquals(4, new StripedRingBuffer<Long>(8, 4, natural).stripesCount(), "stripes limited by capacity");
+
+        assertEquals(10, new StripedRingBuffer<Long>(3, 10, natural).capacity(), "10 split into 4+3+3");
+        assertEquals(1000, new StripedRingBuffer<Long>(8, 1000, natural).capacity(), "1000 split into 8x125");
+
+        var buffer = new StripedRingBuffer<Long>(3, 10, natural);
+        var added = 0;
+        for (int s = 0; s < 3; s++) {
+            while (buffer.offer(s, (long) added))
+                added++;
+        }
+        assertEquals(10, added, "stripes hold no more than capacity in total");
+    }
+
+    @Test
+    public void testMergeInOrder() {
+        var buffer = new StripedRingBuffer<Long>(4, 64, natural);
+        assertTrue(buffer.isEmpty(), "empty initially");
+        assertNull(buffer.peek(), "nothing to peek");
+
+        for (long i = 1; i <= 9; i++)
+            assertTrue(buffer.offer((int) (i % 3), i), "can add item " + i);
+
+        assertEquals(9, buffer.size(), "all items added");
+        for (long i = 1; i <= 9; i++) {
+            assertEquals(i, buffer.peek(), "peek item " + i);
+            assertEquals(i, buffer.poll(), "poll item " + i);
+        }
+        assertTrue(buffer.isEmpty(), "empty finally");
+        assertNull(buffer.poll(), "nothing to poll");
+    }
+
+    @Test
+    public void testDrainTo() {
+        var buffer = new StripedRingBuffer<Long>(2, 8, natural);
+        buffer.offer(0, 2L);
+        buffer.offer(1, 1L);
+        buffer.offer(1, 3L);
+        var target = new Long[4];
+        assertEquals(3, buffer.drainTo(target, 4), "all items drained");
+        assertArrayEquals(new Long[] { 1L, 2L, 3L, null }, target, "drained in merged order");
+        assertTrue(buffer.isEmpty(), "empty finally");
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        var producers = 6;
+        var itemsPerProducer = 10_000L;
+        var buffer = new StripedRingBuffer<Long>(4, 1024, natural);
+        var failures = new ConcurrentLinkedQueue<String>();
+        var done = new CountDownLatch(producers);
+
+        for (int p = 0; p < producers; p++) {
+            var producerId = p;
+            new Thread(() -> {
+                for (long i = 0; i < itemsPerProducer; i++) {
+                    // items are unique across producers, but not ordered between them
+                    var item = i * producers + producerId;
+                    var spins = 0;
+                    while (!buffer.offer(item)) {
+                        if (++spins > 100_000_000) {
+                            failures.add("producer " + producerId + " is stuck on item " + i);
+                            done.countDown();
+                            return;
+                        }
+                        Thread.onSpinWait();
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+
+        var lastSeen = new long[producers];
+        Arrays.fill(lastSeen, -1);
+        var received = 0L;
+        while (received < producers * itemsPerProducer && failures.isEmpty()) {
+            var item = buffer.poll();
+            if (item == null) {
+                Thread.onSpinWait();
+                continue;
+            }
+            var producerId = (int) (item % producers);
+            // items from the same producer must arrive in order, even if producers share a stripe
+            if (item <= lastSeen[producerId])
+                failures.add("item " + item + " of producer " + producerId + " is out of order");
+            lastSeen[producerId] = item;
+            received++;
+        }
+        done.await();
+
+        assertTrue(failures.isEmpty(), "no failures: " + failures);
+        assertEquals(producers * itemsPerProducer, received, "all items received");
+        assertTrue(buffer.isEmpty(), "all items consumed");
+    }
+
+    @Test
+    public void testPollReturnsPeekedItem() {
+        var buffer = new StripedRingBuffer<Long>(1, 16, natural);
+        buffer.offer(5L);
+        assertEquals(5L, buffer.peek(), "peek item");
+        buffer.offer(7L);
+        assertEquals(5L, buffer.poll(), "poll the same item");
+        assertEquals(7L, buffer.poll(), "poll next item");
+    }
+
+}
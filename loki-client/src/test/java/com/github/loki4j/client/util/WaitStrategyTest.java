@@ -0,0 +1,63 @@
+package com.github.loki4j.client.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class WaitStrategyTest {
+
+    @Test
+    public void testOf() {
+        assertTrue(WaitStrategy.of("park") instanceof WaitStrategy.ParkWaitStrategy, "park");
+        assertTrue(WaitStrategy.of("block") instanceof WaitStrategy.BlockingWaitStrategy, "block");
+        assertTrue(WaitStrategy.of("yield") instanceof WaitStrategy.YieldingWaitStrategy, "yield");
+        assertTrue(WaitStrategy.of("spin") instanceof WaitStrategy.BusySpinWaitStrategy, "spin");
+        assertThrows(IllegalArgumentException.class, () -> WaitStrategy.of("sleep"), "unknown");
+        assertThrows(IllegalArgumentException.class, () -> WaitStrategy.of(null), "not specified");
+    }
+
+    @Test
+    public void testIsKnown() {
+        for (var name : WaitStrategy.NAMES)
+            assertTrue(WaitStrategy.isKnown(name), name);
+        assertFalse(WaitStrategy.isKnown("sleep"), "unknown");
+        assertFalse(WaitStrategy.isKnown(null), "not specified");
+    }
+
+    @Test
+    public void testBlockingWakesUpOnSignal() throws InterruptedException {
+        var strategy = new WaitStrategy.BlockingWaitStrategy();
+        var ready = new AtomicBoolean(false);
+
+        var producer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            ready.set(true);
+            strategy.signal();
+        });
+        producer.start();
+
+        var startedNs = System.nanoTime();
+        strategy.await(ready::get, TimeUnit.SECONDS.toNanos(10));
+        var elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNs);
+        producer.join();
+
+        assertTrue(ready.get(), "condition is met");
+        assertTrue(elapsedMs < 5_000, "woken up by signal, not by timeout: " + elapsedMs);
+    }
+
+    @Test
+    public void testBlockingReturnsOnTimeout() throws InterruptedException {
+        var strategy = new WaitStrategy.BlockingWaitStrategy();
+        strategy.await(() -> false, TimeUnit.MILLISECONDS.toNanos(10));
+        // no signal without waiters
+        strategy.signal();
+    }
+
+}
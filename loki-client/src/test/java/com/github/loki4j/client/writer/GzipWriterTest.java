@@ -0,0 +1,88 @@
+package com.github.loki4j.client.writer;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import com.github.loki4j.client.batch.LogRecord;
+import com.github.loki4j.client.batch.LogRecordBatch;
+import com.github.loki4j.client.util.ByteBufferFactory;
+import com.github.loki4j.client.util.OrderedMap;
+
+public class GzipWriterTest {
+
+    private Map<String, String> stream1 = OrderedMap.of("level", "INFO", "app", "my-app");
+    private Map<String, String> stream2 = OrderedMap.of("level", "DEBUG", "app", "my-app");
+    private Map<String, String> emptyMetadata = Map.of();
+    private LogRecordBatch batch = new LogRecordBatch(new LogRecord[] {
+        LogRecord.create(3000, 1, stream2, "l=DEBUG c=test.TestApp t=thread-2 | Test message 2", emptyMetadata),
+        LogRecord.create(1000, 2, stream1, "l=INFO c=test.TestApp t=thread-1 | Test message 1", emptyMetadata),
+        LogRecord.create(2000, 3, stream1, "l=INFO c=test.TestApp t=thread-3 | Test message 4", emptyMetadata),
+        LogRecord.create(5000, 4, stream1, "l=INFO c=test.TestApp t=thread-1 | Test message 3", emptyMetadata),
+    });
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        try (var in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] expectedJson(LogRecordBatch batch) {
+        var json = new JsonWriter(1000);
+        json.serializeBatch(batch);
+        return json.toByteArray();
+    }
+
+    @Test
+    public void testOnHeapWriter() throws IOException {
+        var writer = new GzipWriter(new JsonWriter(1000), 1000, -1, new ByteBufferFactory(false));
+        assertEquals(0, writer.size(), "initial size is 0");
+        writer.serializeBatch(batch);
+        var size = writer.size();
+
+        var actual = writer.toByteArray();
+        assertEquals(size, actual.length, "size is correct");
+        assertEquals(0, writer.size(), "size reset");
+        assertArrayEquals(expectedJson(batch), gunzip(actual), "un-compressed messages match");
+    }
+
+    @Test
+    public void testOffHeapWriter() throws IOException {
+        var writer = new GzipWriter(new JsonWriter(1000), 1000, 1, new ByteBufferFactory(true));
+        writer.serializeBatch(batch);
+        var size = writer.size();
+
+        var buffer = ByteBuffer.allocate(1000);
+        writer.toByteBuffer(buffer);
+        assertEquals(size, buffer.remaining(), "size is correct");
+        var actual = new byte[buffer.remaining()];
+        buffer.get(actual);
+        assertArrayEquals(expectedJson(batch), gunzip(actual), "un-compressed messages match");
+    }
+
+    @Test
+    public void testWriterIsReused() throws IOException {
+        // capacity is less than encoded batch, so buffers grow on the first run
+        var writer = new GzipWriter(new JsonWriter(10), 10, 9, new ByteBufferFactory(false));
+        for (int i = 0; i < 3; i++) {
+            writer.serializeBatch(batch);
+            assertArrayEquals(expectedJson(batch), gunzip(writer.toByteArray()), "un-compressed messages match");
+        }
+    }
+
+    @Test
+    public void testCloseReleasesDeflater() {
+        var writer = new GzipWriter(new JsonWriter(1000), 1000, 1, new ByteBufferFactory(false));
+        writer.serializeBatch(batch);
+        writer.toByteArray();
+        writer.close();
+        assertThrows(RuntimeException.class, () -> writer.serializeBatch(batch), "deflater is ended");
+    }
+
+}
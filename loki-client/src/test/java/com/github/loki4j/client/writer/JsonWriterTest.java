@@ -5,10 +5,14 @@ import org.junit.jupiter.api.Test;
 import static com.github.loki4j.client.batch.LogRecord.create;
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Map;
 
 import com.github.loki4j.client.batch.LogRecord;
 import com.github.loki4j.client.batch.LogRecordBatch;
+import com.github.loki4j.client.util.ByteBufferFactory;
 import com.github.loki4j.client.util.OrderedMap;
 
 public class JsonWriterTest {
@@ -43,6 +47,70 @@ public class JsonWriterTest {
         var actualJson = new String(writer.toByteArray());
         assertEquals(expectedJson, actualJson, "encoded json");
     }
+
+    @Test
+    public void testWriteBatchInPlace() {
+        var writer = new JsonWriter(1000);
+        var heapBuffers = new ByteBufferFactory(false);
+        var expected = expectedJson.getBytes(StandardCharsets.UTF_8);
+
+        var heap = ByteBuffer.allocate(1000);
+        var result = writer.serializeBatchTo(batch, heap, heapBuffers);
+        assertSame(heap, result, "written into the given buffer");
+        assertEquals(expected.length, result.remaining(), "size is correct");
+        assertArrayEquals(expected, Arrays.copyOf(heap.array(), expected.length), "written in place");
+
+        var small = ByteBuffer.allocate(10);
+        result = writer.serializeBatchTo(batch, small, heapBuffers);
+        assertNotSame(small, result, "buffer is enlarged");
+        assertEquals(expectedJson, StandardCharsets.UTF_8.decode(result).toString(), "encoded json");
+
+        result = writer.serializeBatchTo(batch, ByteBuffer.allocateDirect(1000), new ByteBufferFactory(true));
+        assertEquals(expectedJson, StandardCharsets.UTF_8.decode(result).toString(), "copied into direct buffer");
+
+        assertEquals(0, writer.size(), "own buffer is empty");
+        writer.serializeBatch(batch);
+        assertEquals(expectedJson, new String(writer.toByteArray()), "own buffer still works");
+    }
+
+    @Test
+    public void testWriteBatchWithCachedLabels() {
+        var writer = new JsonWriter(1000);
+        writer.serializeBatch(batch);
+        writer.reset();
+
+        // labels are taken from cache on the second run
+        writer.serializeBatch(batch);
+        var actualJson = new String(writer.toByteArray());
+        assertEquals(expectedJson, actualJson, "encoded json");
+    }
+
+    @Test
+    public void testCachedLabelsMatchUncached() {
+        var specialBatch = new LogRecordBatch(new LogRecord[] {
+            create(100L, 0, OrderedMap.of("app", "спец \"app\"", "path", "C:\\logs\n"), "message 1", emptyMetadata),
+            create(200L, 0, OrderedMap.of("app", "🏁"), "message 2", emptyMetadata),
+        });
+        var uncached = new JsonWriter(1000);
+        uncached.serializeBatch(specialBatch);
+        var expected = uncached.toByteArray();
+
+        var writer = new JsonWriter(1000);
+        writer.serializeBatch(specialBatch);
+        writer.reset();
+        writer.serializeBatch(specialBatch);
+        assertArrayEquals(expected, writer.toByteArray(), "cache hit");
+        writer.reset();
+
+        // overflow the cache, so it's truncated
+        for (int i = 0; i <= 1000; i++) {
+            writer.serializeBatch(new LogRecordBatch(new LogRecord[] {
+                create(100L, 0, Map.of("app", "app" + i), "message", emptyMetadata) }));
+            writer.reset();
+        }
+        writer.serializeBatch(specialBatch);
+        assertArrayEquals(expected, writer.toByteArray(), "cache miss after truncation");
+    }
     
     @Test
     public void testWriteRecord() {
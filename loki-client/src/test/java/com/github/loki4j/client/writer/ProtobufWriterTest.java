@@ -93,6 +93,48 @@ public class ProtobufWriterTest {
         assertEquals(expectedPushRequest, PushRequest.parseFrom(actUncomp), "deserialized");
     }
 
+    @Test
+    public void testCachedLabelsMatchUncached() throws IOException {
+        var specialBatch = new LogRecordBatch(new LogRecord[] {
+            LogRecord.create(1000, 1, OrderedMap.of("app", "спец \"app\"", "path", "C:\\logs"), "message 1", emptyMetadata),
+            LogRecord.create(2000, 2, OrderedMap.of("app", "🏁"), "message 2", emptyMetadata),
+        });
+        // reference serialization by the protobuf library, no labels are cached there
+        var expected = PushRequest.newBuilder()
+            .addStreams(StreamAdapter.newBuilder()
+                .setLabels("{app=\"спец \\\"app\\\"\",path=\"C:\\logs\"}")
+                .addEntries(EntryAdapter.newBuilder()
+                    .setTimestamp(Timestamp.newBuilder().setSeconds(1).setNanos(1))
+                    .setLine("message 1")
+                )
+            )
+            .addStreams(StreamAdapter.newBuilder()
+                .setLabels("{app=\"🏁\"}")
+                .addEntries(EntryAdapter.newBuilder()
+                    .setTimestamp(Timestamp.newBuilder().setSeconds(2).setNanos(2))
+                    .setLine("message 2")
+                )
+            )
+            .build();
+        var expComp = Snappy.compress(expected.toByteArray());
+
+        var writer = new ProtobufWriter(1000, new ByteBufferFactory(false));
+        writer.serializeBatch(specialBatch);
+        assertArrayEquals(expComp, writer.toByteArray(), "cache miss");
+
+        writer.serializeBatch(specialBatch);
+        assertArrayEquals(expComp, writer.toByteArray(), "cache hit");
+
+        // overflow the cache, so it's truncated
+        for (int i = 0; i <= 1000; i++) {
+            writer.serializeBatch(new LogRecordBatch(new LogRecord[] {
+                LogRecord.create(1000, 0, Map.of("app", "app" + i), "message", emptyMetadata) }));
+            writer.toByteArray();
+        }
+        writer.serializeBatch(specialBatch);
+        assertArrayEquals(expComp, writer.toByteArray(), "cache miss after truncation");
+    }
+
     public void testStructuredMetadata() throws IOException {
         var metadata1 = OrderedMap.of("cluster", "clusterA", "traceId", "A00001");
         var metadata2 = OrderedMap.of("cluster", "clusterB", "traceId", "B56762");
@@ -135,5 +177,31 @@ public class ProtobufWriterTest {
         assertArrayEquals(expUncomp, actUncomp, "un-compressed messages match");
         assertEquals(expectedMetaPushRequest, PushRequest.parseFrom(actUncomp), "deserialized");
     }
-    
+
+    @Test
+    public void testBatchLargerThanChunk() throws IOException {
+        var records = new LogRecord[3000];
+        var expectedStream = StreamAdapter.newBuilder().setLabels("{level=\"INFO\",app=\"my-app\"}");
+        for (int i = 0; i < records.length; i++) {
+            var line = "l=INFO c=test.TestApp t=thread-1 | Test message " + i;
+            records[i] = LogRecord.create(1000 + i, i, stream1, line, emptyMetadata);
+            expectedStream.addEntries(EntryAdapter.newBuilder()
+                .setTimestamp(Timestamp.newBuilder().setSeconds((1000 + i) / 1000).setNanos((1000 + i) % 1000 * 1_000_000 + i))
+                .setLine(line));
+        }
+        var expectedLargePushRequest = PushRequest.newBuilder().addStreams(expectedStream).build();
+        var expUncomp = expectedLargePushRequest.toByteArray();
+        assertTrue(expUncomp.length > 64 * 1024, "message spans several chunks");
+
+        for (var direct : new boolean[] { false, true }) {
+            var writer = new ProtobufWriter(expUncomp.length, new ByteBufferFactory(direct));
+            writer.serializeBatch(new LogRecordBatch(records));
+            var actComp = writer.toByteArray();
+
+            var actUncomp = Snappy.uncompress(actComp);
+            assertArrayEquals(expUncomp, actUncomp, "un-compressed messages match");
+            assertEquals(expectedLargePushRequest, PushRequest.parseFrom(actUncomp), "deserialized");
+        }
+    }
+
 }
@@ -5,12 +5,17 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
+import com.github.loki4j.client.batch.LabelStream;
 import com.github.loki4j.client.batch.LogRecord;
+import com.github.loki4j.client.batch.LogRecordPool;
 import com.github.loki4j.client.pipeline.AsyncBufferPipeline;
 import com.github.loki4j.client.pipeline.PipelineConfig;
+import com.github.loki4j.client.util.StringUtils;
 import com.github.loki4j.logback.extractor.Extractor;
+import com.github.loki4j.logback.extractor.LabelStreamCache;
 import com.github.loki4j.logback.extractor.MarkerExtractor;
 import com.github.loki4j.logback.extractor.MetadataExtractor;
 import com.github.loki4j.logback.extractor.PatternsExtractor;
@@ -20,6 +25,7 @@ import com.github.loki4j.slf4j.marker.StructuredMetadataMarker;
 
 import ch.qos.logback.classic.PatternLayout;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
 import ch.qos.logback.core.CoreConstants;
 import ch.qos.logback.core.Layout;
 import ch.qos.logback.core.joran.spi.DefaultClass;
@@ -39,6 +45,12 @@ public class Loki4jAppender extends PipelineConfigAppenderBase {
     private static final String DEFAULT_SMD_PATTERN = "level=%level\nthread=%thread\nlogger=%logger\n*=%%mdc\n*=%%kvp";
     private static final String DEFAULT_MSG_PATTERN = "[%thread] %logger{20} - %msg%n";
 
+    /**
+     * Max number of nested causes counted when estimating the size of a deferred record,
+     * as causes could be cyclic
+     */
+    private static final int MAX_ESTIMATED_CAUSES = 16;
+
     public static final String DISABLE_SMD_PATTERN = "off";
 
     /**
@@ -71,6 +83,16 @@ public class Loki4jAppender extends PipelineConfigAppenderBase {
      */
     private AsyncBufferPipeline pipeline;
 
+    /**
+     * A pool of reusable log records, null if pooling is disabled.
+     */
+    private LogRecordPool recordPool;
+
+    /**
+     * If true, events are formatted on the encoder thread rather than on append.
+     */
+    private boolean deferredFormatting;
+
     /**
      * A counter for events dropped due to backpressure.
      */
@@ -81,6 +103,8 @@ public class Loki4jAppender extends PipelineConfigAppenderBase {
 
     private Map<String, String> staticLabelStream = null;
 
+    private LabelStreamCache labelStreamCache = null;
+
     @Override
     public void start() {
         // init internal logging
@@ -99,6 +123,21 @@ public class Loki4jAppender extends PipelineConfigAppenderBase {
                 context.getProperty(CoreConstants.HOSTNAME_KEY)
             );
         labelValueExtractors = initExtractors(labelsPattern, LabelMarker.class);
+        staticLabelStream = null;
+        if (labelValueExtractors.size() == 1 && ((PatternsExtractor) labelValueExtractors.get(0)).isConstant()) {
+            // labels don't depend on the event, so they could be computed only once
+            var kvs = new LinkedHashMap<String, String>();
+            labelValueExtractors.get(0).extract(null, kvs);
+            staticLabelStream = LabelStream.of(kvs);
+        }
+        labelStreamCache = null;
+        if (isCachedLabels() && staticLabelStream == null) {
+            labelStreamCache = labelValueExtractors.size() == 1
+                ? LabelStreamCache.of(labelValueExtractors.get(0))
+                : null;
+            if (labelStreamCache == null)
+                addWarn("Setting cachedLabels=true has no effect, as labels depend on event attributes other than level and logger");
+        }
 
         // init structured metadata KV extraction
         if (structuredMetadataPattern == null)
@@ -115,6 +154,11 @@ public class Loki4jAppender extends PipelineConfigAppenderBase {
         messageLayout.setContext(context);
         messageLayout.start();
 
+        // init log record pool
+        var poolCapacity = recordPoolCapacity();
+        recordPool = poolCapacity > 0 ? new LogRecordPool(poolCapacity) : null;
+        deferredFormatting = isDeferredFormatting();
+
         // init pipeline
         PipelineConfig pipelineConf = buildPipelineConfig();
         pipeline = new AsyncBufferPipeline(pipelineConf);
@@ -142,46 +186,127 @@ public class Loki4jAppender extends PipelineConfigAppenderBase {
 
     @Override
     protected void append(ILoggingEvent event) {
-        var appended = pipeline.append(() -> eventToLogRecord(event));
+        var appended = pipeline.append(
+            deferredFormatting ? () -> deferredLogRecord(event) : () -> eventToLogRecord(event),
+            event.getLevel().levelStr);
         if (!appended)
             reportDroppedEvents();
     }
 
     public LogRecord eventToLogRecord(ILoggingEvent event) {
+        if (recordPool != null) {
+            var storage = recordPool.borrow();
+            return LogRecord.pooled(
+                storage,
+                event.getTimeStamp(),
+                event.getNanoseconds() % 1_000_000, // take only nanos, not ms
+                extractStream(event, storage::stream),
+                extractMessage(event),
+                extractMetadata(event, storage::metadata));
+        }
         return LogRecord.create(
             event.getTimeStamp(),
             event.getNanoseconds() % 1_000_000, // take only nanos, not ms
-            extractStream(event),
+            extractStream(event, LinkedHashMap::new),
             extractMessage(event),
-            extractMetadata(event));
+            extractMetadata(event, LinkedHashMap::new));
     }
 
-    private Map<String, String> extractStream(ILoggingEvent e) {
-        if (isStaticLabels()) {
-            if (staticLabelStream == null) {
-                if (labelValueExtractors.size() == 1) {
-                    var kvs = new LinkedHashMap<String, String>();
-                    labelValueExtractors.get(0).extract(e, kvs);
-                    staticLabelStream = kvs;
-                } else {
-                    throw new IllegalStateException("No bulk patterns allowed for static label configuration");
-                }
+    /**
+     * Captures an immutable snapshot of the event, so it could be formatted later on the encoder thread.
+     * Caller data is not captured, as it's too expensive to be extracted on append
+     */
+    private LogRecord deferredLogRecord(ILoggingEvent event) {
+        event.prepareForDeferredProcessing();
+        var message = event.getFormattedMessage();
+        var timestampMs = event.getTimeStamp();
+        var nanosInMs = event.getNanoseconds() % 1_000_000; // take only nanos, not ms
+        return LogRecord.deferred(
+            timestampMs,
+            nanosInMs,
+            estimateDeferredSizeBytes(event, message),
+            () -> LogRecord.create(
+                timestampMs,
+                nanosInMs,
+                extractStream(event, LinkedHashMap::new),
+                extractMessage(event),
+                extractMetadata(event, LinkedHashMap::new)));
+    }
+
+    /**
+     * Estimates the size of a record before it's formatted: UTF-8 size of the message, plus sizes
+     * of the stack trace, thread and logger names, and MDC values the way the default layout and
+     * metadata patterns render them. Names are mostly ASCII, so they are counted in chars
+     */
+    static int estimateDeferredSizeBytes(ILoggingEvent event, String message) {
+        long size = message == null ? 0 : StringUtils.utf8Length(message);
+        size += length(event.getThreadName()) + length(event.getLoggerName());
+        var mdc = event.getMDCPropertyMap();
+        if (mdc != null) {
+            for (var kv : mdc.entrySet())
+                size += length(kv.getKey()) + length(kv.getValue());
+        }
+        var throwable = event.getThrowableProxy();
+        for (int depth = 0; throwable != null && depth < MAX_ESTIMATED_CAUSES; depth++) {
+            size += estimateThrowableSizeBytes(throwable);
+            var suppressed = throwable.getSuppressed();
+            if (suppressed != null) {
+                for (var s : suppressed)
+                    size += estimateThrowableSizeBytes(s);
             }
+            throwable = throwable.getCause();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    /**
+     * Estimates the size of the "class: message" line and "\tat class.method(file:line)" frame lines
+     * of the throwable, without its causes
+     */
+    private static long estimateThrowableSizeBytes(IThrowableProxy throwable) {
+        long size = length(throwable.getClassName()) + length(throwable.getMessage()) + 4;
+        var frames = throwable.getStackTraceElementProxyArray();
+        if (frames == null)
+            return size;
+        for (var frame : frames) {
+            var ste = frame.getStackTraceElement();
+            size += length(ste.getClassName()) + length(ste.getMethodName()) + length(ste.getFileName()) + 16;
+        }
+        return size;
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+
+    private Map<String, String> extractStream(ILoggingEvent e, Supplier<Map<String, String>> storage) {
+        if (staticLabelStream != null)
+            return staticLabelStream;
+
+        if (labelStreamCache != null)
+            return labelStreamCache.get(e);
+
+        if (isStaticLabels()) {
+            if (labelValueExtractors.size() != 1)
+                throw new IllegalStateException("No bulk patterns allowed for static label configuration");
+            var kvs = new LinkedHashMap<String, String>();
+            labelValueExtractors.get(0).extract(e, kvs);
+            staticLabelStream = LabelStream.of(kvs);
             return staticLabelStream;
         }
 
-        var kvs = new LinkedHashMap<String, String>();
+        var kvs = storage.get();
         for (var extractor : labelValueExtractors) {
             extractor.extract(e, kvs);
         }
         return kvs;
     }
 
-    private Map<String, String> extractMetadata(ILoggingEvent e) {
+    private Map<String, String> extractMetadata(ILoggingEvent e, Supplier<Map<String, String>> storage) {
         if (metadataValueExtractors.isEmpty())
             return Map.of();
 
-        var kvs = new LinkedHashMap<String, String>();
+        var kvs = storage.get();
         for (var extractor : metadataValueExtractors) {
             extractor.extract(e, kvs);
         }
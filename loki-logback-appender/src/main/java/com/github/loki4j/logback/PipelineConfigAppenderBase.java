@@ -3,8 +3,10 @@ package com.github.loki4j.logback;
 import java.util.Optional;
 
 import com.github.loki4j.client.http.HttpConfig;
+import com.github.loki4j.client.pipeline.OverflowPolicy;
 import com.github.loki4j.client.pipeline.PipelineConfig;
 import com.github.loki4j.client.pipeline.PipelineConfig.WriterFactory;
+import com.github.loki4j.client.util.WaitStrategy;
 
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.UnsynchronizedAppenderBase;
@@ -37,6 +39,29 @@ public abstract class PipelineConfigAppenderBase extends UnsynchronizedAppenderB
         return batch.staticLabels;
     }
 
+    protected boolean isCachedLabels() {
+        return batch.cachedLabels && !batch.staticLabels;
+    }
+
+    /**
+     * Returns the number of record storages to keep in the pool, or 0 if pooling is disabled.
+     * Each encoder holds up to two batches of records (being accumulated and being encoded),
+     * plus records waiting in the buffer
+     */
+    protected int recordPoolCapacity() {
+        if (!batch.pooledRecords || isDeferredFormatting())
+            return 0;
+        return batch.maxItems * 2 * Math.max(1, batch.encoderThreads) + Math.max(0, batch.bufferMaxItems);
+    }
+
+    /**
+     * Returns true if events should be formatted on the encoder thread.
+     * It's only possible with a single encoder and without the write-ahead log
+     */
+    protected boolean isDeferredFormatting() {
+        return batch.deferredFormatting && batch.encoderThreads <= 1 && batch.walDir == null;
+    }
+
     protected PipelineConfig buildPipelineConfig() {
         addInfo(String.format("Starting with " +
             "batchMaxItems=%s, batchMaxBytes=%s, batchTimeout=%s, sendQueueMaxBytes=%s...",
@@ -48,11 +73,85 @@ public abstract class PipelineConfigAppenderBase extends UnsynchronizedAppenderB
             effectiveSendQueueMaxBytes = batch.maxBytes * 5;
         }
 
+        var effectiveSpillDir = batch.spillDir;
+        if (effectiveSpillDir != null && batch.walDir != null) {
+            addWarn("Setting spillDir=" + effectiveSpillDir + " has no effect with the write-ahead log enabled, as all accepted records are already on disk");
+            effectiveSpillDir = null;
+        }
+
+        if (effectiveSpillDir != null && batch.spillSegmentBytes < batch.maxBytes * 2)
+            addWarn("Configured value spillSegmentBytes=" + batch.spillSegmentBytes + " is less than `batchMaxBytes * 2`, larger batches are not spilled to disk");
+
+        if (batch.encoderThreads > 1 && batch.staticLabels)
+            addWarn("Setting encoderThreads=" + batch.encoderThreads + " has no effect for static labels, as all records belong to one stream");
+
+        if (batch.cachedLabels && batch.staticLabels)
+            addWarn("Setting cachedLabels=true has no effect with staticLabels=true, as labels are calculated only once");
+
+        if (batch.bufferStripes > 1 && batch.bufferMaxItems <= 0)
+            addWarn("Setting bufferStripes=" + batch.bufferStripes + " has no effect for unbounded buffer. Set `bufferMaxItems` to enable it");
+
+        var hasPriorityLevels = batch.priorityLevels != null && !batch.priorityLevels.isBlank();
+        if (hasPriorityLevels && batch.bufferMaxItems > 0 && batch.priorityReservedItems > batch.bufferMaxItems / 2)
+            addWarn("Configured value priorityReservedItems=" + batch.priorityReservedItems + " is greater than `bufferMaxItems / 2`, only a half of the buffer is reserved");
+
+        if (hasPriorityLevels && batch.priorityReservedBytes > effectiveSendQueueMaxBytes / 2)
+            addWarn("Configured value priorityReservedBytes=" + batch.priorityReservedBytes + " is greater than `sendQueueMaxBytes / 2`, only a half of the send queue is reserved");
+
+        if (batch.deferredFormatting && batch.encoderThreads > 1)
+            addWarn("Setting deferredFormatting=true has no effect with encoderThreads=" + batch.encoderThreads + ", as events are routed to encoders by labels");
+
+        if (batch.deferredFormatting && batch.walDir != null)
+            addWarn("Setting deferredFormatting=true has no effect with the write-ahead log enabled, as events are written there formatted");
+
+        if (batch.pooledRecords && isDeferredFormatting())
+            addWarn("Setting pooledRecords=true has no effect with deferredFormatting=true, as events are formatted on the encoder thread");
+
+        var effectiveWaitStrategy = batch.waitStrategy;
+        if (!WaitStrategy.isKnown(effectiveWaitStrategy)) {
+            addError("Unknown waitStrategy=" + effectiveWaitStrategy + ", falling back to `park`. Supported values: " + WaitStrategy.NAMES);
+            effectiveWaitStrategy = "park";
+        }
+
+        var effectiveWalFsync = batch.walFsync;
+        if (!PipelineConfig.isValidWalFsync(effectiveWalFsync)) {
+            addError("Unknown walFsync=" + effectiveWalFsync + ", falling back to `batch`. Supported values: batch, interval, none");
+            effectiveWalFsync = "batch";
+        }
+
+        var effectiveOverflowPolicy = batch.overflowPolicy;
+        if (!OverflowPolicy.isKnown(effectiveOverflowPolicy)) {
+            addError("Unknown overflowPolicy=" + effectiveOverflowPolicy + ", falling back to `drop-newest`. Supported values: " + OverflowPolicy.NAMES);
+            effectiveOverflowPolicy = "drop-newest";
+        }
+
+        var effectiveOverflowSampleThreshold = batch.overflowSampleThreshold;
+        if (!PipelineConfig.isValidOverflowSampleThreshold(effectiveOverflowSampleThreshold)) {
+            addError("Configured value overflowSampleThreshold=" + effectiveOverflowSampleThreshold + " is out of range [0, 100), falling back to 50");
+            effectiveOverflowSampleThreshold = 50;
+        }
+
         var effectiveWriter = http.writer;
         if (effectiveWriter == null) {
             effectiveWriter = http.useProtobufApi ? PipelineConfig.protobuf : PipelineConfig.json;
         }
 
+        var effectiveCompression = http.compression;
+        if (!PipelineConfig.isValidCompression(effectiveCompression)) {
+            addError("Unknown compression=" + effectiveCompression + ", falling back to `none`. Supported values: none, gzip");
+            effectiveCompression = "none";
+        }
+        if (http.useProtobufApi && !"none".equals(effectiveCompression)) {
+            addWarn("Setting compression=" + effectiveCompression + " has no effect for Protobuf API, as batches are already compressed with Snappy");
+            effectiveCompression = "none";
+        }
+
+        var effectiveCompressionLevel = http.compressionLevel;
+        if (!PipelineConfig.isValidCompressionLevel(effectiveCompressionLevel)) {
+            addError("Configured value compressionLevel=" + effectiveCompressionLevel + " is out of range [1, 9] or -1, falling back to 1");
+            effectiveCompressionLevel = 1;
+        }
+
         var effectiveSender = http.sender;
         if (effectiveSender == null) {
             effectiveSender = new JavaHttpSender();
@@ -63,17 +162,42 @@ public abstract class PipelineConfigAppenderBase extends UnsynchronizedAppenderB
                 .setBatchMaxItems(batch.maxItems)
                 .setBatchMaxBytes(batch.maxBytes)
                 .setBatchTimeoutMs(batch.timeoutMs)
+                .setBatchTargetLatencyMs(batch.targetLatencyMs)
                 .setStaticLabels(batch.staticLabels)
                 .setSendQueueMaxBytes(effectiveSendQueueMaxBytes)
+                .setSpillDir(effectiveSpillDir)
+                .setSpillMaxBytes(batch.spillMaxBytes)
+                .setSpillSegmentBytes(batch.spillSegmentBytes)
+                .setWalDir(batch.walDir)
+                .setWalMaxBytes(batch.walMaxBytes)
+                .setWalSegmentBytes(batch.walSegmentBytes)
+                .setWalFsync(effectiveWalFsync)
+                .setWalFsyncIntervalMs(batch.walFsyncIntervalMs)
+                .setBufferMaxItems(batch.bufferMaxItems)
+                .setBufferMaxBytes(batch.bufferMaxBytes)
+                .setBufferStripes(batch.bufferStripes)
+                .setPriorityLevels(batch.priorityLevels)
+                .setPriorityReservedItems(batch.priorityReservedItems)
+                .setPriorityReservedBytes(batch.priorityReservedBytes)
+                .setOverflowPolicy(OverflowPolicy.of(effectiveOverflowPolicy))
+                .setOverflowBlockTimeoutMs(batch.overflowBlockTimeoutMs)
+                .setOverflowSampleThreshold(effectiveOverflowSampleThreshold)
+                .setEncoderThreads(batch.encoderThreads)
                 .setInternalQueuesCheckTimeoutMs(batch.internalQueuesCheckTimeoutMs)
+                .setWaitStrategy(effectiveWaitStrategy)
                 .setUseDirectBuffers(batch.useDirectBuffers)
                 .setDrainOnStop(batch.drainOnStop)
                 .setMaxRetries(http.maxRetries)
+                .setMaxConcurrentSends(http.maxConcurrentSends)
+                .setAsyncSends(http.asyncSends)
+                .setUseVirtualThreads(http.useVirtualThreads)
                 .setMinRetryBackoffMs(http.minRetryBackoffMs)
                 .setMaxRetryBackoffMs(http.maxRetryBackoffMs)
                 .setMaxRetryJitterMs(http.maxRetryJitterMs)
                 .setDropRateLimitedBatches(http.dropRateLimitedBatches)
                 .setMetricsEnabled(metricsEnabled)
+                .setCompression(effectiveCompression)
+                .setCompressionLevel(effectiveCompressionLevel)
                 .setWriter(effectiveWriter)
                 .setHttpConfig(effectiveSender.getConfig().fill(this::fillHttpConfig))
                 .setHttpClientFactory(effectiveSender.getHttpClientFactory())
@@ -87,6 +211,7 @@ public abstract class PipelineConfigAppenderBase extends UnsynchronizedAppenderB
             .setTenantId(http.tenantId)
             .setConnectionTimeoutMs(http.connectionTimeoutMs)
             .setRequestTimeoutMs(http.requestTimeoutMs)
+            .setUseVirtualThreads(http.useVirtualThreads)
             .setUsername(Optional.ofNullable(http.auth).map(a -> a.username))
             .setPassword(Optional.ofNullable(http.auth).map(a -> a.password));
     }
@@ -129,18 +254,156 @@ public abstract class PipelineConfigAppenderBase extends UnsynchronizedAppenderB
          */
         long timeoutMs = 60 * 1000;
 
+        /**
+         * Target time in milliseconds between a record is added to a batch and the batch is sent to Loki.
+         * If set, the time a batch waits for more records is reduced by the average send latency.
+         * The wait time never exceeds timeoutMs and never drops below a quarter of the target. Zero disables adaptive batching.
+         */
+        long targetLatencyMs = 0;
+
         /**
          * Max number of bytes to keep in the send queue.
-         * When the queue is full, incoming log events are dropped.
+         * When the queue is full, incoming log events are dropped, unless spilling to disk is enabled.
          */
         long sendQueueMaxBytes = maxBytes * 10;
 
+        /**
+         * Directory for spilling the send queue to disk. If not set, spilling is disabled.
+         * If set, batches that don't fit into the send queue are written to disk and sent
+         * once Loki recovers, sending is retried until it succeeds, and unsent batches
+         * are kept on disk until the next start. Queued batches are copied to disk as well,
+         * so they are sent after the next start in their order.
+         */
+        String spillDir = null;
+
+        /**
+         * Max number of bytes to keep on disk when spilling the send queue.
+         * When the limit is reached, incoming log events are dropped.
+         */
+        long spillMaxBytes = 1024L * 1024 * 1024;
+
+        /**
+         * Size of a single segment file for spilling the send queue.
+         * Must be larger than the largest batch.
+         */
+        int spillSegmentBytes = 16 * 1024 * 1024;
+
+        /**
+         * Directory for the write-ahead log. If not set, the log is disabled.
+         * If set, accepted records are written to disk and removed once Loki confirms them,
+         * so the records that are not sent before the JVM is killed are sent after the next start.
+         * Sending is retried until it succeeds.
+         * Records are written on the logging thread under a shared lock, so each event costs
+         * a serialization and a lock handoff, which is noticeable with many logging threads.
+         */
+        String walDir = null;
+
+        /**
+         * Max number of bytes to keep in the write-ahead log.
+         * When the limit is reached, incoming log events are dropped.
+         */
+        long walMaxBytes = 1024L * 1024 * 1024;
+
+        /**
+         * Size of a single segment file of the write-ahead log.
+         */
+        int walSegmentBytes = 16 * 1024 * 1024;
+
+        /**
+         * Defines when the write-ahead log is forced to disk: "batch" - before each batch is sent,
+         * "interval" - every walFsyncIntervalMs, "none" - only on shutdown.
+         */
+        String walFsync = "batch";
+
+        /**
+         * Interval between forcing the write-ahead log to disk if walFsync is "interval".
+         */
+        long walFsyncIntervalMs = 1000;
+
+        /**
+         * Max number of log records to keep in the buffer before they are batched.
+         * If greater than 0, a pre-sized lock-free ring buffer is used, and incoming
+         * log events are dropped when it is full.
+         * Otherwise, the buffer is unbounded.
+         */
+        int bufferMaxItems = 0;
+
+        /**
+         * Max estimated size in bytes of log records kept in the buffer before they are batched.
+         * It's estimated by UTF-8 sizes of messages and metadata, incoming log events are dropped
+         * once it's reached. If 0 or less (default), the size in bytes is not limited.
+         * With deferredFormatting, events are estimated before they are formatted,
+         * so the limit is approximate.
+         */
+        long bufferMaxBytes = 0;
+
+        /**
+         * Number of stripes to split the bounded buffer into (see {@code bufferMaxItems}).
+         * If greater than 1, producer threads are spread across stripes, and the
+         * encoder merges stripes by record timestamp. Max items limit is split between stripes.
+         */
+        int bufferStripes = 1;
+
+        /**
+         * Comma-separated list of log levels that are prioritized under backpressure, e.g., "ERROR,WARN".
+         * Once the pipeline is saturated, events of other levels are dropped first.
+         * If empty, all events are treated equally.
+         */
+        String priorityLevels = "";
+
+        /**
+         * Max number of prioritized events to accept into the buffer after other events
+         * start being dropped (no more than a half of {@code bufferMaxItems}, if it's set).
+         */
+        int priorityReservedItems = 1000;
+
+        /**
+         * Part of the send queue reserved for batches with prioritized events
+         * (no more than a half of {@code sendQueueMaxBytes}).
+         * The same part of {@code bufferMaxBytes} is reserved for prioritized events.
+         */
+        long priorityReservedBytes = maxBytes;
+
+        /**
+         * Defines what happens to new log events when the pipeline is saturated:
+         * "drop-newest" drops new events, "drop-oldest" drops the oldest batches waiting to be sent,
+         * "block" blocks the caller for up to overflowBlockTimeoutMs,
+         * "sample" drops new events randomly once the send queue is filled above overflowSampleThreshold.
+         */
+        String overflowPolicy = "drop-newest";
+
+        /**
+         * Max time in milliseconds to block the caller for if overflowPolicy is "block".
+         */
+        long overflowBlockTimeoutMs = 1000;
+
+        /**
+         * Occupancy of the send queue in percent, starting from which new events are sampled
+         * if overflowPolicy is "sample".
+         */
+        int overflowSampleThreshold = 50;
+
+        /**
+         * Number of threads to use for encoding batches.
+         * Log records are distributed across encoders by stream, each encoder has its own
+         * buffer, batcher and writer, so memory required for encoding grows proportionally.
+         */
+        int encoderThreads = 1;
+
         /**
          * A timeout for Loki4j threads to sleep if encode or send queues are empty.
          * Decreasing this value means lower latency at cost of higher CPU usage.
          */
         long internalQueuesCheckTimeoutMs = 25;
 
+        /**
+         * Defines how Loki4j threads wait if encode or send queues are empty:
+         * "park" sleeps for internalQueuesCheckTimeoutMs between checks,
+         * "block" sleeps until a new record or batch arrives,
+         * "yield" and "spin" keep checking with minimal latency at cost of a busy CPU core.
+         */
+        String waitStrategy = "park";
+
         /**
          * If true, the appender will try to send all the remaining events on shutdown,
          * so the proper shutdown procedure might take longer.
@@ -150,9 +413,27 @@ public abstract class PipelineConfigAppenderBase extends UnsynchronizedAppenderB
 
         /**
          * Use off-heap memory for storing intermediate data.
+         * Batches in JSON format can be serialized directly into the send queue only if its
+         * buffers are on-heap, so with the default value each batch is copied once.
+         * Set to false to skip this copy.
          */
         boolean useDirectBuffers = true;
 
+        /**
+         * If true, key-value storages of log records are borrowed from a pool
+         * and returned there once the records are encoded, so appending an event allocates
+         * less memory. Otherwise, new maps are created for each event.
+         */
+        boolean pooledRecords = false;
+
+        /**
+         * If true, only a snapshot of the event is taken on append, while its message,
+         * labels and structured metadata are rendered later on the encoder thread.
+         * This reduces latency of logging calls, but caller data is not available.
+         * Has no effect with several encoder threads or the write-ahead log.
+         */
+        boolean deferredFormatting = false;
+
         /**
          * If true, labels will be calculated only once for the first log record
          * and then used for all other log records without re-calculation.
@@ -160,6 +441,13 @@ public abstract class PipelineConfigAppenderBase extends UnsynchronizedAppenderB
          */
         boolean staticLabels = false;
 
+        /**
+         * If true, label streams will be cached by the event attributes the labels pattern reads,
+         * i.e., level and logger name, and reused for all other log records with the same attributes.
+         * Only possible if labels pattern depends on nothing but level and logger.
+         */
+        boolean cachedLabels = false;
+
 
         public void setMaxItems(int maxItems) {
             this.maxItems = maxItems;
@@ -170,21 +458,90 @@ public abstract class PipelineConfigAppenderBase extends UnsynchronizedAppenderB
         public void setTimeoutMs(long timeoutMs) {
             this.timeoutMs = timeoutMs;
         }
+        public void setTargetLatencyMs(long targetLatencyMs) {
+            this.targetLatencyMs = targetLatencyMs;
+        }
         public void setSendQueueMaxBytes(long sendQueueMaxBytes) {
             this.sendQueueMaxBytes = sendQueueMaxBytes;
         }
+        public void setSpillDir(String spillDir) {
+            this.spillDir = spillDir;
+        }
+        public void setSpillMaxBytes(long spillMaxBytes) {
+            this.spillMaxBytes = spillMaxBytes;
+        }
+        public void setSpillSegmentBytes(int spillSegmentBytes) {
+            this.spillSegmentBytes = spillSegmentBytes;
+        }
+        public void setWalDir(String walDir) {
+            this.walDir = walDir;
+        }
+        public void setWalMaxBytes(long walMaxBytes) {
+            this.walMaxBytes = walMaxBytes;
+        }
+        public void setWalSegmentBytes(int walSegmentBytes) {
+            this.walSegmentBytes = walSegmentBytes;
+        }
+        public void setWalFsync(String walFsync) {
+            this.walFsync = walFsync;
+        }
+        public void setWalFsyncIntervalMs(long walFsyncIntervalMs) {
+            this.walFsyncIntervalMs = walFsyncIntervalMs;
+        }
+        public void setBufferMaxItems(int bufferMaxItems) {
+            this.bufferMaxItems = bufferMaxItems;
+        }
+        public void setBufferMaxBytes(long bufferMaxBytes) {
+            this.bufferMaxBytes = bufferMaxBytes;
+        }
+        public void setBufferStripes(int bufferStripes) {
+            this.bufferStripes = bufferStripes;
+        }
+        public void setPriorityLevels(String priorityLevels) {
+            this.priorityLevels = priorityLevels;
+        }
+        public void setPriorityReservedItems(int priorityReservedItems) {
+            this.priorityReservedItems = priorityReservedItems;
+        }
+        public void setPriorityReservedBytes(long priorityReservedBytes) {
+            this.priorityReservedBytes = priorityReservedBytes;
+        }
+        public void setOverflowPolicy(String overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+        }
+        public void setOverflowBlockTimeoutMs(long overflowBlockTimeoutMs) {
+            this.overflowBlockTimeoutMs = overflowBlockTimeoutMs;
+        }
+        public void setOverflowSampleThreshold(int overflowSampleThreshold) {
+            this.overflowSampleThreshold = overflowSampleThreshold;
+        }
+        public void setEncoderThreads(int encoderThreads) {
+            this.encoderThreads = encoderThreads;
+        }
         public void setInternalQueuesCheckTimeoutMs(long internalQueuesCheckTimeoutMs) {
             this.internalQueuesCheckTimeoutMs = internalQueuesCheckTimeoutMs;
         }
+        public void setWaitStrategy(String waitStrategy) {
+            this.waitStrategy = waitStrategy;
+        }
         public void setDrainOnStop(boolean drainOnStop) {
             this.drainOnStop = drainOnStop;
         }
         public void setUseDirectBuffers(boolean useDirectBuffers) {
             this.useDirectBuffers = useDirectBuffers;
         }
+        public void setPooledRecords(boolean pooledRecords) {
+            this.pooledRecords = pooledRecords;
+        }
+        public void setDeferredFormatting(boolean deferredFormatting) {
+            this.deferredFormatting = deferredFormatting;
+        }
         public void setStaticLabels(boolean staticLabels) {
             this.staticLabels = staticLabels;
         }
+        public void setCachedLabels(boolean cachedLabels) {
+            this.cachedLabels = cachedLabels;
+        }
     }
 
     public static final class HttpCfg {
@@ -227,6 +584,26 @@ public abstract class PipelineConfigAppenderBase extends UnsynchronizedAppenderB
          */
         int maxRetries = 2;
 
+        /**
+         * Max number of batches that can be sent to Loki concurrently.
+         * Batches sharing a stream are never sent concurrently, so the order of
+         * records within a stream is preserved.
+         */
+        int maxConcurrentSends = 1;
+
+        /**
+         * If true, batches are sent using non-blocking HTTP client API, so a single
+         * sender thread can keep up to {@code maxConcurrentSends} batches in flight.
+         * Otherwise, a separate sender thread is used for each concurrent send.
+         */
+        boolean asyncSends = false;
+
+        /**
+         * If true, sender threads and HTTP client internals run on virtual threads
+         * if the JVM supports them (21+). Otherwise, platform threads are used.
+         */
+        boolean useVirtualThreads = false;
+
         /**
          * Initial backoff delay before the next attempt to re-send a failed batch.
          * Batches are retried with an exponential backoff (e.g. 0.5s, 1s, 2s, 4s, etc.)
@@ -256,6 +633,17 @@ public abstract class PipelineConfigAppenderBase extends UnsynchronizedAppenderB
          */
         boolean useProtobufApi = false;
 
+        /**
+         * Compression of batches sent in JSON format: "none" or "gzip".
+         * Protobuf batches are always compressed with Snappy.
+         */
+        String compression = "none";
+
+        /**
+         * Compression level from 1 (fastest) to 9 (smallest), or -1 for the default level.
+         */
+        int compressionLevel = 1;
+
         /**
          * A writer to use for converting log record batches to format acceptable by
          * Loki.
@@ -285,6 +673,15 @@ public abstract class PipelineConfigAppenderBase extends UnsynchronizedAppenderB
         public void setMaxRetries(int maxRetries) {
             this.maxRetries = maxRetries;
         }
+        public void setMaxConcurrentSends(int maxConcurrentSends) {
+            this.maxConcurrentSends = maxConcurrentSends;
+        }
+        public void setAsyncSends(boolean asyncSends) {
+            this.asyncSends = asyncSends;
+        }
+        public void setUseVirtualThreads(boolean useVirtualThreads) {
+            this.useVirtualThreads = useVirtualThreads;
+        }
         public void setMinRetryBackoffMs(long minRetryBackoffMs) {
             this.minRetryBackoffMs = minRetryBackoffMs;
         }
@@ -300,6 +697,12 @@ public abstract class PipelineConfigAppenderBase extends UnsynchronizedAppenderB
         public void setUseProtobufApi(boolean useProtobufApi) {
             this.useProtobufApi = useProtobufApi;
         }
+        public void setCompression(String compression) {
+            this.compression = compression;
+        }
+        public void setCompressionLevel(int compressionLevel) {
+            this.compressionLevel = compressionLevel;
+        }
 
         @DefaultClass(JavaHttpSender.class)
         public void setSender(HttpSender sender) {
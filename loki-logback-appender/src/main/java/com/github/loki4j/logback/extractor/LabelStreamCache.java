@@ -0,0 +1,79 @@
+package com.github.loki4j.logback.extractor;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.loki4j.client.batch.LabelStream;
+import com.github.loki4j.logback.extractor.PatternsExtractor.PatternKind;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * A bounded cache of label streams for labels patterns that depend on nothing
+ * but event's level and logger name.
+ * Streams are cached by these attributes, so records with the same level and logger
+ * share the same {@link LabelStream} instance without rendering the patterns again.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class LabelStreamCache {
+
+    /**
+     * Max number of label streams to cache per level.
+     * When the limit is reached, the cache for this level is truncated to zero
+     */
+    private static final int MAX_CACHED_STREAMS = 1000;
+
+    private final PatternsExtractor extractor;
+
+    private final boolean byLevel;
+    private final boolean byLogger;
+
+    private final ConcurrentHashMap<Level, ConcurrentHashMap<String, LabelStream>> streams = new ConcurrentHashMap<>();
+
+    private LabelStreamCache(PatternsExtractor extractor) {
+        this.extractor = extractor;
+        this.byLevel = extractor.hasKind(PatternKind.LEVEL);
+        this.byLogger = extractor.hasKind(PatternKind.LOGGER);
+    }
+
+    /**
+     * Creates a cache for label streams produced by the given extractor
+     * @return null if the extractor's patterns depend on anything but level and logger
+     */
+    public static LabelStreamCache of(Extractor extractor) {
+        if (!(extractor instanceof PatternsExtractor))
+            return null;
+        var patternsExtractor = (PatternsExtractor) extractor;
+        if (patternsExtractor.hasKind(PatternKind.MDC) || patternsExtractor.hasKind(PatternKind.GENERAL))
+            return null;
+        return new LabelStreamCache(patternsExtractor);
+    }
+
+    /**
+     * Returns a label stream for the given event, it's extracted only if not cached yet
+     */
+    public LabelStream get(ILoggingEvent event) {
+        var level = byLevel ? event.getLevel() : Level.ALL;
+        var logger = byLogger ? event.getLoggerName() : "";
+        if (level == null || logger == null)
+            return extract(event);
+
+        var levelStreams = streams.computeIfAbsent(level, l -> new ConcurrentHashMap<>());
+        var stream = levelStreams.get(logger);
+        if (stream == null) {
+            stream = extract(event);
+            if (levelStreams.size() >= MAX_CACHED_STREAMS)
+                levelStreams.clear();
+            levelStreams.put(logger, stream);
+        }
+        return stream;
+    }
+
+    private LabelStream extract(ILoggingEvent event) {
+        var kvs = new LinkedHashMap<String, String>();
+        extractor.extract(event, kvs);
+        return LabelStream.of(kvs);
+    }
+}
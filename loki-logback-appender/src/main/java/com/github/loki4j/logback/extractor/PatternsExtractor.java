@@ -3,35 +3,77 @@ package com.github.loki4j.logback.extractor;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.pattern.LevelConverter;
+import ch.qos.logback.classic.pattern.LoggerConverter;
+import ch.qos.logback.classic.pattern.MDCConverter;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.Context;
 import ch.qos.logback.core.pattern.Converter;
 import ch.qos.logback.core.pattern.ConverterUtil;
+import ch.qos.logback.core.pattern.LiteralConverter;
 import ch.qos.logback.core.pattern.parser.Node;
 import ch.qos.logback.core.pattern.parser.Parser;
 import ch.qos.logback.core.spi.ScanException;
+import ch.qos.logback.core.util.OptionHelper;
 
 /**
  * A component for rendering several Logback patters at a time.
  * Used for effective label/metadata extraction.
+ * <p>
+ * Each pattern is compiled to a plan based on the converters it consists of,
+ * see {@link PatternKind}. Only general patterns are rendered by walking the
+ * converter chain for every event.
  */
 public class PatternsExtractor implements Extractor {
 
     private static final int INITIAL_STRING_BUILDER_SIZE = 64;
 
-    private final List<String> keys;
-    private final List<Converter<ILoggingEvent>> converters = new ArrayList<>();
+    /**
+     * Max number of rendered values to memoize per pattern.
+     * When the limit is reached, the cache is truncated to zero
+     */
+    private static final int MAX_CACHED_VALUES = 1000;
 
-    public PatternsExtractor(Map<String, String> patterns, Context context) throws ScanException {
-        keys = List.copyOf(patterns.keySet());
+    /**
+     * Kinds of patterns distinguished by the extractor.
+     */
+    enum PatternKind {
+        /**
+         * Pattern consists of literals only, its value is computed once
+         */
+        CONSTANT,
+        /**
+         * Pattern depends only on event's level, its values are memoized per level
+         */
+        LEVEL,
+        /**
+         * Pattern depends only on event's logger name, its values are memoized per logger
+         */
+        LOGGER,
+        /**
+         * Pattern is a single MDC lookup, its value is taken from MDC directly
+         */
+        MDC,
+        /**
+         * Any other pattern, it's rendered for every event
+         */
+        GENERAL
+    }
+
+    private final List<CompiledPattern> patterns = new ArrayList<>();
+
+    private final boolean constant;
 
+    public PatternsExtractor(Map<String, String> patterns, Context context) throws ScanException {
         var patternLayout = new PatternLayout();
         patternLayout.setContext(context);
         var effectiveConverterMap = patternLayout.getEffectiveConverterMap();
 
-        for (var pattern : patterns.values()) {
+        for (var entry : patterns.entrySet()) {
+            var pattern = entry.getValue();
             try {
                 Parser<ILoggingEvent> p = new Parser<>(pattern);
                 if (context != null)
@@ -40,23 +82,151 @@ public class PatternsExtractor implements Extractor {
                 var converter = p.compile(t, effectiveConverterMap);
                 ConverterUtil.setContextForConverters(context, converter);
                 ConverterUtil.startConverters(converter);
-                converters.add(converter);
+                this.patterns.add(new CompiledPattern(entry.getKey(), converter));
             } catch (ScanException sce) {
                 throw new ScanException("Unable to parse pattern: \"" + pattern + "\"", sce);
             }
         }
+        this.constant = this.patterns.stream().allMatch(cp -> cp.kind == PatternKind.CONSTANT);
     }
 
     public void extract(ILoggingEvent event, Map<String, String> result) {
-        StringBuilder strBuilder = new StringBuilder(INITIAL_STRING_BUILDER_SIZE);
-        for (var i = 0; i < converters.size(); i++) {
-            var c = converters.get(i);
-            while (c != null) {
-                c.write(strBuilder, event);
-                c = c.getNext();
+        StringBuilder strBuilder = null;
+        for (var i = 0; i < patterns.size(); i++) {
+            var cp = patterns.get(i);
+            String value;
+            switch (cp.kind) {
+                case CONSTANT:
+                    value = cp.value;
+                    break;
+                case LEVEL:
+                    value = cp.cached(event.getLevel(), event);
+                    break;
+                case LOGGER:
+                    value = cp.cached(event.getLoggerName(), event);
+                    break;
+                case MDC:
+                    var mdc = event.getMDCPropertyMap();
+                    value = mdc == null ? null : mdc.get(cp.value);
+                    if (value == null)
+                        value = cp.mdcDefaultValue;
+                    break;
+                default:
+                    if (strBuilder == null)
+                        strBuilder = new StringBuilder(INITIAL_STRING_BUILDER_SIZE);
+                    value = cp.render(event, strBuilder);
+                    break;
+            }
+            result.put(cp.key, value);
+        }
+    }
+
+    /**
+     * Returns true if all the patterns consist of literals only,
+     * so the result of extraction doesn't depend on the event
+     */
+    public boolean isConstant() {
+        return constant;
+    }
+
+    /**
+     * Returns true if any of the patterns is of a given kind
+     */
+    boolean hasKind(PatternKind kind) {
+        for (var cp : patterns) {
+            if (cp.kind == kind)
+                return true;
+        }
+        return false;
+    }
+
+    PatternKind kindOf(String key) {
+        for (var cp : patterns) {
+            if (cp.key.equals(key))
+                return cp.kind;
+        }
+        return null;
+    }
+
+    private static PatternKind classify(Converter<ILoggingEvent> head) {
+        var hasLevel = false;
+        var hasLogger = false;
+        var hasOther = false;
+        for (var c = head; c != null; c = c.getNext()) {
+            if (c.getClass() == LiteralConverter.class)
+                continue;
+            else if (c.getClass() == LevelConverter.class)
+                hasLevel = true;
+            else if (c.getClass() == LoggerConverter.class)
+                hasLogger = true;
+            else
+                hasOther = true;
+        }
+        if (!hasLevel && !hasLogger && !hasOther)
+            return PatternKind.CONSTANT;
+        if (hasLevel && !hasLogger && !hasOther)
+            return PatternKind.LEVEL;
+        if (hasLogger && !hasLevel && !hasOther)
+            return PatternKind.LOGGER;
+        if (head.getNext() == null
+                && head.getClass() == MDCConverter.class
+                && ((MDCConverter) head).getFormattingInfo() == null
+                && ((MDCConverter) head).getFirstOption() != null)
+            return PatternKind.MDC;
+        return PatternKind.GENERAL;
+    }
+
+    private static final class CompiledPattern {
+        final String key;
+        final Converter<ILoggingEvent> head;
+        final PatternKind kind;
+        /**
+         * Rendered value for constant pattern, or MDC key for MDC lookup
+         */
+        final String value;
+        final String mdcDefaultValue;
+        final ConcurrentHashMap<Object, String> cache;
+
+        CompiledPattern(String key, Converter<ILoggingEvent> head) {
+            this.key = key;
+            this.head = head;
+            this.kind = classify(head);
+            if (kind == PatternKind.CONSTANT) {
+                this.value = render(null, new StringBuilder(INITIAL_STRING_BUILDER_SIZE));
+                this.mdcDefaultValue = null;
+            } else if (kind == PatternKind.MDC) {
+                // same as in MDCConverter
+                var keyInfo = OptionHelper.extractDefaultReplacement(((MDCConverter) head).getFirstOption());
+                this.value = keyInfo[0];
+                this.mdcDefaultValue = keyInfo[1] != null ? keyInfo[1] : "";
+            } else {
+                this.value = null;
+                this.mdcDefaultValue = null;
             }
-            result.put(keys.get(i), strBuilder.toString());
+            this.cache = kind == PatternKind.LEVEL || kind == PatternKind.LOGGER
+                ? new ConcurrentHashMap<>()
+                : null;
+        }
+
+        String render(ILoggingEvent event, StringBuilder strBuilder) {
+            for (var c = head; c != null; c = c.getNext())
+                c.write(strBuilder, event);
+            var result = strBuilder.toString();
             strBuilder.setLength(0);
+            return result;
+        }
+
+        String cached(Object attr, ILoggingEvent event) {
+            if (attr == null)
+                return render(event, new StringBuilder(INITIAL_STRING_BUILDER_SIZE));
+            var result = cache.get(attr);
+            if (result == null) {
+                result = render(event, new StringBuilder(INITIAL_STRING_BUILDER_SIZE));
+                if (cache.size() >= MAX_CACHED_VALUES)
+                    cache.clear();
+                cache.put(attr, result);
+            }
+            return result;
         }
     }
 }
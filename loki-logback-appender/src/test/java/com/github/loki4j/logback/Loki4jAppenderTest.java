@@ -3,12 +3,14 @@ package com.github.loki4j.logback;
 import static com.github.loki4j.logback.Generators.*;
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.nio.file.Path;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import com.github.loki4j.client.pipeline.PipelineConfig;
 import com.github.loki4j.client.util.OrderedMap;
@@ -72,6 +74,101 @@ public class Loki4jAppenderTest {
         });
     }
 
+    @Test
+    public void testDeferredFormatting() {
+        var sender = dummySender();
+        var batch = batch(3, 1000L);
+        batch.setDeferredFormatting(true);
+        withAppender(appender(batch, http(sender)), appender -> {
+            var sendCapture = sender.captureSendInvocation();
+            appender.append(events[0]);
+            appender.append(events[1]);
+            appender.append(events[2]);
+            var send = sendCapture.waitForNextSend(100);
+            assertEquals(expected, StringPayload.parse(send.data), "same payload as formatted on append");
+            return null;
+        });
+    }
+
+    @Test
+    public void testDeferredSizeEstimate() {
+        var event = loggingEvent(100L, Level.INFO, "TestApp", "main", "Привет", null);
+        assertEquals(12 + 4 + 7, Loki4jAppender.estimateDeferredSizeBytes(event, "Привет"), "UTF-8 size of the message, thread and logger");
+
+        var error = new RuntimeException("Test exception", new IllegalStateException("Cause"));
+        var errorEvent = loggingEvent(100L, Level.ERROR, "TestApp", "main", "Error", error);
+        var frames = error.getStackTrace().length + error.getCause().getStackTrace().length;
+        assertTrue(Loki4jAppender.estimateDeferredSizeBytes(errorEvent, "Error") > frames * 16,
+            "stack traces of the throwable and its cause are counted");
+    }
+
+    @Test
+    public void testUnknownWaitStrategy() {
+        var sender = dummySender();
+        var batch = batch(3, 1000L);
+        batch.setWaitStrategy("sleep");
+        withAppender(appender(batch, http(sender)), appender -> {
+            var sendCapture = sender.captureSendInvocation();
+            appender.append(events[0]);
+            appender.append(events[1]);
+            appender.append(events[2]);
+            var send = sendCapture.waitForNextSend(100);
+            assertEquals(expected, StringPayload.parse(send.data), "default wait strategy is used");
+            return null;
+        });
+    }
+
+    @Test
+    public void testInvalidCompression() {
+        var sender = dummySender();
+        var http = http(sender);
+        http.setCompression("zstd");
+        http.setCompressionLevel(42);
+        withAppender(appender(batch(3, 1000L), http), appender -> {
+            var sendCapture = sender.captureSendInvocation();
+            appender.append(events[0]);
+            appender.append(events[1]);
+            appender.append(events[2]);
+            var send = sendCapture.waitForNextSend(100);
+            assertEquals(expected, StringPayload.parse(send.data), "batch is sent without compression");
+            return null;
+        });
+    }
+
+    @Test
+    public void testUnknownWalFsync(@TempDir Path dir) {
+        var sender = dummySender();
+        var batch = batch(3, 1000L);
+        batch.setWalDir(dir.toString());
+        batch.setWalFsync("always");
+        withAppender(appender(batch, http(sender)), appender -> {
+            var sendCapture = sender.captureSendInvocation();
+            appender.append(events[0]);
+            appender.append(events[1]);
+            appender.append(events[2]);
+            var send = sendCapture.waitForNextSend(100);
+            assertEquals(expected, StringPayload.parse(send.data), "default fsync policy is used");
+            return null;
+        });
+    }
+
+    @Test
+    public void testInvalidOverflowSettings() {
+        var sender = dummySender();
+        var batch = batch(3, 1000L);
+        batch.setOverflowPolicy("drop-latest");
+        batch.setOverflowSampleThreshold(100);
+        withAppender(appender(batch, http(sender)), appender -> {
+            var sendCapture = sender.captureSendInvocation();
+            appender.append(events[0]);
+            appender.append(events[1]);
+            appender.append(events[2]);
+            var send = sendCapture.waitForNextSend(100);
+            assertEquals(expected, StringPayload.parse(send.data), "default overflow policy is used");
+            return null;
+        });
+    }
+
     @Test
     public void testBatchTimeout() {
         var sender = dummySender();
@@ -230,6 +327,44 @@ public class Loki4jAppenderTest {
         appender.stop();
     }
 
+    @Test
+    public void testBackpressureWithPriorityLevels() {
+        var sender = new WrappingHttpSender<>(new SuspendableHttpClient());
+        var appender = appender(batch(1, 4000L), http(sender));
+        appender.getBatch().setMaxBytes(120);
+        appender.getBatch().setSendQueueMaxBytes(150);
+        appender.getBatch().setPriorityLevels("ERROR,WARN");
+        appender.getBatch().setPriorityReservedBytes(0);
+        appender.start();
+
+        sender.client.suspend();
+        // hanging sender
+        appender.append(events[0]);
+        try { Thread.sleep(100L); } catch (InterruptedException e1) { }
+        // batcher buffer
+        appender.append(events[2]);
+        try { Thread.sleep(100L); } catch (InterruptedException e1) { }
+        // sender queue
+        for (int i = 0; i < 6; i++) {
+            appender.append(events[0]);
+            try { Thread.sleep(100L); } catch (InterruptedException e1) { }
+        }
+
+        appender.append(events[0]);
+        try { Thread.sleep(100L); } catch (InterruptedException e1) { }
+        appender.append(events[1]);
+        try { Thread.sleep(100L); } catch (InterruptedException e1) { }
+        appender.append(events[2]);
+        try { Thread.sleep(100L); } catch (InterruptedException e1) { }
+
+        sender.client.resume();
+        try { Thread.sleep(100L); } catch (InterruptedException e1) { }
+
+        assertEquals(2, appender.droppedEventsCount(), "INFO events dropped, WARN event kept");
+
+        appender.stop();
+    }
+
     @Test
     public void testConnectionExceptionRetry() throws InterruptedException, BrokenBarrierException, TimeoutException, ExecutionException {
         StringPayload expectedPayload = StringPayload.builder()
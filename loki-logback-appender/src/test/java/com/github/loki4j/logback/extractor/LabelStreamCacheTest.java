@@ -0,0 +1,48 @@
+package com.github.loki4j.logback.extractor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.loki4j.logback.Loki4jAppenderTest;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.core.spi.ScanException;
+
+public class LabelStreamCacheTest {
+
+    private static PatternsExtractor extractor(String... kvs) throws ScanException {
+        var patterns = new LinkedHashMap<String, String>();
+        for (var i = 0; i < kvs.length; i += 2)
+            patterns.put(kvs[i], kvs[i + 1]);
+        return new PatternsExtractor(patterns, new LoggerContext());
+    }
+
+    @Test
+    public void testCachedByLevelAndLogger() throws ScanException {
+        var cache = LabelStreamCache.of(extractor("app", "test", "level", "%level", "class", "%logger{0}"));
+
+        var s0 = cache.get(Loki4jAppenderTest.events[0]);
+        assertEquals(Map.of("app", "test", "level", "INFO", "class", "TestApp"), s0);
+
+        var s1 = cache.get(Loki4jAppenderTest.events[1]);
+        assertEquals(Map.of("app", "test", "level", "WARN", "class", "TestApp"), s1);
+        assertNotSame(s0, s1, "different levels, different streams");
+
+        assertSame(s0, cache.get(Loki4jAppenderTest.events[2]), "same level and logger, same stream");
+    }
+
+    @Test
+    public void testNotApplicable() throws ScanException {
+        assertNull(LabelStreamCache.of(extractor("app", "test", "thread", "%thread")), "general pattern");
+        assertNull(LabelStreamCache.of(extractor("app", "test", "trace", "%X{traceId}")), "mdc lookup");
+        assertNull(LabelStreamCache.of(MetadataExtractor.mdc("", Set.of(), Set.of())), "bulk pattern");
+    }
+}
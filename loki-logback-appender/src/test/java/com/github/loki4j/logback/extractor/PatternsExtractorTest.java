@@ -1,6 +1,10 @@
 package com.github.loki4j.logback.extractor;
 
+import static com.github.loki4j.logback.Generators.loggingEvent;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -8,7 +12,9 @@ import java.util.Map;
 import org.junit.jupiter.api.Test;
 
 import com.github.loki4j.logback.Loki4jAppenderTest;
+import com.github.loki4j.logback.extractor.PatternsExtractor.PatternKind;
 
+import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.core.spi.ScanException;
 
@@ -32,4 +38,42 @@ public class PatternsExtractorTest {
         extractor.extract(Loki4jAppenderTest.events[2], kvs);
         assertEquals(Map.of("app", "test", "lvl", "INFO", "thread", "thread-1", "class", "t.TestApp"), kvs);
     }
+
+    @Test
+    public void testCompiledPatterns() throws ScanException {
+        var patterns = new LinkedHashMap<String, String>();
+        patterns.put("app", "test");
+        patterns.put("lvl", "lvl_%level");
+        patterns.put("class", "%logger{0}");
+        patterns.put("trace", "%X{traceId:-none}");
+        patterns.put("thread", "%level-%thread");
+        var extractor = new PatternsExtractor(patterns, new LoggerContext());
+
+        assertEquals(PatternKind.CONSTANT, extractor.kindOf("app"));
+        assertEquals(PatternKind.LEVEL, extractor.kindOf("lvl"));
+        assertEquals(PatternKind.LOGGER, extractor.kindOf("class"));
+        assertEquals(PatternKind.MDC, extractor.kindOf("trace"));
+        assertEquals(PatternKind.GENERAL, extractor.kindOf("thread"));
+        assertFalse(extractor.isConstant(), "not all patterns are constant");
+
+        var event = loggingEvent(100L, Level.ERROR, "test.TestApp", "thread-1", "Test message", null);
+        event.getMDCPropertyMap().put("traceId", "abc");
+        var kvs = new LinkedHashMap<String, String>();
+        extractor.extract(event, kvs);
+        assertEquals(Map.of(
+                "app", "test", "lvl", "lvl_ERROR", "class", "TestApp", "trace", "abc", "thread", "ERROR-thread-1"), kvs);
+
+        var first = kvs.get("class");
+        kvs.clear();
+        extractor.extract(Loki4jAppenderTest.events[1], kvs);
+        assertEquals(Map.of(
+                "app", "test", "lvl", "lvl_WARN", "class", "TestApp", "trace", "none", "thread", "WARN-thread-2"), kvs);
+        assertSame(first, kvs.get("class"), "logger-derived value is memoized");
+
+        var constant = new PatternsExtractor(Map.of("app", "test", "env", "prod"), new LoggerContext());
+        assertTrue(constant.isConstant(), "all patterns are constant");
+        kvs.clear();
+        constant.extract(null, kvs);
+        assertEquals(Map.of("app", "test", "env", "prod"), kvs);
+    }
 }
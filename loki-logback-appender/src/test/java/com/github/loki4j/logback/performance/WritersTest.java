@@ -10,6 +10,7 @@ import java.util.stream.Stream;
 import com.github.loki4j.client.batch.LogRecord;
 import com.github.loki4j.client.batch.LogRecordBatch;
 import com.github.loki4j.client.util.ByteBufferFactory;
+import com.github.loki4j.client.writer.GzipWriter;
 import com.github.loki4j.client.writer.JsonWriter;
 import com.github.loki4j.client.writer.ProtobufWriter;
 import com.github.loki4j.client.writer.Writer;
@@ -68,6 +69,12 @@ public class WritersTest {
                 Benchmark.of("jsonEncSta",
                     () -> new JsonWriter(CAPACITY_BYTES),
                     (w, batch) -> writeBatch(w, batch)),
+                Benchmark.of("jsonGzip1EncSta",
+                    () -> gzipWriter(1),
+                    (w, batch) -> writeBatch(w, batch)),
+                Benchmark.of("jsonGzip6EncSta",
+                    () -> gzipWriter(6),
+                    (w, batch) -> writeBatch(w, batch)),
                 Benchmark.of("protEncSta",
                     () -> new ProtobufWriter(CAPACITY_BYTES, new ByteBufferFactory(false)),
                     (w, batch) -> writeBatch(w, batch)),
@@ -102,6 +109,12 @@ public class WritersTest {
                 Benchmark.of("jsonEncDyn",
                     () -> new JsonWriter(CAPACITY_BYTES),
                     (w, batch) -> writeBatch(w, batch)),
+                Benchmark.of("jsonGzip1EncDyn",
+                    () -> gzipWriter(1),
+                    (w, batch) -> writeBatch(w, batch)),
+                Benchmark.of("jsonGzip6EncDyn",
+                    () -> gzipWriter(6),
+                    (w, batch) -> writeBatch(w, batch)),
                 Benchmark.of("protEncDyn",
                     () -> new ProtobufWriter(CAPACITY_BYTES, new ByteBufferFactory(false)),
                     (w, batch) -> writeBatch(w, batch)),
@@ -112,4 +125,32 @@ public class WritersTest {
         statsDyn.forEach(System.out::println);
     }
 
+    private static Writer gzipWriter(int level) {
+        return new GzipWriter(new JsonWriter(CAPACITY_BYTES), CAPACITY_BYTES, level, new ByteBufferFactory(false));
+    }
+
+    @Test
+    public void compressedSize() throws Exception {
+        var encoder = initEnc();
+        var batch = new LogRecordBatch(Arrays.stream(generateEvents(1000, 10))
+            .map(e -> eventToRecord(e, encoder))
+            .toArray(LogRecord[]::new));
+        batch.sort((e1, e2) -> Long.compare(e1.stream.hashCode(), e2.stream.hashCode()));
+
+        var json = new JsonWriter(CAPACITY_BYTES);
+        json.serializeBatch(batch);
+        var jsonSize = json.size();
+        json.reset();
+        System.out.println(String.format("json: %,d bytes", jsonSize));
+        for (var level : new int[] { 1, 6, 9 }) {
+            var gzip = gzipWriter(level);
+            gzip.serializeBatch(batch);
+            System.out.println(String.format("json+gzip(%s): %,d bytes, %.1f%% saved",
+                level, gzip.size(), 100.0 - gzip.size() * 100.0 / jsonSize));
+        }
+        var prot = new ProtobufWriter(CAPACITY_BYTES, new ByteBufferFactory(false));
+        prot.serializeBatch(batch);
+        System.out.println(String.format("protobuf+snappy: %,d bytes", prot.size()));
+    }
+
 }